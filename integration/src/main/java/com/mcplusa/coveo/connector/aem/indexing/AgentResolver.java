@@ -0,0 +1,91 @@
+package com.mcplusa.coveo.connector.aem.indexing;
+
+import com.day.cq.replication.Agent;
+import com.day.cq.replication.ReplicationQueue;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Supplier;
+import lombok.Getter;
+
+/**
+ * Resolves the Coveo agent and its replication queue once, instead of looking the agent up in the
+ * {@link com.day.cq.replication.AgentManager} on every delivery.
+ *
+ * <p>The resolved agent is kept until {@link #invalidate()} is called, which happens when the
+ * configuration of the replication agents changes, or until a different agentId is requested. An
+ * agent that can not be found is never cached, so it is picked up as soon as it is created.
+ */
+public class AgentResolver {
+
+  private final Supplier<Map<String, Agent>> agents;
+
+  private ResolvedAgent resolved;
+
+  private long generation;
+
+  /**
+   * Create the resolver.
+   *
+   * @param agents supplies the configured agents, e.g. AgentManager::getAgents
+   */
+  public AgentResolver(Supplier<Map<String, Agent>> agents) {
+    this.agents = agents;
+  }
+
+  /**
+   * Get the agent and its queue.
+   *
+   * @param agentId id of the agent
+   * @return the agent, null if there is no agent with this id
+   */
+  public ResolvedAgent resolve(String agentId) {
+    long current;
+    synchronized (this) {
+      if (resolved != null && resolved.getAgentId().equals(agentId)) {
+        return resolved;
+      }
+      current = generation;
+    }
+
+    Agent agent = agentId != null ? agents.get().get(agentId) : null;
+    if (agent == null) {
+      return null;
+    }
+
+    ResolvedAgent result = new ResolvedAgent(agentId, agent, Optional.ofNullable(agent.getQueue()));
+    synchronized (this) {
+      // do not cache an agent resolved before an invalidation
+      if (generation == current) {
+        resolved = result;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Drop the resolved agent, the next delivery looks it up again.
+   */
+  public synchronized void invalidate() {
+    resolved = null;
+    generation++;
+  }
+
+  /**
+   * An agent and its replication queue.
+   */
+  @Getter
+  public static final class ResolvedAgent {
+
+    private final String agentId;
+
+    private final Agent agent;
+
+    private final Optional<ReplicationQueue> queue;
+
+    private ResolvedAgent(String agentId, Agent agent, Optional<ReplicationQueue> queue) {
+      this.agentId = agentId;
+      this.agent = agent;
+      this.queue = queue;
+    }
+  }
+}
@@ -0,0 +1,37 @@
+package com.mcplusa.coveo.connector.aem.indexing;
+
+import com.mcplusa.coveo.connector.aem.service.CoveoQueueService;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pushes the batches that have been waiting longer than the configured Batch Max Age, so a trickle
+ * of edits is indexed even if the replication queue never drains.
+ */
+@Component
+@Service(value = Runnable.class)
+@Properties({ @Property(name = "scheduler.period", longValue = 10),
+    @Property(name = "scheduler.concurrent", boolValue = false) })
+public class BatchFlushCronJob implements Runnable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(BatchFlushCronJob.class);
+
+  @Reference
+  private CoveoQueueService coveoQueueService;
+
+  @Override
+  public void run() {
+    try {
+      coveoQueueService.flushStaleBatches();
+    } catch (Exception e) {
+      LOG.error("Could not push stale batches", e);
+    }
+  }
+
+}
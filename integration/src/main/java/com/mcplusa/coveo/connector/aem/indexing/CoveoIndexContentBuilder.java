@@ -8,12 +8,12 @@ import com.day.cq.replication.ReplicationContent;
 import com.day.cq.replication.ReplicationContentFactory;
 import com.day.cq.replication.ReplicationException;
 import com.day.cq.replication.ReplicationLog;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.mcplusa.coveo.connector.aem.indexing.config.CoveoIndexConfiguration;
 import com.mcplusa.coveo.connector.aem.indexing.contentbuilder.CoveoContentBuilder;
-import java.io.BufferedWriter;
+import com.mcplusa.coveo.connector.aem.service.CoveoQueueService;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.HashMap;
@@ -49,6 +49,9 @@ public class CoveoIndexContentBuilder implements ContentBuilder {
   @Reference
   private ResourceResolverFactory resolverFactory;
 
+  @Reference
+  private CoveoQueueService coveoQueueService;
+
   /** Name of the Content Builder. */
   public static final String NAME = "coveo";
   /** Title of the Content Builder. */
@@ -134,15 +137,23 @@ public class CoveoIndexContentBuilder implements ContentBuilder {
       throw new ReplicationException("Could not create temporary file", e);
     }
 
-    try (BufferedWriter writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
-      ObjectMapper mapper = new ObjectMapper();
-      writer.write(mapper.writeValueAsString(content));
-      writer.flush();
-
-      return factory.create("text/plain", tempFile.toFile(), true);
+    try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tempFile))) {
+      IndexEntryCodec.write(content, out);
     } catch (IOException e) {
       throw new ReplicationException("Could not write to temporary file " + e.getMessage(), e);
     }
+
+    // the entry is still written, in case it is evicted from the handoff or the queue is persisted
+    IndexEntryHandoff handoff = coveoQueueService.getEntryHandoff();
+    try {
+      String contentType = handoff != null ? handoff.register(content) : IndexEntryCodec.CONTENT_TYPE;
+      ReplicationContent replicationContent = factory.create(contentType, tempFile.toFile(), true);
+      // The content is built when the action is added to the queue, VOID contents are not queued
+      coveoQueueService.getDrainTracker().entryQueued();
+      return replicationContent;
+    } catch (IOException e) {
+      throw new ReplicationException("Could not create the replication content " + e.getMessage(), e);
+    }
   }
 
   @Override
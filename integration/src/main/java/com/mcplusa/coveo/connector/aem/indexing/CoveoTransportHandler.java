@@ -1,6 +1,6 @@
 package com.mcplusa.coveo.connector.aem.indexing;
 
-import com.day.cq.replication.Agent;
+import com.day.cq.dam.api.Rendition;
 import com.day.cq.replication.AgentConfig;
 import com.day.cq.replication.AgentManager;
 import com.day.cq.replication.ReplicationActionType;
@@ -12,48 +12,50 @@ import com.day.cq.replication.ReplicationResult;
 import com.day.cq.replication.ReplicationTransaction;
 import com.day.cq.replication.TransportContext;
 import com.day.cq.replication.TransportHandler;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.common.reflect.TypeToken;
 import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.mcplusa.coveo.connector.aem.indexing.config.CoveoIndexConfiguration;
+import com.mcplusa.coveo.connector.aem.indexing.contentbuilder.DAMAssetContentBuilder;
+import com.mcplusa.coveo.connector.aem.indexing.contentbuilder.PageContentBuilder;
 import com.mcplusa.coveo.connector.aem.service.CoveoQueueService;
 import com.mcplusa.coveo.connector.aem.service.CoveoService;
+import com.mcplusa.coveo.connector.aem.service.CoveoSource;
+import com.mcplusa.coveo.connector.aem.service.DocumentFingerprintStore;
 import com.mcplusa.coveo.sdk.CoveoResponse;
-import com.mcplusa.coveo.sdk.CoveoResponseException;
 import com.mcplusa.coveo.sdk.pushapi.CoveoPushClient;
-import com.mcplusa.coveo.sdk.pushapi.model.BatchRequest;
 import com.mcplusa.coveo.sdk.pushapi.model.CompressionType;
 import com.mcplusa.coveo.sdk.pushapi.model.Document;
-import com.mcplusa.coveo.sdk.pushapi.model.FileContainerResponse;
-import com.mcplusa.coveo.sdk.pushapi.model.IdentityModel;
-import com.mcplusa.coveo.sdk.pushapi.model.IdentityType;
-import com.mcplusa.coveo.sdk.pushapi.model.PermissionLevelsModel;
 import com.mcplusa.coveo.sdk.pushapi.model.PermissionModel;
 import com.mcplusa.coveo.sdk.pushapi.model.PermissionsSetsModel;
 import com.mcplusa.coveo.sdk.pushapi.model.PushAPIStatus;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.lang.reflect.Type;
-import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.http.HttpStatus;
+import org.apache.sling.api.SlingConstants;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
 import org.apache.sling.commons.json.JSONException;
 import org.osgi.framework.Constants;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -61,10 +63,18 @@ import org.slf4j.LoggerFactory;
  * TransportHandler Implementation that posts a ReplicationContent created by
  * {@link CoveoIndexContentBuilder} to a configured Coveo.
  */
-@Service(TransportHandler.class)
+@Service({TransportHandler.class, EventHandler.class})
 @Component(label = "Coveo Index Agent", immediate = true, enabled = true)
-@Properties(@Property(name = Constants.SERVICE_RANKING, intValue = 1000))
-public class CoveoTransportHandler implements TransportHandler {
+@Properties({
+    @Property(name = Constants.SERVICE_RANKING, intValue = 1000),
+    @Property(name = EventConstants.EVENT_TOPIC, value = {
+        SlingConstants.TOPIC_RESOURCE_ADDED,
+        SlingConstants.TOPIC_RESOURCE_CHANGED,
+        SlingConstants.TOPIC_RESOURCE_REMOVED
+    }),
+    @Property(name = EventConstants.EVENT_FILTER, value = "(path=/etc/replication/*)")
+})
+public class CoveoTransportHandler implements TransportHandler, EventHandler {
 
   @Reference
   protected AgentManager agentManager;
@@ -75,6 +85,22 @@ public class CoveoTransportHandler implements TransportHandler {
   @Reference
   protected CoveoService coveoService;
 
+  @Reference
+  protected ResourceResolverFactory resolverFactory;
+
+  @Reference(name = "indexConfiguration", referenceInterface = CoveoIndexConfiguration.class,
+      cardinality = ReferenceCardinality.OPTIONAL_MULTIPLE, policy = ReferencePolicy.DYNAMIC,
+      bind = "bindIndexConfiguration", unbind = "unbindIndexConfiguration")
+  private final Map<String, CoveoIndexConfiguration> indexConfigurations = new ConcurrentHashMap<>();
+
+  /** Field mappings compiled per primary type, dropped when its configuration changes. */
+  private final Map<String, FieldMapping> fieldMappings = new ConcurrentHashMap<>();
+
+  /** Permissions converted per chain, shared by the documents inheriting the same policies. */
+  private final PermissionChainCache permissionChains = new PermissionChainCache(MAX_PERMISSION_CHAINS);
+
+  private final AgentResolver agentResolver = new AgentResolver(() -> agentManager.getAgents());
+
   private static final Logger LOG = LoggerFactory.getLogger(CoveoTransportHandler.class);
   private static final String REPLICATION_ERROR_MSG = "Replication failed";
   private static final String AGENT_NOT_FOUND = "The Agent can not be found. Check if agentId is configured properly in the Coveo Provider.";
@@ -83,9 +109,22 @@ public class CoveoTransportHandler implements TransportHandler {
   private static final String TITLE_FIELDNAME = "title";
   private static final String AUTHOR_FIELDNAME = "author";
   private static final String COMPRESSEDBINARYDATA_FIELDNAME = "CompressedBinaryData";
-  private static final String COMPRESSEDBINARYDATAFILEID_FIELDNAME = "compressedBinaryDataFileId";
+  private static final String COMPRESSEDBINARYDATAFILEID_FIELDNAME =
+      CoveoQueueService.COMPRESSEDBINARYDATAFILEID_FIELDNAME;
   private static final String DOCUMENT_TYPE_FIELDNAME = "documenttype";
   private static final String ACL_FIELDNAME = "acl";
+  private static final String FILE_IDS_FIELDNAME = "fileIds";
+  private static final String BINARY_FIELDNAME = DAMAssetContentBuilder.BINARY_FIELDNAME;
+  private static final int MAX_PERMISSION_CHAINS = 1000;
+  private static final String COMPRESSION_TYPE_FIELDNAME = "compressionType";
+
+  /** Primary type of the entries of each content builder. */
+  private static final Map<String, String> ENTRY_PRIMARY_TYPES = new HashMap<>();
+
+  static {
+    ENTRY_PRIMARY_TYPES.put(PageContentBuilder.ENTRY_TYPE, PageContentBuilder.PRIMARY_TYPE_VALUE);
+    ENTRY_PRIMARY_TYPES.put(DAMAssetContentBuilder.ENTRY_TYPE, DAMAssetContentBuilder.PRIMARY_TYPE_VALUE);
+  }
 
   /**
    * Checks if Service will accept the replication.
@@ -99,6 +138,17 @@ public class CoveoTransportHandler implements TransportHandler {
         config.getSerializationType(), CoveoIndexContentBuilder.NAME);
   }
 
+  /**
+   * Drop the resolved agent when the configuration of the replication agents changes.
+   *
+   * @param event resource event under /etc/replication
+   */
+  @Override
+  public void handleEvent(Event event) {
+    LOG.debug("Replication agents changed ({}), resolving the agent again", event.getProperty(SlingConstants.PROPERTY_PATH));
+    agentResolver.invalidate();
+  }
+
   /**
    * Deliver the replication and return an ReplicationResult.
    *
@@ -113,7 +163,7 @@ public class CoveoTransportHandler implements TransportHandler {
     ReplicationLog log = tx.getLog();
 
     // Check if agent is configured.
-    Agent agent = agentManager.getAgents().get(coveoQueueService.getAgentId());
+    AgentResolver.ResolvedAgent agent = agentResolver.resolve(coveoQueueService.getAgentId());
     if (agent == null) {
       log.error(getClass().getSimpleName() + ": " + AGENT_NOT_FOUND + " current agentId: '"
           + coveoQueueService.getAgentId() + "'");
@@ -122,7 +172,23 @@ public class CoveoTransportHandler implements TransportHandler {
           AGENT_NOT_FOUND + " current agentId: '" + coveoQueueService.getAgentId() + "'");
     }
 
-    if (isFirstEntryOfBatch()) {
+    // The queue is resolved with the agent, it is passed down to every step of the delivery
+    Optional<ReplicationQueue> queue = agent.getQueue();
+
+    ReplicationActionType replicationType = tx.getAction().getType();
+    ReplicationResult result = deliver(ctx, tx, queue);
+    if (replicationType != ReplicationActionType.TEST && result.isSuccess()) {
+      coveoQueueService.getDrainTracker().entryDelivered();
+    }
+
+    return result;
+  }
+
+  private ReplicationResult deliver(TransportContext ctx, ReplicationTransaction tx, Optional<ReplicationQueue> queue)
+      throws ReplicationException {
+    ReplicationLog log = tx.getLog();
+
+    if (isFirstEntryOfBatch(queue)) {
       updateSourceStatus(PushAPIStatus.REFRESH, log);
     }
     try {
@@ -133,40 +199,40 @@ public class CoveoTransportHandler implements TransportHandler {
       log.info(getClass().getSimpleName() + ":" + replicationType + " " + tx.getAction().getPath());
 
       if (replicationType == ReplicationActionType.TEST) {
-        return doTest(ctx, tx, pushClient);
+        return doTest(ctx, tx);
       } else {
         log.info(getClass().getSimpleName() + ": ---------------------------------------");
         if ((tx.getContent() == ReplicationContent.VOID || tx.getContent() == null || tx.getContent().getContentType() == null)
             && (replicationType == null || replicationType != ReplicationActionType.DELETE)) {
-          return doVoid(tx);
+          return doVoid(tx, queue);
         }
         switch (replicationType) {
           case ACTIVATE:
-            return doActivate(ctx, tx);
+            return doActivate(ctx, tx, queue);
           case DELETE:
-            return doDeactivate(ctx, tx);
+            return doDeactivate(ctx, tx, queue);
           case DEACTIVATE:
-            return doDeactivate(ctx, tx);
+            return doDeactivate(ctx, tx, queue);
           default:
             String errorMsg = "Replication action type " + replicationType + " not supported.";
             log.warn(getClass().getSimpleName() + ": " + errorMsg);
-            if (isLastEntryOfBatch()) {
+            if (isLastEntryOfBatch(queue)) {
               updateSourceStatus(PushAPIStatus.IDLE, log);
-              pushToFileContainer(log);
+              pushToFileContainer(queue, log);
             }
             throw new ReplicationException(errorMsg);
         }
       }
     } catch (JSONException jex) {
       updateSourceStatus(PushAPIStatus.IDLE, log);
-      pushToFileContainer(log);
+      pushToFileContainer(queue, log);
 
       log.error(getClass().getSimpleName() + ": JSON was invalid");
       LOG.error("JSON was invalid", jex);
       return new ReplicationResult(false, 0, jex.getLocalizedMessage());
     } catch (IOException ioe) {
       updateSourceStatus(PushAPIStatus.IDLE, log);
-      pushToFileContainer(log);
+      pushToFileContainer(queue, log);
 
       log.error(getClass().getSimpleName() + ": Could not perform Replication due to " + ioe.getLocalizedMessage());
       LOG.error("Could not perform Replication", ioe);
@@ -174,12 +240,12 @@ public class CoveoTransportHandler implements TransportHandler {
     }
   }
 
-  private ReplicationResult doVoid(ReplicationTransaction tx) {
+  private ReplicationResult doVoid(ReplicationTransaction tx, Optional<ReplicationQueue> queue) {
     ReplicationLog log = tx.getLog();
     LOG.warn(NO_REPLICATION_CONTENT);
 
-    if (isLastEntryOfBatch()) {
-      CoveoResponse batchResponse = pushToFileContainer(log);
+    if (isLastEntryOfBatch(queue)) {
+      CoveoResponse batchResponse = pushToFileContainer(queue, log);
       updateSourceStatus(PushAPIStatus.IDLE, log);
 
       if (batchResponse != null && batchResponse.getStatusLine().getStatusCode() == HttpStatus.SC_ACCEPTED) {
@@ -194,8 +260,8 @@ public class CoveoTransportHandler implements TransportHandler {
     }
   }
 
-  private ReplicationResult doDeactivate(TransportContext ctx, ReplicationTransaction tx)
-      throws JSONException, IOException {
+  private ReplicationResult doDeactivate(TransportContext ctx, ReplicationTransaction tx,
+      Optional<ReplicationQueue> queue) throws JSONException, IOException {
     if (tx.getContent() == null || tx.getContent().getContentType() == null) {
       // file has no content or it is an unknown format, skip
       return ReplicationResult.OK;
@@ -203,32 +269,40 @@ public class CoveoTransportHandler implements TransportHandler {
 
     ReplicationLog log = tx.getLog();
     log.info(getClass().getSimpleName() + ": Deleting... " + tx.getContent().getContentType());
-    ObjectMapper mapper = new ObjectMapper();
     IndexEntry entry = null;
-    
+
     try {
-      entry = mapper.readValue(tx.getContent().getInputStream(), IndexEntry.class);
+      entry = readEntry(tx.getContent());
     } catch (Exception e) {
-      LOG.error("Could not parse JSON", e);
+      LOG.error("Could not read the index entry", e);
     }
 
     if (entry != null) {
-      Optional<ReplicationQueue> queue = this.getReplicationQueue();
       if (queue.isPresent()) {
-        this.coveoQueueService.deleteDocument(queue.get().getName(), entry.getDocumentId());
+        // removed now so a new activation is not skipped, and again once pushed so a fingerprint
+        // recorded for an earlier activation of the same batch does not come back
+        DocumentFingerprintStore fingerprints = coveoQueueService.getFingerprintStore();
+        String path = entry.getPath();
+        this.coveoQueueService.deleteDocument(queue.get().getName(), entry.getDocumentId(),
+            fingerprints != null ? () -> fingerprints.remove(path) : null);
+        if (fingerprints != null) {
+          fingerprints.remove(path);
+        }
       }
 
-      if (isLastEntryOfBatch()) {
+      if (isLastEntryOfBatch(queue)) {
         updateSourceStatus(PushAPIStatus.IDLE, log);
-        CoveoResponse batchResponse = pushToFileContainer(log);
-        log.info(
-            getClass().getSimpleName()
-                + ": Delete Call returned "
-                + batchResponse.getStatusLine().getStatusCode()
-                + ": "
-                + batchResponse.getStatusLine().getReasonPhrase());
-
-        if (batchResponse.getStatusLine().getStatusCode() == HttpStatus.SC_ACCEPTED) {
+        CoveoResponse batchResponse = pushToFileContainer(queue, log);
+        if (batchResponse != null) {
+          log.info(
+              getClass().getSimpleName()
+                  + ": Delete Call returned "
+                  + batchResponse.getStatusLine().getStatusCode()
+                  + ": "
+                  + batchResponse.getStatusLine().getReasonPhrase());
+        }
+
+        if (batchResponse != null && batchResponse.getStatusLine().getStatusCode() == HttpStatus.SC_ACCEPTED) {
           return ReplicationResult.OK;
         } else {
           LOG.error("Could not delete {}", entry.getDocumentId());
@@ -237,6 +311,7 @@ public class CoveoTransportHandler implements TransportHandler {
 
       } else {
         log.info("File " + entry.getDocumentId() + " added to the batch.");
+        pushIfFlushRequired(queue, log);
         return ReplicationResult.OK;
       }
     }
@@ -251,31 +326,50 @@ public class CoveoTransportHandler implements TransportHandler {
    * {@link CoveoIndexContentBuilder} so we only need to transmit the Document to
    * Coveo
    *
-   * @param ctx TransportContext
-   * @param tx  ReplicationTransaction
+   * @param ctx   TransportContext
+   * @param tx    ReplicationTransaction
+   * @param queue replication queue of the agent
    * @return ReplicationResult
    * @throws ReplicationException if an error occurs.
    */
-  private ReplicationResult doActivate(TransportContext ctx, ReplicationTransaction tx)
-      throws ReplicationException, JSONException, IOException {
+  private ReplicationResult doActivate(TransportContext ctx, ReplicationTransaction tx,
+      Optional<ReplicationQueue> queue) throws ReplicationException, JSONException, IOException {
     ReplicationLog log = tx.getLog();
-    ObjectMapper mapper = new ObjectMapper();
-    IndexEntry entry = mapper.readValue(tx.getContent().getInputStream(), IndexEntry.class);
+    IndexEntry entry = readEntry(tx.getContent());
     if (entry != null) {
       Document document = indexEntryToDocument(entry);
+      Map<String, String> binary = getStringMap(entry, BINARY_FIELDNAME);
+      Map<String, String> fileIds = getStringMap(entry, FILE_IDS_FIELDNAME);
+      DocumentFingerprintStore fingerprints = coveoQueueService.getFingerprintStore();
+      long fingerprint = fingerprints != null && fingerprints.isEnabled()
+          ? DocumentFingerprintStore.fingerprint(document, binary.isEmpty() ? fileIds : binary) : 0;
+      if (fingerprints != null && fingerprints.isUnchanged(entry, fingerprint)) {
+        return doUnchanged(tx, entry, queue);
+      }
+
+      // the binary is only uploaded once the document is known to be pushed
+      if (!binary.isEmpty()) {
+        fileIds = uploadBinary(binary.get(DAMAssetContentBuilder.BINARY_PATH));
+      }
+
       log.debug("Document: " + printDocument(document));
       log.info(getClass().getSimpleName() + ": Indexing " + document.getDocumentId());
 
-      Optional<ReplicationQueue> queue = this.getReplicationQueue();
       if (queue.isPresent()) {
-        this.coveoQueueService.addDocument(queue.get().getName(), document);
+        String id = entry.getId();
+        String path = entry.getPath();
+        if (fingerprints != null) {
+          fingerprints.enqueue(id, fingerprint);
+        }
+        this.coveoQueueService.addDocument(queue.get().getName(), document, fileIds,
+            fingerprints != null ? () -> fingerprints.put(id, path, fingerprint) : null);
       }
 
-      if (isLastEntryOfBatch()) {
-        CoveoResponse batchResponse = pushToFileContainer(log);
+      if (isLastEntryOfBatch(queue)) {
+        CoveoResponse batchResponse = pushToFileContainer(queue, log);
         updateSourceStatus(PushAPIStatus.IDLE, log);
 
-        if (batchResponse.getStatusLine().getStatusCode() == HttpStatus.SC_ACCEPTED) {
+        if (batchResponse != null && batchResponse.getStatusLine().getStatusCode() == HttpStatus.SC_ACCEPTED) {
           return ReplicationResult.OK;
         } else {
           LOG.error("Could not push batch of documents: {}", batchResponse);
@@ -284,6 +378,7 @@ public class CoveoTransportHandler implements TransportHandler {
 
       } else {
         log.info("File " + entry.getDocumentId() + " added to the batch.");
+        pushIfFlushRequired(queue, log);
         return ReplicationResult.OK;
       }
     }
@@ -294,64 +389,110 @@ public class CoveoTransportHandler implements TransportHandler {
   }
 
   /**
-   * Test Connection to Coveo.
+   * Get the entry built by the {@link CoveoIndexContentBuilder}: straight from
+   * the {@link IndexEntryHandoff} when it is still there, otherwise read from
+   * the replication content.
    *
-   * @param ctx        TransportContext
-   * @param tx         ReplicationTransaction
-   * @param restClient CoveoPushClient
+   * @param content ReplicationContent
+   * @return the entry
+   * @throws IOException if the entry could not be read
+   */
+  private IndexEntry readEntry(ReplicationContent content) throws IOException {
+    IndexEntryHandoff handoff = coveoQueueService.getEntryHandoff();
+    IndexEntry entry = handoff != null ? handoff.take(content.getContentType()) : null;
+    if (entry != null) {
+      return entry;
+    }
+
+    return IndexEntryCodec.read(content.getContentType(), content.getInputStream());
+  }
+
+  /**
+   * Skip an activation identical to the version of the document already pushed.
+   * The batch is still pushed if this is the last entry of the queue.
+   *
+   * @param tx    ReplicationTransaction
+   * @param entry unchanged entry
+   * @param queue replication queue of the agent
+   * @return ReplicationResult
+   */
+  private ReplicationResult doUnchanged(ReplicationTransaction tx, IndexEntry entry,
+      Optional<ReplicationQueue> queue) {
+    ReplicationLog log = tx.getLog();
+    log.info(getClass().getSimpleName() + ": " + entry.getDocumentId() + " is unchanged, skipped.");
+
+    if (!isLastEntryOfBatch(queue)) {
+      return ReplicationResult.OK;
+    }
+
+    updateSourceStatus(PushAPIStatus.IDLE, log);
+    if (!coveoQueueService.hasPendingDocuments(queue.get().getName())) {
+      return ReplicationResult.OK;
+    }
+
+    CoveoResponse batchResponse = pushToFileContainer(queue, log);
+    if (batchResponse != null && batchResponse.getStatusLine().getStatusCode() == HttpStatus.SC_ACCEPTED) {
+      return ReplicationResult.OK;
+    } else {
+      LOG.error("Could not push batch of documents: {}", batchResponse);
+      return new ReplicationResult(false, 0, REPLICATION_ERROR_MSG);
+    }
+  }
+
+  /**
+   * Test Connection to every Coveo Source.
+   *
+   * @param ctx TransportContext
+   * @param tx  ReplicationTransaction
    * @return ReplicationResult
    * @throws ReplicationException if an error occurs.
    */
-  private ReplicationResult doTest(TransportContext ctx, ReplicationTransaction tx, CoveoPushClient pushClient)
-      throws IOException {
+  private ReplicationResult doTest(TransportContext ctx, ReplicationTransaction tx) throws IOException {
     ReplicationLog log = tx.getLog();
-    CoveoResponse testResponse = pushClient.ping();
-    log.info(getClass().getSimpleName() + ": ---------------------------------------");
-    log.info(getClass().getSimpleName() + ": " + testResponse.getStatusLine().getStatusCode() + ": "
-        + testResponse.getStatusLine().getReasonPhrase());
-    if (testResponse.getStatusLine().getStatusCode() == HttpStatus.SC_CREATED) {
+    boolean established = true;
+    for (CoveoSource source : coveoService.getSources()) {
+      CoveoResponse testResponse = source.getClient().ping();
+      log.info(getClass().getSimpleName() + ": ---------------------------------------");
+      log.info(getClass().getSimpleName() + ": " + source.getName() + ": "
+          + testResponse.getStatusLine().getStatusCode() + ": " + testResponse.getStatusLine().getReasonPhrase());
+      if (testResponse.getStatusLine().getStatusCode() != HttpStatus.SC_CREATED) {
+        log.info(getClass().getSimpleName() + ": The connection could not be established to " + source.getName() + ".");
+        established = false;
+      }
+    }
+
+    if (established) {
       log.info(getClass().getSimpleName() + ": The connection to Coveo has been successfully established.");
       return ReplicationResult.OK;
     } else {
-      log.info(getClass().getSimpleName() + ": The connection could not be established to Coveo.");
       return new ReplicationResult(false, 0, "Replication test failed");
     }
   }
 
-  private Document indexEntryToDocument(IndexEntry indexEntry) {
+  private Document indexEntryToDocument(IndexEntry indexEntry) throws IOException {
     String documentId = indexEntry.getContent("documentId", String.class);
     Document doc = new Document(documentId);
 
-    if (indexEntry.getContent(TITLE_FIELDNAME, String.class) != null) {
-      doc.setTitle(indexEntry.getContent(TITLE_FIELDNAME, String.class));
+    String title = indexEntry.getContent(TITLE_FIELDNAME, String.class);
+    if (title != null) {
+      doc.setTitle(title);
     }
 
-    Map<String, Object> valuesMap = new HashMap<>();
+    doc.setMetadata(getFieldMapping(indexEntry).map(indexEntry.getContent()));
 
-    indexEntry.getContent().keySet().stream()
-        .filter(key -> indexEntry.getContent().get(key) != null)
-        .forEach(
-            key -> {
-              if (!key.equals("content")
-                  && !key.equals("documentid")
-                  && !key.equals(TITLE_FIELDNAME)
-                  && !key.equals(ACL_FIELDNAME)) {
-                valuesMap.put(cleanFieldName(key), indexEntry.getContent().get(key));
-              }
-            });
-    doc.setMetadata(valuesMap);
-
-    if (indexEntry.getContent("lastmodified", Long.class) != null) {
-      doc.addMetadata("date", indexEntry.getContent("lastmodified", Long.class), Long.class);
+    Long lastModified = indexEntry.getContent("lastmodified", Long.class);
+    if (lastModified != null) {
+      doc.addMetadata("date", lastModified, Long.class);
     }
 
-    if (indexEntry.getContent("created", Long.class) != null) {
-      doc.addMetadata("createddate", indexEntry.getContent("created", Long.class), Long.class);
+    Long created = indexEntry.getContent("created", Long.class);
+    if (created != null) {
+      doc.addMetadata("createddate", created, Long.class);
     }
 
-    if (indexEntry.getContent(AUTHOR_FIELDNAME, String.class) != null) {
-      doc.addMetadata(
-          AUTHOR_FIELDNAME, indexEntry.getContent(AUTHOR_FIELDNAME, String.class), String.class);
+    String author = indexEntry.getContent(AUTHOR_FIELDNAME, String.class);
+    if (author != null) {
+      doc.addMetadata(AUTHOR_FIELDNAME, author, String.class);
     }
 
     Optional<String> extension = getExtension(documentId);
@@ -359,28 +500,36 @@ public class CoveoTransportHandler implements TransportHandler {
       doc.setFileExtension(extension.get());
     }
 
-    if (StringUtils.isNotEmpty(indexEntry.getContent(DOCUMENT_TYPE_FIELDNAME, String.class))) {
-      String documentType = indexEntry.getContent(DOCUMENT_TYPE_FIELDNAME, String.class);
+    String documentType = indexEntry.getContent(DOCUMENT_TYPE_FIELDNAME, String.class);
+    if (StringUtils.isNotEmpty(documentType)) {
       doc.addMetadata(DOCUMENT_TYPE_FIELDNAME, documentType, String.class);
       doc.addMetadata("filetype", documentType, String.class);
     }
 
     String data = indexEntry.getContent("content", String.class);
     if (data != null) {
-      doc.setCompressionType(CompressionType.UNCOMPRESSED);
+      doc.setCompressionType(getCompressionType(indexEntry));
       doc.addMetadata(COMPRESSEDBINARYDATA_FIELDNAME, data, String.class);
     }
 
+    // entries built before the binaries were uploaded to every Source
     String fileId = indexEntry.getContent("fileId", String.class);
     if (StringUtils.isNotEmpty(fileId)) {
       doc.setCompressionType(CompressionType.UNCOMPRESSED);
       doc.addMetadata(COMPRESSEDBINARYDATAFILEID_FIELDNAME, fileId, String.class);
     }
 
+    // the fileId of each Source is added when the document enters its batch
+    if (indexEntry.getContent().containsKey(BINARY_FIELDNAME)
+        || !getStringMap(indexEntry, FILE_IDS_FIELDNAME).isEmpty()) {
+      doc.setCompressionType(CompressionType.UNCOMPRESSED);
+    }
+
     // Implement permission
-    String aclJson = indexEntry.getContent(ACL_FIELDNAME, String.class);
-    if (aclJson != null) {
-      List<PermissionModel> permissions = extractPermissions(aclJson);
+    Object acl = indexEntry.getContent().get(ACL_FIELDNAME);
+    if (acl != null) {
+      List<PermissionModel> permissions = permissionChains.getPermissions(PermissionChain.decode(acl),
+          coveoService.getUserIdentityProvider(), coveoService.getGroupIdentityProvider());
 
       doc.setPermissions(permissions);
 
@@ -393,60 +542,84 @@ public class CoveoTransportHandler implements TransportHandler {
     return doc;
   }
 
-  private List<PermissionModel> extractPermissions(String aclJson) {
-    List<PermissionModel> permissions = new ArrayList<>();
-    Type listType =
-        new TypeToken<List<NodePermissionLevel>>() {
-          private static final long serialVersionUID = -8061055707344967221L;
-        }.getType();
-    List<NodePermissionLevel> acl = new Gson().fromJson(aclJson, listType);
-
-    if (acl == null) {
-      return permissions;
+  /**
+   * Get a map of strings of the entry, like the original rendition of an asset or the fileIds of
+   * its binary in each Source for the entries built before the binaries were uploaded on delivery.
+   *
+   * @param indexEntry entry to push
+   * @param name       name of the field
+   * @return the values of the map, empty if the entry has no such field
+   */
+  private Map<String, String> getStringMap(IndexEntry indexEntry, String name) {
+    Object value = indexEntry.getContent().get(name);
+    if (!(value instanceof Map)) {
+      return Collections.emptyMap();
     }
 
-    List<NodePermissionLevel> aclOrdered =
-        acl.stream()
-            .sorted((a, b) -> a.getNodeLevel() - b.getNodeLevel())
-            .collect(Collectors.toList());
-    for (NodePermissionLevel nodePermission : aclOrdered) {
-      PermissionLevelsModel permissionLevel =
-          new PermissionLevelsModel("Permission Level " + (nodePermission.getNodeLevel() + 1));
-
-      PermissionsSetsModel psm = new PermissionsSetsModel();
-      for (Permission permission : nodePermission.getPermissions()) {
-        IdentityType identityType = IdentityType.USER;
-        String identityProvider = this.coveoService.getUserIdentityProvider();
-        if (permission.isGroup()) {
-          identityType = IdentityType.VIRTUAL_GROUP;
-          identityProvider = this.coveoService.getGroupIdentityProvider();
-        }
+    Map<String, String> values = new HashMap<>();
+    for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+      if (entry.getValue() != null) {
+        values.put(entry.getKey().toString(), entry.getValue().toString());
+      }
+    }
+    return values;
+  }
 
-        IdentityModel identity =
-            new IdentityModel(permission.getPrincipalName(), identityType, identityProvider);
+  /**
+   * Upload the original rendition of an asset to a FileContainer of every
+   * Source, the Sources can be in other organizations.
+   *
+   * @param path path of the rendition
+   * @return the fileId of the FileContainer of each Source, by name of the
+   *         Source
+   */
+  private Map<String, String> uploadBinary(String path) {
+    Map<String, String> fileIds = new HashMap<>();
+    ResourceResolver resolver = null;
+    try {
+      resolver = resolverFactory.getAdministrativeResourceResolver(null);
+      Resource resource = path != null ? resolver.getResource(path) : null;
+      Rendition rendition = resource != null ? resource.adaptTo(Rendition.class) : null;
+      if (rendition == null) {
+        LOG.error("Could not find the rendition {}", path);
+        return fileIds;
+      }
 
-        if (permission.getType() == Permission.PERMISSION_TYPE.ALLOW) {
-          psm.addAllowedPermission(identity);
-        } else {
-          psm.addDeniedPermission(identity);
+      for (CoveoSource source : coveoService.getSources()) {
+        try {
+          fileIds.put(source.getName(), source.uploadToFileContainer(rendition::getStream).getFileId());
+        } catch (Exception e) {
+          LOG.error("Could not push the data to the file Container of {}", source.getName(), e);
         }
       }
-
-      psm.setAllowAnonymous(false);
-
-      permissionLevel.addPermissionSet(psm);
-      permissions.add(permissionLevel);
+    } catch (LoginException e) {
+      LOG.error("Could not read the rendition {}", path, e);
+    } finally {
+      if (resolver != null && resolver.isLive()) {
+        resolver.close();
+      }
     }
+    return fileIds;
+  }
 
-    if (permissions.isEmpty()) {
-      PermissionLevelsModel permissionLevel = new PermissionLevelsModel("Permission Level 1");
-      PermissionsSetsModel psm = new PermissionsSetsModel();
-      psm.setAllowAnonymous(true);
-      permissionLevel.addPermissionSet(psm);
-      permissions.add(permissionLevel);
+  /**
+   * Get the compression applied to the content by the content builder. Entries
+   * created before the compression was configurable are uncompressed.
+   *
+   * @param indexEntry entry to push
+   * @return the compression type of the content
+   */
+  private CompressionType getCompressionType(IndexEntry indexEntry) {
+    String compressionType = indexEntry.getContent(COMPRESSION_TYPE_FIELDNAME, String.class);
+    if (StringUtils.isNotEmpty(compressionType)) {
+      try {
+        return CompressionType.valueOf(compressionType);
+      } catch (IllegalArgumentException ex) {
+        LOG.warn("Unknown compression type {}", compressionType);
+      }
     }
 
-    return permissions;
+    return CompressionType.UNCOMPRESSED;
   }
 
   /**
@@ -466,45 +639,49 @@ public class CoveoTransportHandler implements TransportHandler {
   }
 
   /**
-   * Removes all special characters, only allow lowercase letters (a-z), numbers
-   * (0-9), and underscores.
+   * Get the field mapping of the primary type of an entry, compiled on first use.
    *
-   * @param fieldName value to be "cleaned"
-   * @return a valid field name for Coveo
+   * @param indexEntry entry to push
+   * @return the field mapping of the entry
    */
-  private String cleanFieldName(String fieldName) {
-    String regexWhitespaces = "\\s+";
-    String regexSpecialCharacters = "\\W";
-    return fieldName
-        .replaceAll(regexWhitespaces, "_")
-        .replaceAll(regexSpecialCharacters, "")
-        .toLowerCase();
+  private FieldMapping getFieldMapping(IndexEntry indexEntry) {
+    String primaryType = indexEntry.getType() != null ? ENTRY_PRIMARY_TYPES.get(indexEntry.getType()) : null;
+    if (primaryType == null) {
+      return FieldMapping.DEFAULT;
+    }
+
+    return fieldMappings.computeIfAbsent(primaryType, type -> {
+      CoveoIndexConfiguration config = indexConfigurations.get(type);
+      return config != null ? FieldMapping.compile(config.getFieldMappings(), config.getExcludedFields())
+          : FieldMapping.DEFAULT;
+    });
+  }
+
+  protected void bindIndexConfiguration(CoveoIndexConfiguration config) {
+    if (config.getPrimaryType() != null) {
+      indexConfigurations.put(config.getPrimaryType(), config);
+      fieldMappings.remove(config.getPrimaryType());
+    }
+  }
+
+  protected void unbindIndexConfiguration(CoveoIndexConfiguration config) {
+    if (config.getPrimaryType() != null && indexConfigurations.remove(config.getPrimaryType(), config)) {
+      fieldMappings.remove(config.getPrimaryType());
+    }
   }
 
   /**
-   * Perform the source status update. it adds logs for both successful and error
-   * responses.
+   * Request the status update of every source. The update is coalesced with the
+   * other requests of the same window by the
+   * {@link com.mcplusa.coveo.connector.aem.service.SourceStatusManager} of each
+   * source.
    *
    * @param status PushAPIStatus
    * @param log    ReplicationLog
    */
   private void updateSourceStatus(PushAPIStatus status, ReplicationLog log) {
-    CoveoPushClient pushClient = coveoService.getClient();
-    try {
-      CoveoResponse updateResponse = pushClient.updateSourceStatus(status);
-      if (updateResponse.getStatusLine().getStatusCode() == HttpStatus.SC_CREATED) {
-        log.debug(getClass().getSimpleName() + ": Source Status updated to " + status.toString());
-      } else {
-        log.error(getClass().getSimpleName() + ": Could not update the Source status to " + status.toString());
-        LOG.error("Could not update the Source status to {}", status);
-      }
-    } catch (IOException e) {
-      log.error(
-          getClass().getSimpleName()
-              + ": Exception: Could not update the Source status to "
-              + status.toString());
-      LOG.error("Exception: Could not update the Source status to " + status.toString(), e);
-    }
+    coveoService.requestSourceStatus(status);
+    log.debug(getClass().getSimpleName() + ": Source Status " + status.toString() + " requested");
   }
 
   private String printDocument(Document doc) {
@@ -518,91 +695,80 @@ public class CoveoTransportHandler implements TransportHandler {
     return document.toString();
   }
 
-  private Optional<ReplicationQueue> getReplicationQueue() {
-    Agent agent = agentManager.getAgents().get(coveoQueueService.getAgentId());
-    if (agent != null && agent.getQueue() != null) {
-      ReplicationQueue queue = agent.getQueue();
-
-      return Optional.ofNullable(queue);
-    }
-
-    return Optional.empty();
-  }
-
   /**
    * Check if is the first entry of the queue.
    *
+   * @param queue replication queue of the agent
    * @return true if is the first entry.
    */
-  private boolean isFirstEntryOfBatch() {
-    Optional<ReplicationQueue> queue = getReplicationQueue();
-    if (queue.isPresent()) {
-      Map<String, BatchRequest> queueMap = coveoQueueService.getQueueMap();
-
-      // Check if the queue exist
-      if (queueMap != null && queueMap.containsKey(queue.get().getName())) {
-        return false;
-      } else if (queueMap != null) {
-        queueMap.put(queue.get().getName(), new BatchRequest());
-        return true;
-      }
+  private boolean isFirstEntryOfBatch(Optional<ReplicationQueue> queue) {
+    if (queue.isPresent() && coveoQueueService.getBatchRegistry() != null) {
+      return coveoQueueService.startBatch(queue.get().getName());
     }
 
     return false;
   }
 
   /**
-   * Check if is the last entry of the queue.
+   * Check if is the last entry of the queue. The decision is taken by the
+   * {@link com.mcplusa.coveo.connector.aem.indexing.batch.QueueDrainTracker}, so
+   * the queue is not listed on every delivery. A batch still inside the debounce
+   * window is not pushed at the end of the queue, it is left to the
+   * {@link BatchFlushCronJob}.
    *
+   * @param queue replication queue of the agent
    * @return true if its the last entry
    */
-  private boolean isLastEntryOfBatch() {
-    Optional<ReplicationQueue> queue = getReplicationQueue();
-    if (queue.isPresent()) {
-      Map<String, BatchRequest> queueMap = coveoQueueService.getQueueMap();
-
-      // If it the last item, remove it from the Map and return true
-      if (queueMap != null && queue.get().entries().size() <= 1) {
-        return true;
-      }
+  private boolean isLastEntryOfBatch(Optional<ReplicationQueue> queue) {
+    if (queue.isPresent() && coveoQueueService.getBatchRegistry() != null) {
+      return coveoQueueService.getDrainTracker().isLastEntry(queue.get())
+          && !coveoQueueService.isDebounced(queue.get().getName());
     }
 
     return false;
   }
 
+  /**
+   * Push the batch before the end of the queue if it reached the limits of the
+   * flush policy. The batch is uploaded in the background while the queue keeps
+   * building the next one; a failed push keeps the batch, so it is retried on
+   * the next flush.
+   *
+   * @param queue replication queue of the agent
+   * @param log   ReplicationLog
+   */
+  private void pushIfFlushRequired(Optional<ReplicationQueue> queue, ReplicationLog log) {
+    if (queue.isPresent() && coveoQueueService.isFlushRequired(queue.get().getName())) {
+      String queueName = queue.get().getName();
+      try {
+        coveoQueueService.flushAsync(queueName).thenAccept(batchResponse -> {
+          if (batchResponse == null || batchResponse.getStatusLine().getStatusCode() != HttpStatus.SC_ACCEPTED) {
+            LOG.error("Could not push batch of documents of queue {}: {}", queueName, batchResponse);
+          }
+        });
+        log.info(getClass().getSimpleName() + ": Batch of documents queued for upload");
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        log.error(getClass().getSimpleName() + ": Could not push batch of documents");
+      }
+    }
+  }
+
   /**
    * Get a FileContainer and push the batch file to the S3 instance.
    *
-   * @param batchRequest contains the list of documents to add/update/delete.
-   * @return the fileId of the FileContainer.
+   * @param queue replication queue of the agent
+   * @param log   ReplicationLog
+   * @return the response of the batch push.
    */
-  private CoveoResponse pushToFileContainer(ReplicationLog log) {
-    Optional<ReplicationQueue> queue = getReplicationQueue();
+  private CoveoResponse pushToFileContainer(Optional<ReplicationQueue> queue, ReplicationLog log) {
     if (queue.isPresent()) {
-      BatchRequest batchRequest = this.coveoQueueService.getQueueMap().get(queue.get().getName());
-      int addOrUpdateSize = batchRequest.getAddOrUpdate().size();
-      int deleteSize = batchRequest.getDelete().size();
-      log.debug("Batch: Add size " + addOrUpdateSize + " | Delete size " + deleteSize);
-
-      Gson gson = new GsonBuilder().disableHtmlEscaping().create();
-      String json = gson.toJson(batchRequest);
-
-      try (InputStream is = new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8))) {
-
-        CoveoPushClient client = coveoService.getClient();
-        FileContainerResponse fileContainer = client.getFileContainer();
-
-        CoveoResponse response = client.pushFileOnS3(is, fileContainer.getUploadUri());
-        if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
-          log.info("Batch of files pushed");
-          this.coveoQueueService.getQueueMap().remove(queue.get().getName());
-          return this.coveoService.getClient().pushDocumentsBatch(fileContainer.getFileId());
-        }
-
-        throw new CoveoResponseException(response);
-      } catch (Exception e) {
-        LOG.error("Could not push the data to the file Container", e);
+      CoveoResponse response = this.coveoQueueService.flush(queue.get().getName());
+      if (response != null) {
+        log.info("Batch of files pushed");
       }
+
+      return response;
     }
 
     return null;
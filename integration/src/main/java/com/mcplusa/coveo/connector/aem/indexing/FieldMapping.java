@@ -0,0 +1,213 @@
+package com.mcplusa.coveo.connector.aem.indexing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Maps the content of an {@link IndexEntry} to the metadata of a Coveo document, compiled once per
+ * primary type from its {@link com.mcplusa.coveo.connector.aem.indexing.config.CoveoIndexConfiguration}.
+ *
+ * <p>Every key is turned into a valid Coveo field name: only lowercase letters (a-z), numbers
+ * (0-9) and underscores. The field name of a key is computed once and cached. A key can be renamed
+ * and its value coerced to another type with a rule {@code key=field} or {@code key=field:TYPE}
+ * (an empty field keeps the name of the key), and a key can be excluded from the metadata. The
+ * keys pushed outside of the metadata, like the body or the permissions, are always excluded.
+ */
+public class FieldMapping {
+
+  private static final Logger LOG = LoggerFactory.getLogger(FieldMapping.class);
+
+  private static final Pattern WHITESPACES = Pattern.compile("\\s+");
+
+  private static final Pattern SPECIAL_CHARACTERS = Pattern.compile("\\W");
+
+  /** Max number of field names cached, the names of other keys are computed every time. */
+  private static final int MAX_CACHED_NAMES = 10000;
+
+  /** Keys pushed outside of the metadata, or not pushed at all. */
+  private static final List<String> DEFAULT_EXCLUDED = Arrays.asList("content", "documentid", "title", "acl",
+      "compressionType");
+
+  /** Mapping of the primary types without configuration. */
+  public static final FieldMapping DEFAULT = new FieldMapping(Collections.emptyMap(), Collections.emptySet());
+
+  /**
+   * Type a value is coerced to.
+   */
+  public enum FieldType {
+    STRING, LONG, DOUBLE, BOOLEAN;
+
+    Object coerce(Object value) {
+      if (value instanceof Collection) {
+        List<Object> values = new ArrayList<>();
+        for (Object item : (Collection<?>) value) {
+          values.add(coerce(item));
+        }
+        return values;
+      }
+
+      switch (this) {
+        case STRING:
+          return String.valueOf(value);
+        case LONG:
+          return value instanceof Number ? ((Number) value).longValue() : Long.valueOf(String.valueOf(value).trim());
+        case DOUBLE:
+          return value instanceof Number ? ((Number) value).doubleValue()
+              : Double.valueOf(String.valueOf(value).trim());
+        case BOOLEAN:
+          return value instanceof Boolean ? value : Boolean.valueOf(String.valueOf(value).trim());
+        default:
+          return value;
+      }
+    }
+  }
+
+  private final Map<String, Rule> rules;
+
+  private final Set<String> excluded;
+
+  private final Map<String, String> names = new ConcurrentHashMap<>();
+
+  private FieldMapping(Map<String, Rule> rules, Set<String> excluded) {
+    this.rules = rules;
+    this.excluded = new HashSet<>(DEFAULT_EXCLUDED);
+    this.excluded.addAll(excluded);
+  }
+
+  /**
+   * Compile the mapping of a primary type.
+   *
+   * @param mappings rules formatted as key=field or key=field:TYPE, may be null
+   * @param excluded keys left out of the metadata, may be null
+   * @return the mapping
+   */
+  public static FieldMapping compile(String[] mappings, String[] excluded) {
+    Map<String, Rule> rules = new HashMap<>();
+    if (mappings != null) {
+      for (String mapping : mappings) {
+        int separator = mapping != null ? mapping.lastIndexOf('=') : -1;
+        if (separator <= 0) {
+          LOG.warn("Invalid field mapping {}, expected key=field or key=field:TYPE", mapping);
+          continue;
+        }
+
+        String key = mapping.substring(0, separator).trim();
+        String target = mapping.substring(separator + 1).trim();
+        FieldType type = null;
+        int typeSeparator = target.lastIndexOf(':');
+        if (typeSeparator >= 0) {
+          try {
+            type = FieldType.valueOf(target.substring(typeSeparator + 1).trim().toUpperCase());
+          } catch (IllegalArgumentException e) {
+            LOG.warn("Unknown type in field mapping {}", mapping);
+            continue;
+          }
+          target = target.substring(0, typeSeparator).trim();
+        }
+
+        rules.put(key, new Rule(sanitize(target.isEmpty() ? key : target), type));
+      }
+    }
+
+    Set<String> excludedKeys = new HashSet<>();
+    if (excluded != null) {
+      for (String key : excluded) {
+        if (StringUtils.isNotBlank(key)) {
+          excludedKeys.add(key.trim());
+        }
+      }
+    }
+    return new FieldMapping(rules, excludedKeys);
+  }
+
+  /**
+   * Map the content of an entry to the metadata of the document, in a single pass.
+   *
+   * @param content content of the entry
+   * @return the metadata
+   */
+  public Map<String, Object> map(Map<String, Object> content) {
+    Map<String, Object> metadata = new HashMap<>(content.size() * 4 / 3 + 1);
+    for (Map.Entry<String, Object> entry : content.entrySet()) {
+      String key = entry.getKey();
+      Object value = entry.getValue();
+      if (value == null || excluded.contains(key)) {
+        continue;
+      }
+
+      Rule rule = rules.get(key);
+      if (rule == null) {
+        metadata.put(getFieldName(key), value);
+      } else {
+        metadata.put(rule.field, rule.coerce(key, value));
+      }
+    }
+    return metadata;
+  }
+
+  /**
+   * Get the Coveo field name of a key.
+   *
+   * @param key key of the content
+   * @return a valid field name for Coveo
+   */
+  public String getFieldName(String key) {
+    String name = names.get(key);
+    if (name == null) {
+      name = sanitize(key);
+      if (names.size() < MAX_CACHED_NAMES) {
+        names.put(key, name);
+      }
+    }
+    return name;
+  }
+
+  /**
+   * Removes all special characters, only allow lowercase letters (a-z), numbers
+   * (0-9), and underscores.
+   *
+   * @param fieldName value to be "cleaned"
+   * @return a valid field name for Coveo
+   */
+  static String sanitize(String fieldName) {
+    String name = WHITESPACES.matcher(fieldName).replaceAll("_");
+    return SPECIAL_CHARACTERS.matcher(name).replaceAll("").toLowerCase();
+  }
+
+  private static final class Rule {
+
+    private final String field;
+
+    private final FieldType type;
+
+    private Rule(String field, FieldType type) {
+      this.field = field;
+      this.type = type;
+    }
+
+    private Object coerce(String key, Object value) {
+      if (type == null) {
+        return value;
+      }
+
+      try {
+        return type.coerce(value);
+      } catch (NumberFormatException e) {
+        LOG.debug("Could not convert {} to {}, keeping the value as is", key, type);
+        return value;
+      }
+    }
+  }
+}
@@ -0,0 +1,286 @@
+package com.mcplusa.coveo.connector.aem.indexing;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the {@link IndexEntry} passed from the {@link CoveoIndexContentBuilder} to the
+ * {@link CoveoTransportHandler} through the replication queue.
+ *
+ * <p>The entry is written in a compact binary format: every string is prefixed with its length,
+ * so the Base64 body of a page is copied as is instead of being escaped as JSON and parsed again.
+ * The values are read back with the same types the JSON format gives, so both formats produce the
+ * same {@link com.mcplusa.coveo.sdk.pushapi.model.Document}. The format is told by the content
+ * type of the replication content, so entries queued as JSON before an upgrade can still be read.
+ */
+public final class IndexEntryCodec {
+
+  /** Content type of the entries written in the binary format. */
+  public static final String CONTENT_TYPE = "application/x-coveo-index-entry";
+
+  /** Content type of the entries written as JSON by the previous versions. */
+  public static final String JSON_CONTENT_TYPE = "text/plain";
+
+  private static final int MAGIC = 0x43494501;
+
+  private static final byte NULL = 0;
+  private static final byte STRING = 1;
+  private static final byte INT = 2;
+  private static final byte LONG = 3;
+  private static final byte DOUBLE = 4;
+  private static final byte TRUE = 5;
+  private static final byte FALSE = 6;
+  private static final byte LIST = 7;
+  private static final byte MAP = 8;
+  private static final byte JSON = 9;
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  private IndexEntryCodec() {
+    // static methods only
+  }
+
+  /**
+   * Write an entry in the binary format.
+   *
+   * @param entry entry to write
+   * @param out   stream to write to, not closed
+   * @throws IOException if the entry could not be written
+   */
+  public static void write(IndexEntry entry, OutputStream out) throws IOException {
+    DataOutputStream data = new DataOutputStream(out);
+    data.writeInt(MAGIC);
+    writeString(data, entry.getIndex());
+    writeString(data, entry.getType());
+    writeString(data, entry.getId());
+    writeMap(data, entry.getContent());
+    data.flush();
+  }
+
+  /**
+   * Read an entry in the format given by the content type.
+   *
+   * @param contentType content type of the replication content, its parameters are ignored
+   * @param in          stream to read from, closed once the entry is read
+   * @return the entry
+   * @throws IOException if the entry could not be read
+   */
+  public static IndexEntry read(String contentType, InputStream in) throws IOException {
+    if (!isBinary(contentType)) {
+      return MAPPER.readValue(in, IndexEntry.class);
+    }
+
+    try (DataInputStream data = new DataInputStream(new BufferedInputStream(in))) {
+      if (data.readInt() != MAGIC) {
+        throw new IOException("Unknown format of the index entry");
+      }
+
+      IndexEntry entry = new IndexEntry();
+      entry.setIndex(readString(data));
+      entry.setType(readString(data));
+      entry.setId(readString(data));
+      entry.setContent(readMap(data));
+      return entry;
+    }
+  }
+
+  /**
+   * Copy an entry with the values it has once written and read back, without
+   * serializing it, so an entry handed over in memory gives the same document
+   * as an entry read from the replication content.
+   *
+   * @param entry entry to copy
+   * @return the copy of the entry
+   * @throws IOException if a value could not be converted
+   */
+  public static IndexEntry copy(IndexEntry entry) throws IOException {
+    IndexEntry copy = new IndexEntry();
+    copy.setIndex(entry.getIndex());
+    copy.setType(entry.getType());
+    copy.setId(entry.getId());
+    copy.setContent(copyMap(entry.getContent()));
+    return copy;
+  }
+
+  /**
+   * Check if a replication content is written in the binary format.
+   *
+   * @param contentType content type of the replication content
+   * @return true for the binary format, false for JSON
+   */
+  public static boolean isBinary(String contentType) {
+    if (contentType == null) {
+      return false;
+    }
+
+    int parameters = contentType.indexOf(';');
+    return CONTENT_TYPE.equals(parameters < 0 ? contentType.trim() : contentType.substring(0, parameters).trim());
+  }
+
+  private static void writeValue(DataOutputStream out, Object value) throws IOException {
+    if (value == null) {
+      out.writeByte(NULL);
+    } else if (value instanceof String) {
+      out.writeByte(STRING);
+      writeString(out, (String) value);
+    } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+      out.writeByte(INT);
+      out.writeInt(((Number) value).intValue());
+    } else if (value instanceof Long) {
+      // JSON reads back the numbers that fit in an int as Integer
+      long number = (Long) value;
+      if (number == (int) number) {
+        out.writeByte(INT);
+        out.writeInt((int) number);
+      } else {
+        out.writeByte(LONG);
+        out.writeLong(number);
+      }
+    } else if (value instanceof Double && !((Double) value).isNaN() && !((Double) value).isInfinite()) {
+      out.writeByte(DOUBLE);
+      out.writeDouble((Double) value);
+    } else if (value instanceof Boolean) {
+      out.writeByte((Boolean) value ? TRUE : FALSE);
+    } else if (value instanceof Collection) {
+      writeList(out, (Collection<?>) value);
+    } else if (value instanceof Object[]) {
+      writeList(out, Arrays.asList((Object[]) value));
+    } else if (value instanceof Map) {
+      out.writeByte(MAP);
+      writeMap(out, (Map<?, ?>) value);
+    } else {
+      // any other value is kept exactly as JSON would write it
+      out.writeByte(JSON);
+      writeString(out, MAPPER.writeValueAsString(value));
+    }
+  }
+
+  private static Object readValue(DataInputStream in) throws IOException {
+    byte tag = in.readByte();
+    switch (tag) {
+      case NULL:
+        return null;
+      case STRING:
+        return readString(in);
+      case INT:
+        return in.readInt();
+      case LONG:
+        return in.readLong();
+      case DOUBLE:
+        return in.readDouble();
+      case TRUE:
+        return Boolean.TRUE;
+      case FALSE:
+        return Boolean.FALSE;
+      case LIST:
+        int size = in.readInt();
+        List<Object> list = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+          list.add(readValue(in));
+        }
+        return list;
+      case MAP:
+        return readMap(in);
+      case JSON:
+        return MAPPER.readValue(readString(in), Object.class);
+      default:
+        throw new IOException("Unknown value type " + tag + " in the index entry");
+    }
+  }
+
+  private static Object copyValue(Object value) throws IOException {
+    if (value == null || value instanceof String || value instanceof Integer || value instanceof Boolean) {
+      return value;
+    } else if (value instanceof Short || value instanceof Byte) {
+      return ((Number) value).intValue();
+    } else if (value instanceof Long) {
+      long number = (Long) value;
+      return number == (int) number ? Integer.valueOf((int) number) : value;
+    } else if (value instanceof Double && !((Double) value).isNaN() && !((Double) value).isInfinite()) {
+      return value;
+    } else if (value instanceof Collection) {
+      return copyList((Collection<?>) value);
+    } else if (value instanceof Object[]) {
+      return copyList(Arrays.asList((Object[]) value));
+    } else if (value instanceof Map) {
+      return copyMap((Map<?, ?>) value);
+    } else {
+      return MAPPER.readValue(MAPPER.writeValueAsString(value), Object.class);
+    }
+  }
+
+  private static List<Object> copyList(Collection<?> values) throws IOException {
+    List<Object> list = new ArrayList<>(values.size());
+    for (Object value : values) {
+      list.add(copyValue(value));
+    }
+    return list;
+  }
+
+  private static Map<String, Object> copyMap(Map<?, ?> map) throws IOException {
+    Map<String, Object> copy = new LinkedHashMap<>();
+    for (Map.Entry<?, ?> entry : map.entrySet()) {
+      copy.put(String.valueOf(entry.getKey()), copyValue(entry.getValue()));
+    }
+    return copy;
+  }
+
+  private static void writeList(DataOutputStream out, Collection<?> values) throws IOException {
+    out.writeByte(LIST);
+    out.writeInt(values.size());
+    for (Object value : values) {
+      writeValue(out, value);
+    }
+  }
+
+  private static void writeMap(DataOutputStream out, Map<?, ?> map) throws IOException {
+    out.writeInt(map.size());
+    for (Map.Entry<?, ?> entry : map.entrySet()) {
+      writeString(out, String.valueOf(entry.getKey()));
+      writeValue(out, entry.getValue());
+    }
+  }
+
+  private static Map<String, Object> readMap(DataInputStream in) throws IOException {
+    int size = in.readInt();
+    Map<String, Object> map = new LinkedHashMap<>();
+    for (int i = 0; i < size; i++) {
+      map.put(readString(in), readValue(in));
+    }
+    return map;
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    if (value == null) {
+      out.writeInt(-1);
+      return;
+    }
+
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0) {
+      return null;
+    }
+
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,114 @@
+package com.mcplusa.coveo.connector.aem.indexing;
+
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands the {@link IndexEntry} built by the {@link CoveoIndexContentBuilder} over to the
+ * {@link CoveoTransportHandler} in memory, so the handler does not read it back from the
+ * replication content.
+ *
+ * <p>The entry is still written to the replication content; the handoff only adds a handle to its
+ * content type. The handler takes the entry by its handle, and reads the replication content when
+ * the entry is not there anymore: it was evicted because the handoff is full, collected because
+ * memory is low, already taken by a previous attempt, or the queue was persisted across a restart.
+ * The handles contain an id of the instance, so a handle queued before a restart never matches an
+ * entry built after it.
+ */
+public class IndexEntryHandoff {
+
+  private static final String HANDLE_PARAMETER = "handle=";
+
+  private final int maxEntries;
+
+  private final String instanceId = UUID.randomUUID().toString();
+
+  private final AtomicLong counter = new AtomicLong();
+
+  private final Map<String, SoftReference<IndexEntry>> entries;
+
+  /**
+   * Create the handoff.
+   *
+   * @param maxEntries max number of entries kept, 0 or less to disable the handoff
+   */
+  public IndexEntryHandoff(int maxEntries) {
+    this.maxEntries = maxEntries;
+    this.entries = new LinkedHashMap<String, SoftReference<IndexEntry>>() {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, SoftReference<IndexEntry>> eldest) {
+        return size() > IndexEntryHandoff.this.maxEntries;
+      }
+    };
+  }
+
+  public boolean isEnabled() {
+    return maxEntries > 0;
+  }
+
+  /**
+   * Keep a built entry until the handler takes it.
+   *
+   * @param entry entry written to the replication content
+   * @return the content type of the replication content, with the handle of the entry
+   * @throws IOException if the entry could not be copied
+   */
+  public String register(IndexEntry entry) throws IOException {
+    if (!isEnabled()) {
+      return IndexEntryCodec.CONTENT_TYPE;
+    }
+
+    // keep the values the handler would read from the replication content
+    IndexEntry copy = IndexEntryCodec.copy(entry);
+    String handle = instanceId + "-" + counter.incrementAndGet();
+    synchronized (entries) {
+      entries.put(handle, new SoftReference<>(copy));
+    }
+    return IndexEntryCodec.CONTENT_TYPE + ";" + HANDLE_PARAMETER + handle;
+  }
+
+  /**
+   * Take the entry of a replication content.
+   *
+   * @param contentType content type of the replication content
+   * @return the entry, null if it has to be read from the replication content
+   */
+  public IndexEntry take(String contentType) {
+    String handle = getHandle(contentType);
+    if (handle == null) {
+      return null;
+    }
+
+    SoftReference<IndexEntry> reference;
+    synchronized (entries) {
+      reference = entries.remove(handle);
+    }
+    return reference != null ? reference.get() : null;
+  }
+
+  public int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  private static String getHandle(String contentType) {
+    if (contentType == null) {
+      return null;
+    }
+
+    for (String parameter : contentType.split(";")) {
+      String value = parameter.trim();
+      if (value.startsWith(HANDLE_PARAMETER)) {
+        return value.substring(HANDLE_PARAMETER.length());
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,140 @@
+package com.mcplusa.coveo.connector.aem.indexing;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Carries the permission levels of a node in the {@link IndexEntry} as a chain: one list of
+ * permissions per level, ordered from the node to its farthest ancestor with a policy.
+ *
+ * <p>Every permission is a string {@code A|D:G|U:principalName}, for allowed or denied, group or
+ * user. The permissions of a level are sorted, so two nodes inheriting the same policies get equal
+ * chains, whatever the order the policies were read in. A chain is a plain list of strings, written
+ * as is by the {@link IndexEntryCodec} and as JSON, and it is the key the {@link PermissionChainCache}
+ * shares the converted permissions with.
+ */
+public final class PermissionChain {
+
+  private static final String ALLOW = "A";
+  private static final String DENY = "D";
+  private static final String GROUP = "G";
+  private static final String USER = "U";
+  private static final String SEPARATOR = ":";
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  private PermissionChain() {
+    // static methods only
+  }
+
+  /**
+   * Build the chain of the permission levels of a node.
+   *
+   * @param levels permission levels read from the node and its ancestors
+   * @return the chain
+   */
+  public static List<List<String>> encode(List<NodePermissionLevel> levels) {
+    List<NodePermissionLevel> ordered = new ArrayList<>(levels);
+    ordered.sort(Comparator.comparingInt(NodePermissionLevel::getNodeLevel));
+
+    List<List<String>> chain = new ArrayList<>(ordered.size());
+    for (NodePermissionLevel level : ordered) {
+      List<String> permissions = new ArrayList<>(level.getPermissions().size());
+      for (Permission permission : level.getPermissions()) {
+        permissions.add(encode(permission));
+      }
+      Collections.sort(permissions);
+      chain.add(permissions);
+    }
+    return chain;
+  }
+
+  /**
+   * Read the chain of an entry. Entries built by the previous versions carry the permission levels
+   * as a JSON string, they are turned into the same chain.
+   *
+   * @param acl value of the entry
+   * @return the chain
+   * @throws IOException if the value is not a chain
+   */
+  public static List<List<String>> decode(Object acl) throws IOException {
+    Object value = acl instanceof String ? MAPPER.readValue((String) acl, List.class) : acl;
+    if (!(value instanceof Collection)) {
+      throw new IOException("Invalid permissions in the index entry");
+    }
+
+    Collection<?> items = (Collection<?>) value;
+    if (!items.isEmpty() && items.iterator().next() instanceof Map) {
+      return encode(readLevels(items));
+    }
+
+    List<List<String>> chain = new ArrayList<>(items.size());
+    for (Object item : items) {
+      if (!(item instanceof Collection)) {
+        throw new IOException("Invalid permission level in the index entry");
+      }
+      List<String> permissions = new ArrayList<>(((Collection<?>) item).size());
+      for (Object permission : (Collection<?>) item) {
+        permissions.add(String.valueOf(permission));
+      }
+      chain.add(permissions);
+    }
+    return chain;
+  }
+
+  /**
+   * Read a permission of the chain.
+   *
+   * @param permission permission of the chain
+   * @return the permission, null if it is malformed
+   */
+  public static Permission toPermission(String permission) {
+    String[] parts = permission.split(SEPARATOR, 3);
+    if (parts.length < 3 || parts[2].isEmpty()) {
+      return null;
+    }
+
+    Permission.PERMISSION_TYPE type = DENY.equals(parts[0])
+        ? Permission.PERMISSION_TYPE.DENY : Permission.PERMISSION_TYPE.ALLOW;
+    return new Permission(parts[2], type, GROUP.equals(parts[1]));
+  }
+
+  private static String encode(Permission permission) {
+    return (permission.getType() == Permission.PERMISSION_TYPE.DENY ? DENY : ALLOW) + SEPARATOR
+        + (permission.isGroup() ? GROUP : USER) + SEPARATOR + permission.getPrincipalName();
+  }
+
+  /** Read the levels as the previous versions wrote them with Gson. */
+  private static List<NodePermissionLevel> readLevels(Collection<?> items) throws IOException {
+    List<NodePermissionLevel> levels = new ArrayList<>(items.size());
+    for (Object item : items) {
+      if (!(item instanceof Map)) {
+        throw new IOException("Invalid permission level in the index entry");
+      }
+      Map<?, ?> level = (Map<?, ?>) item;
+      Object nodeLevel = level.get("nodeLevel");
+      Object permissions = level.get("permissions");
+
+      List<Permission> levelPermissions = new ArrayList<>();
+      if (permissions instanceof Collection) {
+        for (Object permission : (Collection<?>) permissions) {
+          if (permission instanceof Map) {
+            Map<?, ?> values = (Map<?, ?>) permission;
+            levelPermissions.add(new Permission(String.valueOf(values.get("principalName")),
+                "ALLOW".equals(values.get("type")) ? Permission.PERMISSION_TYPE.ALLOW : Permission.PERMISSION_TYPE.DENY,
+                Boolean.TRUE.equals(values.get("isGroup"))));
+          }
+        }
+      }
+      levels.add(new NodePermissionLevel(nodeLevel instanceof Number ? ((Number) nodeLevel).intValue() : 0,
+          levelPermissions));
+    }
+    return levels;
+  }
+}
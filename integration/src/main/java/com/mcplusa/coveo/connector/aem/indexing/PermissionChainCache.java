@@ -0,0 +1,133 @@
+package com.mcplusa.coveo.connector.aem.indexing;
+
+import com.mcplusa.coveo.sdk.pushapi.model.IdentityModel;
+import com.mcplusa.coveo.sdk.pushapi.model.IdentityType;
+import com.mcplusa.coveo.sdk.pushapi.model.PermissionLevelsModel;
+import com.mcplusa.coveo.sdk.pushapi.model.PermissionModel;
+import com.mcplusa.coveo.sdk.pushapi.model.PermissionsSetsModel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Converts the {@link PermissionChain} of the entries to the permissions of the Coveo documents.
+ *
+ * <p>The documents of a site mostly inherit the same few policies, so the permissions converted for
+ * a chain are kept and shared by every document with an equal chain. The least recently used chains
+ * are dropped once the cache is full, and all of them when the identity providers change. The
+ * shared permissions can not be modified.
+ */
+public class PermissionChainCache {
+
+  private final int maxChains;
+
+  private final Map<List<List<String>>, List<PermissionModel>> chains;
+
+  private String userIdentityProvider;
+
+  private String groupIdentityProvider;
+
+  /**
+   * Create the cache.
+   *
+   * @param maxChains max number of chains kept
+   */
+  public PermissionChainCache(int maxChains) {
+    this.maxChains = maxChains;
+    this.chains = new LinkedHashMap<List<List<String>>, List<PermissionModel>>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<List<List<String>>, List<PermissionModel>> eldest) {
+        return size() > PermissionChainCache.this.maxChains;
+      }
+    };
+  }
+
+  /**
+   * Get the permissions of a chain.
+   *
+   * @param chain                 chain of the entry
+   * @param userIdentityProvider  identity provider of the users
+   * @param groupIdentityProvider identity provider of the groups
+   * @return the permissions of the document, shared with the documents of equal chains
+   */
+  public List<PermissionModel> getPermissions(List<List<String>> chain, String userIdentityProvider,
+      String groupIdentityProvider) {
+    synchronized (chains) {
+      if (!Objects.equals(this.userIdentityProvider, userIdentityProvider)
+          || !Objects.equals(this.groupIdentityProvider, groupIdentityProvider)) {
+        chains.clear();
+        this.userIdentityProvider = userIdentityProvider;
+        this.groupIdentityProvider = groupIdentityProvider;
+      }
+
+      List<PermissionModel> permissions = chains.get(chain);
+      if (permissions != null) {
+        return permissions;
+      }
+    }
+
+    List<PermissionModel> permissions = convert(chain, userIdentityProvider, groupIdentityProvider);
+    synchronized (chains) {
+      if (Objects.equals(this.userIdentityProvider, userIdentityProvider)
+          && Objects.equals(this.groupIdentityProvider, groupIdentityProvider)) {
+        List<PermissionModel> cached = chains.putIfAbsent(chain, permissions);
+        if (cached != null) {
+          return cached;
+        }
+      }
+    }
+    return permissions;
+  }
+
+  public int size() {
+    synchronized (chains) {
+      return chains.size();
+    }
+  }
+
+  private static List<PermissionModel> convert(List<List<String>> chain, String userIdentityProvider,
+      String groupIdentityProvider) {
+    List<PermissionModel> permissions = new ArrayList<>(Math.max(chain.size(), 1));
+    for (List<String> level : chain) {
+      PermissionLevelsModel permissionLevel =
+          new PermissionLevelsModel("Permission Level " + (permissions.size() + 1));
+
+      PermissionsSetsModel psm = new PermissionsSetsModel();
+      for (String value : level) {
+        Permission permission = PermissionChain.toPermission(value);
+        if (permission == null) {
+          continue;
+        }
+
+        IdentityModel identity = permission.isGroup()
+            ? new IdentityModel(permission.getPrincipalName(), IdentityType.VIRTUAL_GROUP, groupIdentityProvider)
+            : new IdentityModel(permission.getPrincipalName(), IdentityType.USER, userIdentityProvider);
+        if (permission.getType() == Permission.PERMISSION_TYPE.ALLOW) {
+          psm.addAllowedPermission(identity);
+        } else {
+          psm.addDeniedPermission(identity);
+        }
+      }
+
+      psm.setAllowAnonymous(false);
+
+      permissionLevel.addPermissionSet(psm);
+      permissions.add(permissionLevel);
+    }
+
+    if (permissions.isEmpty()) {
+      PermissionLevelsModel permissionLevel = new PermissionLevelsModel("Permission Level 1");
+      PermissionsSetsModel psm = new PermissionsSetsModel();
+      psm.setAllowAnonymous(true);
+      permissionLevel.addPermissionSet(psm);
+      permissions.add(permissionLevel);
+    }
+
+    return Collections.unmodifiableList(permissions);
+  }
+}
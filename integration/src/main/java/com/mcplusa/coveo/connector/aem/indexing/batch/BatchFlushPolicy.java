@@ -0,0 +1,106 @@
+package com.mcplusa.coveo.connector.aem.indexing.batch;
+
+/**
+ * Decides when a {@link PendingBatch} has to be pushed to Coveo, independently of the position of
+ * the replication queue. A limit lower or equal to 0 is disabled.
+ *
+ * <p>With a debounce window, a batch that received a document less than the window ago is not
+ * pushed at the end of the queue: it waits until no document arrived for the whole window, so a
+ * page activated several times in a row is only pushed once.
+ */
+public class BatchFlushPolicy {
+
+  private final int maxDocuments;
+
+  private final long maxSize;
+
+  private final long maxAge;
+
+  private final long debounceWindow;
+
+  /**
+   * BatchFlushPolicy Constructor.
+   *
+   * @param maxDocuments max amount of documents of a batch
+   * @param maxSize      max size in bytes of the documents of a batch
+   * @param maxAge       max time in milliseconds a batch can wait before being pushed
+   */
+  public BatchFlushPolicy(int maxDocuments, long maxSize, long maxAge) {
+    this(maxDocuments, maxSize, maxAge, 0);
+  }
+
+  /**
+   * BatchFlushPolicy Constructor.
+   *
+   * @param maxDocuments   max amount of documents of a batch
+   * @param maxSize        max size in bytes of the documents of a batch
+   * @param maxAge         max time in milliseconds a batch can wait before being pushed
+   * @param debounceWindow time in milliseconds without new documents before a batch is pushed at
+   *                       the end of the queue
+   */
+  public BatchFlushPolicy(int maxDocuments, long maxSize, long maxAge, long debounceWindow) {
+    this.maxDocuments = maxDocuments;
+    this.maxSize = maxSize;
+    this.maxAge = maxAge;
+    this.debounceWindow = debounceWindow;
+  }
+
+  /**
+   * Check if the batch reached the amount of documents or size limits.
+   *
+   * @param batch batch to check
+   * @return true if the batch should be pushed now
+   */
+  public boolean isFull(PendingBatch batch) {
+    if (batch == null || batch.isEmpty()) {
+      return false;
+    }
+
+    return (maxDocuments > 0 && batch.getDocumentCount() >= maxDocuments)
+        || (maxSize > 0 && batch.getSize() >= maxSize);
+  }
+
+  /**
+   * Check if the batch has been waiting longer than the max age, or did not receive any document
+   * for the whole debounce window.
+   *
+   * @param batch batch to check
+   * @param now   current time in milliseconds
+   * @return true if the batch should be pushed now
+   */
+  public boolean isStale(PendingBatch batch, long now) {
+    if (batch == null || batch.isEmpty()) {
+      return false;
+    }
+
+    return (maxAge > 0 && now - batch.getCreatedAt() >= maxAge)
+        || (debounceWindow > 0 && isSettled(batch, now));
+  }
+
+  /**
+   * Check if the batch did not receive any document for the whole debounce window.
+   *
+   * @param batch batch to check
+   * @param now   current time in milliseconds
+   * @return true if the batch can be pushed at the end of the queue
+   */
+  public boolean isSettled(PendingBatch batch, long now) {
+    return batch == null || debounceWindow <= 0 || now - batch.getUpdatedAt() >= debounceWindow;
+  }
+
+  public int getMaxDocuments() {
+    return maxDocuments;
+  }
+
+  public long getMaxSize() {
+    return maxSize;
+  }
+
+  public long getMaxAge() {
+    return maxAge;
+  }
+
+  public long getDebounceWindow() {
+    return debounceWindow;
+  }
+}
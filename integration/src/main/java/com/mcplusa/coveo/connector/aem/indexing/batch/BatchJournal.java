@@ -0,0 +1,196 @@
+package com.mcplusa.coveo.connector.aem.indexing.batch;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Write-ahead journal of the pending batches. Every batch is a segment in the directory of its
+ * queue, made of two files ({@code <createdAt>-<sequence>.add} and {@code .del}) with one JSON
+ * record per line. The segments left by a previous activation are loaded with {@link #replay()}.
+ */
+public class BatchJournal {
+
+  private static final Logger LOG = LoggerFactory.getLogger(BatchJournal.class);
+
+  private static final String ADD_EXTENSION = ".add";
+  private static final String DELETE_EXTENSION = ".del";
+  private static final String ENCODING = "UTF-8";
+
+  private final File directory;
+
+  private final AtomicLong sequence = new AtomicLong();
+
+  public BatchJournal(File directory) {
+    this.directory = directory;
+  }
+
+  public File getDirectory() {
+    return directory;
+  }
+
+  /**
+   * Create a new segment for the queue. The files are created when the first document is added.
+   *
+   * @param queueName name of the replication queue
+   * @return an empty batch
+   */
+  public PendingBatch create(String queueName) {
+    File queueDirectory = new File(directory, encode(queueName));
+    long createdAt = System.currentTimeMillis();
+    String name;
+    do {
+      name = createdAt + "-" + sequence.incrementAndGet();
+    } while (new File(queueDirectory, name + ADD_EXTENSION).exists()
+        || new File(queueDirectory, name + DELETE_EXTENSION).exists());
+
+    return new PendingBatch(new File(queueDirectory, name + ADD_EXTENSION),
+        new File(queueDirectory, name + DELETE_EXTENSION), createdAt);
+  }
+
+  /**
+   * Load the segments found in the journal. The segments of the same queue are merged into the
+   * oldest one, in order, and a record left incomplete by a crash is dropped.
+   *
+   * @return the pending batch of each queue
+   * @throws IOException if the journal could not be read
+   */
+  public Map<String, PendingBatch> replay() throws IOException {
+    Map<String, PendingBatch> batches = new LinkedHashMap<>();
+    File[] queueDirectories = directory.listFiles(File::isDirectory);
+    if (queueDirectories == null) {
+      return batches;
+    }
+
+    for (File queueDirectory : queueDirectories) {
+      String[] segments = queueDirectory.list((dir, name) -> name.endsWith(ADD_EXTENSION)
+          || name.endsWith(DELETE_EXTENSION));
+      if (segments == null) {
+        continue;
+      }
+
+      // a segment being compacted when the JVM stopped is complete without its compacted copy
+      File[] compacted = queueDirectory.listFiles((dir, name) -> name.endsWith(PendingBatch.COMPACT_EXTENSION));
+      if (compacted != null) {
+        for (File file : compacted) {
+          Files.deleteIfExists(file.toPath());
+        }
+      }
+
+      String queueName = decode(queueDirectory.getName());
+      String[] names = Arrays.stream(segments).map(name -> name.substring(0, name.lastIndexOf('.')))
+          .distinct().sorted(Comparator.comparingLong((String name) -> segmentPart(name, 0))
+              .thenComparingLong(name -> segmentPart(name, 1)))
+          .toArray(String[]::new);
+
+      for (String name : names) {
+        PendingBatch batch = load(queueDirectory, name);
+        if (batch == null) {
+          continue;
+        }
+
+        if (batch.isEmpty()) {
+          batch.discard();
+        } else if (batches.containsKey(queueName)) {
+          batches.get(queueName).append(batch);
+        } else {
+          batches.put(queueName, batch);
+        }
+      }
+    }
+
+    for (PendingBatch batch : batches.values()) {
+      batch.close();
+    }
+
+    return batches;
+  }
+
+  private PendingBatch load(File queueDirectory, String name) throws IOException {
+    long createdAt = segmentPart(name, 0);
+    if (createdAt < 0) {
+      LOG.warn("Ignoring unknown file {} in the batch journal", name);
+      return null;
+    }
+
+    File addFile = new File(queueDirectory, name + ADD_EXTENSION);
+    File deleteFile = new File(queueDirectory, name + DELETE_EXTENSION);
+    recover(addFile);
+    recover(deleteFile);
+    return PendingBatch.load(addFile, deleteFile, createdAt);
+  }
+
+  /**
+   * Truncate a file after its last complete record, the file is removed if it has none.
+   */
+  private static void recover(File file) throws IOException {
+    if (!file.exists()) {
+      return;
+    }
+
+    int records = 0;
+    long lastRecordEnd = 0;
+    long position = 0;
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      InputStream is = Channels.newInputStream(raf.getChannel());
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = is.read(buffer)) != -1) {
+        for (int i = 0; i < read; i++) {
+          if (buffer[i] == '\n') {
+            records++;
+            lastRecordEnd = position + i + 1;
+          }
+        }
+        position += read;
+      }
+
+      if (lastRecordEnd < position) {
+        LOG.warn("Dropping incomplete record at the end of {}", file);
+        raf.getChannel().truncate(lastRecordEnd);
+      }
+    }
+
+    if (records == 0) {
+      Files.deleteIfExists(file.toPath());
+    }
+  }
+
+  private static long segmentPart(String name, int index) {
+    String[] parts = name.split("-");
+    try {
+      return parts.length == 2 ? Long.parseLong(parts[index]) : -1;
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private static String encode(String queueName) {
+    try {
+      return URLEncoder.encode(queueName, ENCODING);
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String decode(String directoryName) {
+    try {
+      return URLDecoder.decode(directoryName, ENCODING);
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,61 @@
+package com.mcplusa.coveo.connector.aem.indexing.batch;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Part of a {@link PendingBatch} small enough to be uploaded to a single file container, see
+ * {@link PendingBatch#split(long)}.
+ */
+public class BatchPart {
+
+  private final File addFile;
+
+  private final long addStart;
+
+  private final long addEnd;
+
+  private final File deleteFile;
+
+  private final long deleteStart;
+
+  private final long deleteEnd;
+
+  private final int documentCount;
+
+  BatchPart(File addFile, long addStart, long addEnd, File deleteFile, long deleteStart, long deleteEnd,
+      int documentCount) {
+    this.addFile = addFile;
+    this.addStart = addStart;
+    this.addEnd = addEnd;
+    this.deleteFile = deleteFile;
+    this.deleteStart = deleteStart;
+    this.deleteEnd = deleteEnd;
+    this.documentCount = documentCount;
+  }
+
+  /**
+   * Open the JSON of the batch request of this part. The batch must not be modified while the
+   * stream is open.
+   *
+   * @return stream of the batch request
+   * @throws IOException if the segment could not be read
+   */
+  public InputStream open() throws IOException {
+    return new BatchPayloadInputStream(addFile, addStart, addEnd, deleteFile, deleteStart, deleteEnd);
+  }
+
+  public int getDocumentCount() {
+    return documentCount;
+  }
+
+  /**
+   * Get the size in bytes of the batch request of this part.
+   *
+   * @return size in bytes
+   */
+  public long getSize() {
+    return BatchPayloadInputStream.EMPTY_LENGTH + addEnd - addStart + deleteEnd - deleteStart;
+  }
+}
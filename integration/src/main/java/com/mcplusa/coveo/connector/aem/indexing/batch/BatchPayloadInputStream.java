@@ -0,0 +1,116 @@
+package com.mcplusa.coveo.connector.aem.indexing.batch;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+
+/**
+ * JSON of a batch request read straight from the files of a journal segment:
+ * {@code {"addOrUpdate":[<add file>],"delete":[<delete file>]}}. Only a range of each file can be
+ * read, when the segment is split in several requests.
+ *
+ * <p>{@link #available()} returns the remaining length of the whole request instead of the length
+ * of the current part, because the push client uses it as the length of the upload.
+ */
+class BatchPayloadInputStream extends InputStream {
+
+  private static final String HEADER = "{\"addOrUpdate\":[";
+  private static final String MIDDLE = "],\"delete\":[";
+  private static final String FOOTER = "]}";
+
+  private final Deque<InputStream> parts = new ArrayDeque<>();
+
+  /**
+   * Length of a batch request without any document.
+   */
+  static final int EMPTY_LENGTH = (HEADER + MIDDLE + FOOTER).getBytes(StandardCharsets.UTF_8).length;
+
+  private long remaining;
+
+  /**
+   * Open a batch request made of a range of the add file and a range of the delete file. A range
+   * must start at a record and end after the new line of a record.
+   */
+  BatchPayloadInputStream(File addFile, long addStart, long addEnd, File deleteFile, long deleteStart,
+      long deleteEnd) throws IOException {
+    try {
+      addPart(HEADER);
+      addPart(addFile, addStart, addEnd);
+      addPart(MIDDLE);
+      addPart(deleteFile, deleteStart, deleteEnd);
+      addPart(FOOTER);
+    } catch (IOException e) {
+      close();
+      throw e;
+    }
+  }
+
+  @Override
+  public int read() throws IOException {
+    while (!parts.isEmpty()) {
+      int value = parts.peek().read();
+      if (value != -1) {
+        remaining--;
+        return value;
+      }
+      parts.poll().close();
+    }
+    return -1;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int length) throws IOException {
+    if (length == 0) {
+      return 0;
+    }
+
+    while (!parts.isEmpty()) {
+      int read = parts.peek().read(buffer, offset, length);
+      if (read > 0) {
+        remaining -= read;
+        return read;
+      }
+      parts.poll().close();
+    }
+    return -1;
+  }
+
+  @Override
+  public int available() {
+    return (int) Math.min(remaining, Integer.MAX_VALUE);
+  }
+
+  @Override
+  public void close() throws IOException {
+    while (!parts.isEmpty()) {
+      parts.poll().close();
+    }
+  }
+
+  private void addPart(String value) {
+    byte[] data = value.getBytes(StandardCharsets.UTF_8);
+    parts.add(new ByteArrayInputStream(data));
+    remaining += data.length;
+  }
+
+  private void addPart(File file, long start, long end) throws IOException {
+    if (end > start) {
+      InputStream is = new FileInputStream(file);
+      try {
+        IOUtils.skipFully(is, start);
+      } catch (IOException e) {
+        is.close();
+        throw e;
+      }
+      parts.add(new BoundedInputStream(is, end - start));
+      remaining += end - start;
+    }
+  }
+}
@@ -0,0 +1,235 @@
+package com.mcplusa.coveo.connector.aem.indexing.batch;
+
+import com.mcplusa.coveo.sdk.pushapi.model.Document;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * Thread-safe registry of the {@link PendingBatch} of each replication queue.
+ *
+ * <p>Every queue has its own slot, so queues never wait for each other. A batch is only mutated
+ * while holding the lock of its slot, and it is detached from the slot before it is uploaded
+ * ({@link #take(String)}), so a batch being uploaded is never mutated: new documents go to a new
+ * batch. If the upload fails the batch is put back in front of the new documents with
+ * {@link #restore(String, PendingBatch)}.
+ */
+public class BatchRegistry {
+
+  private final Map<String, Slot> slots = new ConcurrentHashMap<>();
+
+  private final BatchJournal journal;
+
+  public BatchRegistry(BatchJournal journal) {
+    this.journal = journal;
+  }
+
+  public BatchJournal getJournal() {
+    return journal;
+  }
+
+  /**
+   * Create a new batch for the queue if there is not one already.
+   *
+   * @param queueName name of the replication queue
+   * @return true if a new batch was created
+   */
+  public boolean start(String queueName) {
+    Slot slot = slot(queueName);
+    synchronized (slot) {
+      if (slot.batch != null) {
+        return false;
+      }
+
+      slot.batch = journal.create(queueName);
+      return true;
+    }
+  }
+
+  /**
+   * Push a document to the addOrUpdate list of the batch of the queue.
+   *
+   * @param queueName name of the replication queue
+   * @param document  document to push
+   * @throws IOException if the document could not be written to the journal
+   */
+  public void addDocument(String queueName, Document document) throws IOException {
+    Slot slot = slot(queueName);
+    synchronized (slot) {
+      current(queueName, slot).addDocument(document);
+    }
+  }
+
+  /**
+   * Push a document already serialized to the addOrUpdate list of the batch of the queue.
+   *
+   * @param queueName  name of the replication queue
+   * @param documentId documentId of the document
+   * @param json       JSON of the document
+   * @throws IOException if the document could not be written to the journal
+   */
+  public void addDocument(String queueName, String documentId, String json) throws IOException {
+    Slot slot = slot(queueName);
+    synchronized (slot) {
+      current(queueName, slot).addDocument(documentId, json);
+    }
+  }
+
+  /**
+   * Push a document already serialized to the addOrUpdate list of the batch of the queue, with an
+   * action to run once the batch has been pushed.
+   *
+   * @param queueName  name of the replication queue
+   * @param documentId documentId of the document
+   * @param json       JSON of the document
+   * @param onPushed   action to run once the batch has been pushed
+   * @throws IOException if the document could not be written to the journal
+   */
+  public void addDocument(String queueName, String documentId, String json, Runnable onPushed)
+      throws IOException {
+    Slot slot = slot(queueName);
+    synchronized (slot) {
+      PendingBatch batch = current(queueName, slot);
+      batch.addDocument(documentId, json);
+      batch.onPushed(onPushed);
+    }
+  }
+
+  /**
+   * Push a document to the delete list of the batch of the queue.
+   *
+   * @param queueName  name of the replication queue
+   * @param documentId documentId to delete
+   * @throws IOException if the document could not be written to the journal
+   */
+  public void deleteDocument(String queueName, String documentId) throws IOException {
+    Slot slot = slot(queueName);
+    synchronized (slot) {
+      current(queueName, slot).deleteDocument(documentId);
+    }
+  }
+
+  /**
+   * Push a document to the delete list of the batch of the queue, with an action to run once the
+   * batch has been pushed.
+   *
+   * @param queueName  name of the replication queue
+   * @param documentId documentId to delete
+   * @param onPushed   action to run once the batch has been pushed
+   * @throws IOException if the document could not be written to the journal
+   */
+  public void deleteDocument(String queueName, String documentId, Runnable onPushed) throws IOException {
+    Slot slot = slot(queueName);
+    synchronized (slot) {
+      PendingBatch batch = current(queueName, slot);
+      batch.deleteDocument(documentId);
+      batch.onPushed(onPushed);
+    }
+  }
+
+  /**
+   * Evaluate a condition on the batch of the queue while holding its lock.
+   *
+   * @param queueName name of the replication queue
+   * @param condition condition to evaluate, the batch may be null
+   * @return result of the condition
+   */
+  public boolean test(String queueName, Predicate<PendingBatch> condition) {
+    Slot slot = slots.get(queueName);
+    if (slot == null) {
+      return condition.test(null);
+    }
+
+    synchronized (slot) {
+      return condition.test(slot.batch);
+    }
+  }
+
+  /**
+   * Detach the batch of the queue, the next document will start a new batch.
+   *
+   * @param queueName name of the replication queue
+   * @return the detached batch, null if the queue has no batch
+   */
+  public PendingBatch take(String queueName) {
+    Slot slot = slots.get(queueName);
+    if (slot == null) {
+      return null;
+    }
+
+    synchronized (slot) {
+      PendingBatch batch = slot.batch;
+      slot.batch = null;
+      return batch;
+    }
+  }
+
+  /**
+   * Put back a batch that could not be uploaded, in front of the documents added since it was
+   * detached.
+   *
+   * @param queueName name of the replication queue
+   * @param batch     batch returned by {@link #take(String)}
+   * @throws IOException if the documents added meanwhile could not be moved to the batch
+   */
+  public void restore(String queueName, PendingBatch batch) throws IOException {
+    Slot slot = slot(queueName);
+    synchronized (slot) {
+      if (slot.batch != null) {
+        batch.append(slot.batch);
+      }
+      slot.batch = batch;
+    }
+  }
+
+  /**
+   * Get the lock that serializes the uploads of a queue, so batches of the same queue are pushed
+   * in order.
+   *
+   * @param queueName name of the replication queue
+   * @return the upload lock of the queue
+   */
+  public ReentrantLock getFlushLock(String queueName) {
+    return slot(queueName).flushLock;
+  }
+
+  public List<String> getQueueNames() {
+    return new ArrayList<>(slots.keySet());
+  }
+
+  /**
+   * Close the batches and forget them. The documents stay in the journal.
+   */
+  public void clear() {
+    for (Slot slot : slots.values()) {
+      synchronized (slot) {
+        if (slot.batch != null) {
+          slot.batch.close();
+        }
+      }
+    }
+    slots.clear();
+  }
+
+  private Slot slot(String queueName) {
+    return slots.computeIfAbsent(queueName, key -> new Slot());
+  }
+
+  private PendingBatch current(String queueName, Slot slot) {
+    if (slot.batch == null) {
+      slot.batch = journal.create(queueName);
+    }
+    return slot.batch;
+  }
+
+  private static final class Slot {
+
+    private final ReentrantLock flushLock = new ReentrantLock();
+
+    private PendingBatch batch;
+  }
+}
@@ -0,0 +1,270 @@
+package com.mcplusa.coveo.connector.aem.indexing.batch;
+
+import com.mcplusa.coveo.sdk.CoveoResponse;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Uploads the batches of the {@link BatchRegistry} in the background, so the replication thread
+ * keeps building the next batch while the previous one is uploaded.
+ *
+ * <p>A batch bigger than the max payload size is split in several file containers, pushed in
+ * order; if one of them fails the whole batch is kept, and the parts already pushed are pushed
+ * again with it.
+ *
+ * <p>At most {@code maxInFlight} batches are uploaded at the same time; {@link #flush(String)}
+ * waits for a free slot, which slows the replication queue down instead of piling batches up. The
+ * file containers of a queue are uploaded in parallel, but its batches are pushed in the order they
+ * were taken. If a batch fails, the batches of the same queue taken after it are not pushed either,
+ * and all of them are put back in the registry, in order, once the last one completes.
+ */
+public class BatchUploadPipeline {
+
+  private static final Logger LOG = LoggerFactory.getLogger(BatchUploadPipeline.class);
+
+  private static final long SHUTDOWN_TIMEOUT_SECONDS = 30;
+
+  /**
+   * Step of the upload of a batch.
+   *
+   * @param <T> input of the step
+   * @param <R> result of the step
+   */
+  @FunctionalInterface
+  public interface Step<T, R> {
+    R apply(T input) throws Exception;
+  }
+
+  private final BatchRegistry registry;
+
+  private final Step<BatchPart, String> upload;
+
+  private final Step<String, CoveoResponse> push;
+
+  private final long maxPayloadSize;
+
+  private final Semaphore window;
+
+  private final ExecutorService executor;
+
+  private final Map<String, QueueState> states = new ConcurrentHashMap<>();
+
+  /**
+   * Create the pipeline.
+   *
+   * @param registry       registry of the batches
+   * @param upload         uploads a part of a batch to a file container and returns its fileId
+   * @param push           pushes the file container to the source
+   * @param maxInFlight    max number of batches uploaded at the same time
+   * @param maxPayloadSize max size in bytes of a file container, 0 or less for no limit
+   */
+  public BatchUploadPipeline(BatchRegistry registry, Step<BatchPart, String> upload,
+      Step<String, CoveoResponse> push, int maxInFlight, long maxPayloadSize) {
+    this.registry = registry;
+    this.upload = upload;
+    this.push = push;
+    this.maxPayloadSize = maxPayloadSize;
+
+    int threads = Math.max(1, maxInFlight);
+    this.window = new Semaphore(threads);
+    AtomicInteger count = new AtomicInteger();
+    this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+      Thread thread = new Thread(runnable, "coveo-batch-upload-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Detach the batch of the queue and upload it in the background.
+   *
+   * @param queueName name of the replication queue
+   * @return completes with the response of the push, or null if the batch could not be pushed. If
+   *         the queue has no batch, completes with the result of the last batch of the queue.
+   * @throws InterruptedException if interrupted while waiting for a free upload slot
+   */
+  public CompletableFuture<CoveoResponse> flush(String queueName) throws InterruptedException {
+    ReentrantLock flushLock = registry.getFlushLock(queueName);
+    QueueState state = states.computeIfAbsent(queueName, key -> new QueueState());
+
+    // the upload slot is not waited for under the flush lock, which the uploads need to complete
+    flushLock.lock();
+    try {
+      if (registry.test(queueName, Objects::isNull)) {
+        return state.last;
+      }
+    } finally {
+      flushLock.unlock();
+    }
+
+    window.acquire();
+    flushLock.lock();
+    try {
+      PendingBatch batch = registry.take(queueName);
+      if (batch == null) {
+        window.release();
+        return state.last;
+      }
+
+      LOG.debug("Uploading batch of queue {}: Add size {} | Delete size {}", queueName, batch.getAddCount(),
+          batch.getDeleteCount());
+
+      if (state.inFlight == 0) {
+        state.healthy = CompletableFuture.completedFuture(true);
+      }
+      state.inFlight++;
+
+      CompletableFuture<CoveoResponse> result;
+      try {
+        CompletableFuture<List<String>> fileIds = CompletableFuture.supplyAsync(() -> upload(batch), executor);
+        result = state.healthy.thenCombineAsync(fileIds,
+            (healthy, ids) -> push(queueName, state, batch, healthy ? ids : null), executor);
+      } catch (RejectedExecutionException e) {
+        state.inFlight--;
+        window.release();
+        restore(queueName, batch);
+        throw e;
+      }
+
+      state.healthy = result.thenApply(Objects::nonNull);
+      state.last = result;
+      return result;
+    } finally {
+      flushLock.unlock();
+    }
+  }
+
+  /**
+   * Stop the uploads. The batches that were not pushed stay in the journal.
+   */
+  public void shutdown() {
+    executor.shutdown();
+    try {
+      if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        executor.shutdownNow();
+      }
+    } catch (InterruptedException e) {
+      executor.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void restore(String queueName, PendingBatch batch) {
+    try {
+      registry.restore(queueName, batch);
+    } catch (IOException e) {
+      LOG.error("Could not restore the batch of queue {}", queueName, e);
+    }
+  }
+
+  /**
+   * Upload the parts of a batch.
+   *
+   * @return the fileId of each part, null if a part could not be uploaded
+   */
+  private List<String> upload(PendingBatch batch) {
+    try {
+      List<BatchPart> parts = batch.split(maxPayloadSize);
+      if (parts.size() > 1) {
+        LOG.info("Splitting batch of {} documents in {} file containers", batch.getDocumentCount(), parts.size());
+      }
+
+      List<String> fileIds = new ArrayList<>(parts.size());
+      for (BatchPart part : parts) {
+        String fileId = upload.apply(part);
+        if (fileId == null) {
+          return null;
+        }
+        fileIds.add(fileId);
+      }
+      return fileIds;
+    } catch (Exception e) {
+      LOG.error("Could not push the data to the file Container", e);
+      return null;
+    }
+  }
+
+  private CoveoResponse push(String queueName, QueueState state, PendingBatch batch, List<String> fileIds) {
+    CoveoResponse response = null;
+    if (fileIds != null) {
+      try {
+        for (String fileId : fileIds) {
+          response = push.apply(fileId);
+          if (response == null) {
+            break;
+          }
+        }
+      } catch (Exception e) {
+        LOG.error("Could not push the batch of queue {}", queueName, e);
+        response = null;
+      }
+    }
+
+    complete(queueName, state, batch, response != null);
+    return response;
+  }
+
+  private void complete(String queueName, QueueState state, PendingBatch batch, boolean pushed) {
+    ReentrantLock flushLock = registry.getFlushLock(queueName);
+    flushLock.lock();
+    try {
+      state.inFlight--;
+      if (pushed) {
+        runPushedActions(queueName, batch);
+        batch.discard();
+      } else if (state.failed == null) {
+        state.failed = batch;
+      } else {
+        state.failed.append(batch);
+      }
+
+      if (state.inFlight == 0 && state.failed != null) {
+        PendingBatch failed = state.failed;
+        state.failed = null;
+        LOG.warn("Keeping {} documents of queue {} for the next push", failed.getDocumentCount(), queueName);
+        restore(queueName, failed);
+      }
+    } catch (IOException e) {
+      LOG.error("Could not update the batch journal of queue {}", queueName, e);
+    } finally {
+      flushLock.unlock();
+      window.release();
+    }
+  }
+
+  private static void runPushedActions(String queueName, PendingBatch batch) {
+    try {
+      batch.pushed();
+    } catch (RuntimeException e) {
+      LOG.error("Could not complete the pushed batch of queue {}", queueName, e);
+    }
+  }
+
+  /**
+   * Uploads of a queue, guarded by the flush lock of the queue.
+   */
+  private static final class QueueState {
+
+    private CompletableFuture<Boolean> healthy = CompletableFuture.completedFuture(true);
+
+    private CompletableFuture<CoveoResponse> last = CompletableFuture.completedFuture(null);
+
+    private PendingBatch failed;
+
+    private int inFlight;
+  }
+}
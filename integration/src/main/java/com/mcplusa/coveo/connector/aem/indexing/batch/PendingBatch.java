@@ -0,0 +1,615 @@
+package com.mcplusa.coveo.connector.aem.indexing.batch;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.mcplusa.coveo.sdk.pushapi.model.Document;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Batch of documents waiting to be pushed to Coveo, together with the information needed by the
+ * {@link BatchFlushPolicy} (amount of documents, size, creation and last update time).
+ *
+ * <p>The documents are not kept in memory: each one is appended to a segment of the
+ * {@link BatchJournal} as soon as it arrives, one JSON record per line. The addOrUpdate and the
+ * delete records go to different files, so the segment can be uploaded as it is with
+ * {@link #openPayload()}.
+ *
+ * <p>Only the last record of a documentId counts: an activation followed by a delete of the same
+ * document results in the delete alone. The records that were replaced are left in the journal and
+ * dropped from the segment right before it is uploaded.
+ */
+public class PendingBatch {
+
+  private static final byte SEPARATOR = ',';
+  private static final byte NEW_LINE = '\n';
+  static final String COMPACT_EXTENSION = ".compact";
+
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+  private final File addFile;
+
+  private final File deleteFile;
+
+  private final long createdAt;
+
+  private long updatedAt;
+
+  private OutputStream addOut;
+
+  private OutputStream deleteOut;
+
+  private int addCount;
+
+  private int deleteCount;
+
+  private long addLength;
+
+  private long deleteLength;
+
+  /**
+   * Last record of each documentId.
+   */
+  private final Map<String, Record> records = new HashMap<>();
+
+  /**
+   * Records loaded from disk that are kept as well as the last record of their documentId, because
+   * the order between them is not known, and records without documentId.
+   */
+  private final List<Record> unordered = new ArrayList<>();
+
+  /**
+   * Actions to run once the batch has been pushed, in the order they were added.
+   */
+  private final List<Runnable> pushedActions = new ArrayList<>();
+
+  private int replacedAddCount;
+
+  private int replacedDeleteCount;
+
+  private long replacedSize;
+
+  PendingBatch(File addFile, File deleteFile, long createdAt) {
+    this.addFile = addFile;
+    this.deleteFile = deleteFile;
+    this.createdAt = createdAt;
+    this.updatedAt = createdAt;
+  }
+
+  /**
+   * Load a segment found on disk. The files must only contain complete records.
+   *
+   * <p>The records of each file are compacted, but an addOrUpdate and a delete of the same document
+   * are both kept because the order between the two files is not recorded.
+   */
+  static PendingBatch load(File addFile, File deleteFile, long createdAt) throws IOException {
+    PendingBatch batch = new PendingBatch(addFile, deleteFile, createdAt);
+    Map<String, Record> adds = new HashMap<>();
+    batch.addCount = batch.index(addFile, false, adds);
+    batch.addLength = addFile.length();
+    batch.deleteCount = batch.index(deleteFile, true, batch.records);
+    batch.deleteLength = deleteFile.length();
+    for (Map.Entry<String, Record> entry : adds.entrySet()) {
+      if (batch.records.containsKey(entry.getKey())) {
+        batch.unordered.add(entry.getValue());
+      } else {
+        batch.records.put(entry.getKey(), entry.getValue());
+      }
+    }
+    return batch;
+  }
+
+  /**
+   * Add a document to the addOrUpdate list.
+   *
+   * @param document document to push
+   * @throws IOException if the document could not be written to the journal
+   */
+  public void addDocument(Document document) throws IOException {
+    addDocument(document.getDocumentId(), document.toJson());
+  }
+
+  /**
+   * Add a document already serialized to the addOrUpdate list, so a document
+   * pushed to several Sources is serialized once.
+   *
+   * @param documentId documentId of the document
+   * @param json       JSON of the document
+   * @throws IOException if the document could not be written to the journal
+   */
+  public void addDocument(String documentId, String json) throws IOException {
+    if (addOut == null) {
+      addOut = open(addFile);
+    }
+
+    boolean separator = addCount > 0;
+    int length = write(addOut, separator, json);
+    replace(documentId, new Record(documentId, false, addLength + (separator ? 1 : 0),
+        length - (separator ? 2 : 1)));
+    addLength += length;
+    addCount++;
+    updatedAt = System.currentTimeMillis();
+  }
+
+  /**
+   * Add a document to the delete list.
+   *
+   * @param documentId documentId to delete
+   * @throws IOException if the document could not be written to the journal
+   */
+  public void deleteDocument(String documentId) throws IOException {
+    if (deleteOut == null) {
+      deleteOut = open(deleteFile);
+    }
+
+    StringWriter json = new StringWriter();
+    try (JsonWriter writer = new JsonWriter(json)) {
+      writer.beginObject().name("documentId").value(documentId).name("deleteChildren").value(true).endObject();
+    }
+
+    boolean separator = deleteCount > 0;
+    int length = write(deleteOut, separator, json.toString());
+    replace(documentId, new Record(documentId, true, deleteLength + (separator ? 1 : 0),
+        length - (separator ? 2 : 1)));
+    deleteLength += length;
+    deleteCount++;
+    updatedAt = System.currentTimeMillis();
+  }
+
+  /**
+   * Add an action to run once the batch has been pushed, like recording what was pushed. The
+   * actions are lost if the batch is reloaded from the journal.
+   *
+   * @param action action to run
+   */
+  public void onPushed(Runnable action) {
+    pushedActions.add(action);
+  }
+
+  /**
+   * Run the actions added with {@link #onPushed(Runnable)}, in order, once the batch has been
+   * pushed.
+   */
+  public void pushed() {
+    for (Runnable action : pushedActions) {
+      action.run();
+    }
+    pushedActions.clear();
+  }
+
+  /**
+   * Add the documents of another batch after the documents of this one. The records of the other
+   * batch replace the records of the same documents in this one, and its actions run after the
+   * actions of this one. The segment of the other batch is removed from the journal.
+   *
+   * @param other batch to append
+   * @throws IOException if the documents could not be copied
+   */
+  public void append(PendingBatch other) throws IOException {
+    other.close();
+    long addBase = addLength + (addCount > 0 ? 1 : 0);
+    long deleteBase = deleteLength + (deleteCount > 0 ? 1 : 0);
+
+    if (other.addCount > 0) {
+      if (addOut == null) {
+        addOut = open(addFile);
+      }
+      addLength += copy(other.addFile, addOut, addCount > 0);
+      addCount += other.addCount;
+    }
+
+    if (other.deleteCount > 0) {
+      if (deleteOut == null) {
+        deleteOut = open(deleteFile);
+      }
+      deleteLength += copy(other.deleteFile, deleteOut, deleteCount > 0);
+      deleteCount += other.deleteCount;
+    }
+
+    replacedAddCount += other.replacedAddCount;
+    replacedDeleteCount += other.replacedDeleteCount;
+    replacedSize += other.replacedSize;
+    for (Map.Entry<String, Record> entry : other.records.entrySet()) {
+      replace(entry.getKey(), entry.getValue().shift(addBase, deleteBase));
+    }
+    for (Record record : other.unordered) {
+      unordered.add(record.shift(addBase, deleteBase));
+    }
+    pushedActions.addAll(other.pushedActions);
+    other.pushedActions.clear();
+
+    updatedAt = Math.max(updatedAt, other.updatedAt);
+    other.discard();
+  }
+
+  /**
+   * Open the JSON of the batch request, ready to be uploaded to a file container. The records that
+   * were replaced are dropped first. The batch must not be modified while the stream is open.
+   *
+   * @return stream of the batch request
+   * @throws IOException if the segment could not be read
+   */
+  public InputStream openPayload() throws IOException {
+    return split(0).get(0).open();
+  }
+
+  /**
+   * Split the batch in batch requests of at most {@code maxSize} bytes, each one uploaded to its
+   * own file container. The records that were replaced are dropped first. The addOrUpdate records
+   * come first and the records keep their order; a record bigger than {@code maxSize} gets a part
+   * of its own. The batch must not be modified while the parts are uploaded.
+   *
+   * @param maxSize max size in bytes of a batch request, 0 or less to keep the batch in one part
+   * @return the parts of the batch, at least one
+   * @throws IOException if the replaced records could not be dropped
+   */
+  public List<BatchPart> split(long maxSize) throws IOException {
+    close();
+    if (replacedAddCount > 0 || replacedDeleteCount > 0) {
+      compact();
+    }
+
+    List<Record> live = new ArrayList<>(records.values());
+    live.addAll(unordered);
+    live.sort(Comparator.comparing((Record record) -> record.delete).thenComparingLong(record -> record.offset));
+
+    List<BatchPart> parts = new ArrayList<>();
+    PartBuilder part = new PartBuilder();
+    for (Record record : live) {
+      if (maxSize > 0 && part.documentCount > 0 && part.getSizeWith(record) > maxSize) {
+        parts.add(part.build());
+        part = new PartBuilder();
+      }
+      part.add(record);
+    }
+    parts.add(part.build());
+    return parts;
+  }
+
+  /**
+   * Close the files of the segment, the documents stay in the journal.
+   */
+  public void close() {
+    addOut = closeQuietly(addOut);
+    deleteOut = closeQuietly(deleteOut);
+  }
+
+  /**
+   * Remove the segment from the journal, once it has been pushed.
+   *
+   * @throws IOException if the segment could not be removed
+   */
+  public void discard() throws IOException {
+    close();
+    Files.deleteIfExists(addFile.toPath());
+    Files.deleteIfExists(deleteFile.toPath());
+  }
+
+  public long getCreatedAt() {
+    return createdAt;
+  }
+
+  /**
+   * Get the time the last document was added to the batch.
+   *
+   * @return time in milliseconds
+   */
+  public long getUpdatedAt() {
+    return updatedAt;
+  }
+
+  public int getAddCount() {
+    return addCount - replacedAddCount;
+  }
+
+  public int getDeleteCount() {
+    return deleteCount - replacedDeleteCount;
+  }
+
+  /**
+   * Get the amount of documents added or deleted in this batch, not counting the records that
+   * were replaced by a later record of the same document.
+   *
+   * @return amount of documents
+   */
+  public int getDocumentCount() {
+    return getAddCount() + getDeleteCount();
+  }
+
+  /**
+   * Get the size in bytes of the documents of the batch once serialized.
+   *
+   * @return size in bytes
+   */
+  public long getSize() {
+    return addLength + deleteLength - replacedSize;
+  }
+
+  public boolean isEmpty() {
+    return getDocumentCount() == 0;
+  }
+
+  /**
+   * Make a record the last record of its document.
+   */
+  private void replace(String documentId, Record record) {
+    if (documentId == null) {
+      unordered.add(record);
+      return;
+    }
+
+    Record replaced = records.put(documentId, record);
+    if (replaced != null) {
+      replaced(replaced);
+      unordered.removeIf(previous -> {
+        if (documentId.equals(previous.documentId)) {
+          replaced(previous);
+          return true;
+        }
+        return false;
+      });
+    }
+  }
+
+  private void replaced(Record record) {
+    if (record.delete) {
+      replacedDeleteCount++;
+    } else {
+      replacedAddCount++;
+    }
+    replacedSize += record.length + 2;
+  }
+
+  /**
+   * Rewrite the files of the segment with the last record of each document only. The files are
+   * replaced one at a time, a crash in between leaves records that are replayed as they were.
+   */
+  private void compact() throws IOException {
+    List<Record> adds = new ArrayList<>();
+    List<Record> deletes = new ArrayList<>();
+    for (Record record : records.values()) {
+      (record.delete ? deletes : adds).add(record);
+    }
+    for (Record record : unordered) {
+      (record.delete ? deletes : adds).add(record);
+    }
+
+    addLength = rewrite(addFile, adds);
+    addCount = adds.size();
+    deleteLength = rewrite(deleteFile, deletes);
+    deleteCount = deletes.size();
+    replacedAddCount = 0;
+    replacedDeleteCount = 0;
+    replacedSize = 0;
+  }
+
+  private static long rewrite(File file, List<Record> live) throws IOException {
+    if (live.isEmpty()) {
+      Files.deleteIfExists(file.toPath());
+      return 0;
+    }
+
+    live.sort(Comparator.comparingLong(record -> record.offset));
+    File compacted = new File(file.getPath() + COMPACT_EXTENSION);
+    long length = 0;
+    try (RandomAccessFile source = new RandomAccessFile(file, "r");
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(compacted))) {
+      for (Record record : live) {
+        byte[] data = new byte[record.length];
+        source.seek(record.offset);
+        source.readFully(data);
+
+        boolean separator = length > 0;
+        if (separator) {
+          out.write(SEPARATOR);
+        }
+        out.write(data);
+        out.write(NEW_LINE);
+
+        record.offset = length + (separator ? 1 : 0);
+        length += record.length + (separator ? 2 : 1);
+      }
+    }
+
+    Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+    return length;
+  }
+
+  /**
+   * Index the records of a file by documentId.
+   *
+   * @return the amount of records of the file
+   */
+  private int index(File file, boolean delete, Map<String, Record> index) throws IOException {
+    if (!file.exists()) {
+      return 0;
+    }
+
+    int count = 0;
+    long offset = 0;
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    try (InputStream is = new BufferedInputStream(new FileInputStream(file))) {
+      int value;
+      while ((value = is.read()) != -1) {
+        offset++;
+        if (value != NEW_LINE) {
+          line.write(value);
+          continue;
+        }
+
+        byte[] data = line.toByteArray();
+        int start = data.length > 0 && data[0] == SEPARATOR ? 1 : 0;
+        String documentId = readDocumentId(data, start);
+        Record record = new Record(documentId, delete, offset - data.length - 1 + start, data.length - start);
+        Record replaced = documentId != null ? index.put(documentId, record) : null;
+        if (documentId == null) {
+          unordered.add(record);
+        } else if (replaced != null) {
+          replaced(replaced);
+        }
+        line.reset();
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Read the documentId of a record, without parsing the rest of the document.
+   *
+   * @return the documentId, null if the record has none
+   */
+  private static String readDocumentId(byte[] data, int start) throws IOException {
+    try (JsonParser parser = JSON_FACTORY.createParser(data, start, data.length - start)) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        return null;
+      }
+
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String name = parser.getCurrentName();
+        if (parser.nextToken() == JsonToken.VALUE_STRING && "documentId".equals(name)) {
+          return parser.getText();
+        }
+        parser.skipChildren();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Write a record in a single call, so a crash can only leave the last line incomplete.
+   */
+  private static int write(OutputStream out, boolean separator, String json) throws IOException {
+    byte[] data = json.getBytes(StandardCharsets.UTF_8);
+    byte[] record = new byte[(separator ? 1 : 0) + data.length + 1];
+    if (separator) {
+      record[0] = SEPARATOR;
+    }
+    System.arraycopy(data, 0, record, separator ? 1 : 0, data.length);
+    record[record.length - 1] = NEW_LINE;
+
+    out.write(record);
+    out.flush();
+    return record.length;
+  }
+
+  private static long copy(File source, OutputStream out, boolean separator) throws IOException {
+    long copied = 0;
+    if (separator) {
+      out.write(SEPARATOR);
+      copied++;
+    }
+
+    try (InputStream is = new FileInputStream(source)) {
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = is.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+        copied += read;
+      }
+    }
+    out.flush();
+    return copied;
+  }
+
+  private static OutputStream open(File file) throws IOException {
+    Files.createDirectories(file.getParentFile().toPath());
+    return new FileOutputStream(file, true);
+  }
+
+  private static OutputStream closeQuietly(OutputStream out) {
+    if (out != null) {
+      try {
+        out.close();
+      } catch (IOException e) {
+        // the records were already flushed
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Contiguous records of the add file and of the delete file, uploaded together.
+   */
+  private final class PartBuilder {
+
+    private long addStart;
+
+    private long addEnd;
+
+    private long deleteStart;
+
+    private long deleteEnd;
+
+    private int documentCount;
+
+    private void add(Record record) {
+      if (record.delete) {
+        deleteStart = deleteEnd > deleteStart ? deleteStart : record.offset;
+        deleteEnd = record.offset + record.length + 1;
+      } else {
+        addStart = addEnd > addStart ? addStart : record.offset;
+        addEnd = record.offset + record.length + 1;
+      }
+      documentCount++;
+    }
+
+    private long getSizeWith(Record record) {
+      long size = BatchPayloadInputStream.EMPTY_LENGTH + addEnd - addStart + deleteEnd - deleteStart;
+      boolean separator = record.delete ? deleteEnd > deleteStart : addEnd > addStart;
+      return size + record.length + 1 + (separator ? 1 : 0);
+    }
+
+    private BatchPart build() {
+      return new BatchPart(addFile, addStart, addEnd, deleteFile, deleteStart, deleteEnd, documentCount);
+    }
+  }
+
+  /**
+   * Position of a record in the files of the segment, without the separator and the new line.
+   */
+  private static final class Record {
+
+    private final String documentId;
+
+    private final boolean delete;
+
+    private long offset;
+
+    private final int length;
+
+    private Record(String documentId, boolean delete, long offset, int length) {
+      this.documentId = documentId;
+      this.delete = delete;
+      this.offset = offset;
+      this.length = length;
+    }
+
+    /**
+     * Get the position of the record once its file is appended to another one.
+     */
+    private Record shift(long addBase, long deleteBase) {
+      return new Record(documentId, delete, offset + (delete ? deleteBase : addBase), length);
+    }
+  }
+}
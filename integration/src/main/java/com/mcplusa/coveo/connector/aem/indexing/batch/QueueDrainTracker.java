@@ -0,0 +1,86 @@
+package com.mcplusa.coveo.connector.aem.indexing.batch;
+
+import com.day.cq.replication.ReplicationQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the number of entries pending in the replication queue of the Coveo agent.
+ *
+ * <p>The counter is incremented when {@link com.mcplusa.coveo.connector.aem.indexing.CoveoIndexContentBuilder}
+ * builds the content of a new entry and decremented when the entry is successfully delivered, so
+ * deciding if the current delivery is the last one of a batch does not require listing the queue.
+ * The queue is only listed when the counter says it is (almost) drained, where the listing is
+ * cheap, or when the counter has not been synchronized for {@link #DEFAULT_RESYNC_INTERVAL_MS}.
+ */
+public class QueueDrainTracker {
+
+  /** Max time the counter is trusted without being compared with the real queue. */
+  public static final long DEFAULT_RESYNC_INTERVAL_MS = TimeUnit.SECONDS.toMillis(30);
+
+  private final AtomicLong pending = new AtomicLong();
+
+  private final long resyncIntervalMs;
+
+  private volatile long lastSync;
+
+  public QueueDrainTracker() {
+    this(DEFAULT_RESYNC_INTERVAL_MS);
+  }
+
+  public QueueDrainTracker(long resyncIntervalMs) {
+    this.resyncIntervalMs = resyncIntervalMs;
+  }
+
+  /** Register a new entry added to the queue. */
+  public void entryQueued() {
+    pending.incrementAndGet();
+  }
+
+  /** Register an entry that left the queue after a successful delivery. */
+  public void entryDelivered() {
+    pending.updateAndGet(value -> value > 0 ? value - 1 : 0);
+  }
+
+  /**
+   * Check if the entry being delivered is the last one of the queue.
+   *
+   * @param queue replication queue of the agent
+   * @return true if no more entries are waiting after the current one
+   */
+  public boolean isLastEntry(ReplicationQueue queue) {
+    long now = System.currentTimeMillis();
+    if (lastSync == 0 || now - lastSync >= resyncIntervalMs) {
+      resync(queue, now);
+    }
+
+    if (pending.get() > 1) {
+      return false;
+    }
+
+    // The counter says the queue is drained, confirm it while the listing is small
+    return resync(queue, now) <= 1;
+  }
+
+  /**
+   * Get the amount of entries pending to be delivered.
+   *
+   * @return pending entries, including the one being delivered
+   */
+  public long getPending() {
+    return pending.get();
+  }
+
+  /** Forget the current state, the next check will read the queue again. */
+  public void reset() {
+    pending.set(0);
+    lastSync = 0;
+  }
+
+  private long resync(ReplicationQueue queue, long now) {
+    long size = queue.entries().size();
+    pending.set(size);
+    lastSync = now;
+    return size;
+  }
+}
@@ -47,16 +47,56 @@ public class CoveoIndexConfiguration {
       description = "List with the names of all properties that should be indexed.")
   public static final String PROPERTY_INDEX_RULES = "indexRules";
 
+  @Property(
+      name = "fieldMappings",
+      cardinality = Integer.MAX_VALUE,
+      label = "Field Mappings",
+      description =
+          "Properties pushed under another field name or type, formatted as property=field or"
+              + " property=field:TYPE with TYPE one of STRING, LONG, DOUBLE or BOOLEAN.")
+  public static final String PROPERTY_FIELD_MAPPINGS = "fieldMappings";
+
+  @Property(
+      name = "excludedFields",
+      cardinality = Integer.MAX_VALUE,
+      label = "Excluded Fields",
+      description = "List with the names of the indexed properties that should not be pushed as fields.")
+  public static final String PROPERTY_EXCLUDED_FIELDS = "excludedFields";
+
+  protected String primaryType;
+
   protected String[] indexRules;
 
+  protected String[] fieldMappings;
+
+  protected String[] excludedFields;
+
   protected ComponentContext context;
 
   @Activate
   public void activate(ComponentContext context) {
     this.context = context;
+    this.primaryType =
+        PropertiesUtil.toString(
+            context.getProperties().get(CoveoIndexConfiguration.PROPERTY_BASE_PATH), null);
     this.indexRules =
         PropertiesUtil.toStringArray(
             context.getProperties().get(CoveoIndexConfiguration.PROPERTY_INDEX_RULES));
+    this.fieldMappings =
+        PropertiesUtil.toStringArray(
+            context.getProperties().get(CoveoIndexConfiguration.PROPERTY_FIELD_MAPPINGS));
+    this.excludedFields =
+        PropertiesUtil.toStringArray(
+            context.getProperties().get(CoveoIndexConfiguration.PROPERTY_EXCLUDED_FIELDS));
+  }
+
+  /**
+   * Get the primary type this configuration is responsible for.
+   *
+   * @return the primary type, e.g. cq:Page
+   */
+  public String getPrimaryType() {
+    return primaryType;
   }
 
   /**
@@ -67,4 +107,22 @@ public class CoveoIndexConfiguration {
   public String[] getIndexRules() {
     return indexRules;
   }
+
+  /**
+   * Get the renames and type coercions of the indexed properties.
+   *
+   * @return array of field mappings, may be null
+   */
+  public String[] getFieldMappings() {
+    return fieldMappings;
+  }
+
+  /**
+   * Get the indexed properties that are not pushed as fields.
+   *
+   * @return array of property names, may be null
+   */
+  public String[] getExcludedFields() {
+    return excludedFields;
+  }
 }
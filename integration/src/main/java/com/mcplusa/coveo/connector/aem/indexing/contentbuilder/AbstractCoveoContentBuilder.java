@@ -1,28 +1,22 @@
 package com.mcplusa.coveo.connector.aem.indexing.contentbuilder;
 
-import com.day.cq.tagging.Tag;
 import com.day.cq.tagging.TagManager;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
 import com.mcplusa.coveo.connector.aem.indexing.NodePermissionLevel;
 import com.mcplusa.coveo.connector.aem.indexing.Permission;
 import com.mcplusa.coveo.connector.aem.indexing.config.CoveoIndexConfiguration;
+import com.mcplusa.coveo.connector.aem.service.AccessPolicyCache;
+import com.mcplusa.coveo.connector.aem.service.PrincipalTypeCache;
+import com.mcplusa.coveo.connector.aem.service.TagTitleCache;
+import com.mcplusa.coveo.sdk.pushapi.model.CompressionType;
 
-import java.io.StringWriter;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
-import java.util.function.Function;
-import java.util.stream.Collectors;
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import org.apache.commons.lang3.ArrayUtils;
@@ -31,12 +25,8 @@ import org.apache.jackrabbit.api.security.user.Authorizable;
 import org.apache.jackrabbit.api.security.user.Group;
 import org.apache.jackrabbit.api.security.user.Query;
 import org.apache.jackrabbit.api.security.user.QueryBuilder;
-import org.apache.jackrabbit.api.security.user.QueryBuilder.Direction;
 import org.apache.jackrabbit.api.security.user.UserManager;
 import org.apache.sling.api.resource.Resource;
-import org.apache.sling.api.resource.ValueMap;
-import org.apache.sling.commons.json.JSONException;
-import org.apache.sling.commons.json.jcr.JsonItemWriter;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.framework.ServiceReference;
@@ -47,12 +37,19 @@ public abstract class AbstractCoveoContentBuilder implements CoveoContentBuilder
 
   private static final Logger LOG = LoggerFactory.getLogger(AbstractCoveoContentBuilder.class);
 
+  protected static final String CONTENT_FIELDNAME = "content";
+  protected static final String COMPRESSION_TYPE_FIELDNAME = "compressionType";
+
   private TagManager tagManager;
 
   private BundleContext context;
 
   protected String permissionPolicy;
 
+  protected CompressionType compressionType;
+
+  protected int compressionThreshold;
+
   @Activate
   public void activate(BundleContext context) {
     this.context = context;
@@ -98,75 +95,32 @@ public abstract class AbstractCoveoContentBuilder implements CoveoContentBuilder
   }
 
   /**
-   * Recursively searches all child-resources for the given resources and returns a map with all of
-   * them.
+   * Collects the properties of a document in a single walk of its resources, the tags of the
+   * properties read from the nodes resolved to their titles.
    *
-   * @param res Resource document
+   * @param res Resource document, or its jcr:content
    * @param properties properties to map
-   * @return Map with all properties
+   * @param allProperties whether all the properties are collected too
+   * @param tagTitleCache titles of the tags
+   * @return the collected properties
    */
-  protected Map<String, Object> getProperties(Resource res, String[] properties) {
-    ValueMap vm = res.getValueMap();
-    Map<String, Object> ret =
-        Arrays.stream(properties)
-            .filter(property -> vm.containsKey(property) && vm.get(property) != null)
-            .collect(
-                Collectors.toMap(Function.identity(), property -> vm.get(property), (a, b) -> a));
-
-    for (Resource child : res.getChildren()) {
-      Map<String, Object> props = getProperties(child, properties);
-      // merge properties
-      props
-          .entrySet()
-          .forEach(
-              entry -> {
-                String key = entry.getKey();
-                if (!ret.containsKey(key)) {
-                  ret.put(key, entry.getValue());
-                } else {
-                  ret.put(key, mergeProperties(ret.get(entry.getKey()), entry.getValue()));
-                }
-              });
-    }
-    return ret;
+  protected PropertyCollector collectProperties(Resource res, String[] properties, boolean allProperties,
+      TagTitleCache tagTitleCache) {
+    return PropertyCollector.collect(res, properties, allProperties, value -> resolveTags(value, tagTitleCache));
   }
 
-  protected Map<String, Object> getAllProperties(Resource res) {
-    ValueMap vm = res.getValueMap();
-    Map<String, Object> ret = new HashMap<>();
-    ret.putAll(vm);
-
-    for (Resource child : res.getChildren()) {
-      Map<String, Object> props = getAllProperties(child);
-      // merge properties
-      props
-          .entrySet()
-          .forEach(
-              entry -> {
-                String key = entry.getKey();
-                if (!ret.containsKey(key)) {
-                  ret.put(key, entry.getValue());
-                } else {
-                  ret.put(key, mergeProperties(ret.get(entry.getKey()), entry.getValue()));
-                }
-              });
-    }
-    return ret;
-  }
-
-  @SuppressWarnings("unchecked")
-  private Object resolveTags(Object value) {
-    if (value == null) {
+  private Object resolveTags(Object value, TagTitleCache tagTitleCache) {
+    if (value == null || tagManager == null) {
       return value;
     }
 
     try {
       if (value instanceof List) {
         List<String> subList = new ArrayList<>();
-        for (String el : (List<String>) value) {
-          Tag tag = tagManager.resolve(el);
-          if (tag != null) {
-            subList.add(tag.getTitle());
+        for (Object el : (List<?>) value) {
+          String title = el instanceof String ? tagTitleCache.getTitle((String) el, tagManager) : null;
+          if (title != null) {
+            subList.add(title);
           }
         }
 
@@ -174,9 +128,9 @@ public abstract class AbstractCoveoContentBuilder implements CoveoContentBuilder
           return subList;
         }
       } else if (value instanceof String) {
-        Tag tag = tagManager.resolve((String) value);
-        if (tag != null) {
-          return tag.getTitle();
+        String title = tagTitleCache.getTitle((String) value, tagManager);
+        if (title != null) {
+          return title;
         }
       }
     } catch (Exception e) {
@@ -186,110 +140,36 @@ public abstract class AbstractCoveoContentBuilder implements CoveoContentBuilder
     return value;
   }
 
-  private Object[] mergeProperties(Object obj1, Object obj2) {
-    List<Object> tmp = new ArrayList<>();
-    addProperty(tmp, obj1);
-    addProperty(tmp, obj2);
-    return tmp.toArray(new Object[tmp.size()]);
-  }
-
-  private void addProperty(List<Object> list, Object property) {
-    if (property.getClass().isArray()) {
-      list.addAll(Arrays.asList((Object[]) property));
-    } else {
-      list.add(property);
-    }
-  }
-
-  protected JsonObject toJson(Node node) {
-    try {
-      StringWriter stringWriter = new StringWriter();
-      JsonItemWriter jsonWriter = new JsonItemWriter(null);
-      jsonWriter.dump(node, stringWriter, -1, true);
-      Gson gson =
-          new GsonBuilder()
-              .setPrettyPrinting()
-              .disableHtmlEscaping()
-              .create(); // disableHtmlEscaping in JSON
-      return gson.fromJson(stringWriter.toString(), JsonObject.class);
-    } catch (RepositoryException | JSONException ex) {
-      LOG.error("Error toJson", ex);
-    }
-    return null;
-  }
-
-  protected Map<String, Object> getJsonProperties(JsonObject json, String[] properties) {
-    Map<String, Object> props = new HashMap<>();
-    json.keySet()
-        .forEach(
-            key -> {
-              JsonElement el = json.get(key);
-              if (el != null && el.isJsonObject()) {
-                Map<String, Object> childProps =
-                    this.getJsonProperties(el.getAsJsonObject(), properties);
-                // merge properties
-                childProps
-                    .entrySet()
-                    .forEach(
-                        entry -> {
-                          String ckey = entry.getKey();
-                          if (!props.containsKey(ckey)) {
-                            props.put(ckey, entry.getValue());
-                          } else {
-                            props.put(
-                                ckey, mergeProperties(props.get(entry.getKey()), entry.getValue()));
-                          }
-                        });
-              } else if (el != null && matchProperty(key, properties)) {
-                if (el.isJsonArray()) {
-                  props.put(key, new Gson().fromJson(el.getAsJsonArray(), List.class));
-                } else {
-                  props.put(key, el.getAsString());
-                }
-              }
-            });
-
-    return props.entrySet().stream()
-        .collect(Collectors.toMap(Map.Entry::getKey, e -> resolveTags(e.getValue())));
-  }
-
-  private boolean matchProperty(String key, String[] properties) {
-    for (int i = 0; i < properties.length; i++) {
-      if (properties[i].equals(key)) {
-        return true;
-      }
-    }
-
-    return false;
-  }
-
   private boolean shouldAddPermissionPolicy(String policy) {
     return this.permissionPolicy == null || this.permissionPolicy.equals("ALL")
         || this.permissionPolicy.equalsIgnoreCase(policy);
   }
 
-  protected List<NodePermissionLevel> getPermissionLevelList(Node node, UserManager userManager) {
+  /**
+   * Get the permission levels of a node, from the node up to /content, looked up in the snapshot
+   * of the access policies.
+   *
+   * @param node node of the document
+   * @param userManager userManager
+   * @param accessPolicyCache snapshot of the access policies
+   * @param principalTypeCache types of the principals
+   * @return the permission levels, the nearest first
+   */
+  protected List<NodePermissionLevel> getPermissionLevelList(Node node, UserManager userManager,
+      AccessPolicyCache accessPolicyCache, PrincipalTypeCache principalTypeCache) {
     List<NodePermissionLevel> permissionLevels = new ArrayList<>();
     int nodeLevel = 0;
 
-    while (node != null) {
-      try {
+    try {
+      List<AccessPolicyCache.NodePolicies> nodePolicies = accessPolicyCache.getPolicies(node.getPath(),
+          principal -> principalTypeCache.isGroup(principal, id -> isGroup(userManager, id)));
+      for (AccessPolicyCache.NodePolicies policies : nodePolicies) {
         Set<Permission> permissions = new HashSet<>();
-        if (shouldAddPermissionPolicy("POLICY") && node.hasNode("rep:policy")) {
-          JsonObject policy = toJson(node.getNode("rep:policy"));
-          if (policy != null) {
-            List<Permission> acls = getAcls(policy, userManager);
-            permissions.addAll(acls);
-          }
+        if (shouldAddPermissionPolicy("POLICY")) {
+          permissions.addAll(policies.getPolicy());
         }
-
-        if (shouldAddPermissionPolicy("CUG") && node.hasNode("rep:cugPolicy")) {
-          JsonObject cugPolicy = toJson(node.getNode("rep:cugPolicy"));
-          if (cugPolicy != null) {
-            List<Permission> cugAcls =
-                getCugAcls(cugPolicy.getAsJsonArray("rep:principalNames"), userManager);
-            permissions.addAll(cugAcls);
-          }
+        if (shouldAddPermissionPolicy("CUG")) {
+          permissions.addAll(policies.getCug());
         }
 
         if (!permissions.isEmpty()) {
@@ -298,107 +178,23 @@ public abstract class AbstractCoveoContentBuilder implements CoveoContentBuilder
           permissionLevels.add(new NodePermissionLevel(nodeLevel, nonDuplicatedPermissions));
           nodeLevel++;
         }
-
-        node = getNodeParent(node);
-      } catch (RepositoryException ex) {
-        LOG.error("Error getting permission level list", ex);
-        node = null;
       }
+    } catch (RepositoryException ex) {
+      LOG.error("Error getting permission level list", ex);
     }
 
     return permissionLevels;
   }
 
-  private Node getNodeParent(Node node) {
-    try {
-      Node parentNode = node.getParent();
-      if (parentNode.getPath().equals("/") || parentNode.getPath().equals("/content")) {
-        return null;
-      }
-
-      return parentNode;
-    } catch (RepositoryException e) {
-      return null;
-    }
-  }
-
-  /**
-   * Returns the content policy bound to the given component.
-   *
-   * @param policy json
-   * @param userManager userManager
-   * @return the content policy. May be {@code nulll} in case no content policy can be found.
-   */
-  protected List<Permission> getAcls(JsonObject policy, UserManager userManager) {
-    Set<Permission> acl = new HashSet<>();
-
-    try {
-      for (String key : policy.keySet()) {
-        JsonElement rep = policy.get(key);
-        if (rep.isJsonObject()) {
-          String princ = rep.getAsJsonObject().get("rep:principalName").getAsString();
-          String type = rep.getAsJsonObject().get("jcr:primaryType").getAsString();
-          JsonArray priv = rep.getAsJsonObject().getAsJsonArray("rep:privileges");
-
-          boolean isGroup = isGroup(userManager, princ);
-
-          if (type.equals("rep:GrantACE") && hasPrivileges(priv)) {
-            acl.add(new Permission(princ, Permission.PERMISSION_TYPE.ALLOW, isGroup));
-          } else if (type.equals("rep:DenyACE") && hasPrivileges(priv)) {
-            acl.add(new Permission(princ, Permission.PERMISSION_TYPE.DENY, isGroup));
-          }
-        }
-      }
-
-    } catch (Exception ex) {
-      LOG.error("Error getting ACLs", ex);
-    }
-
-    List<Permission> aclList = new ArrayList<>();
-    aclList.addAll(acl);
-
-    return aclList;
-  }
-
-  protected List<Permission> getCugAcls(JsonArray principalNames, UserManager userManager) {
-    Set<Permission> acl = new HashSet<>();
-
-    try {
-      for (JsonElement element : principalNames) {
-        String princ = element.getAsString();
-
-        boolean isGroup = isGroup(userManager, princ);
-
-        acl.add(new Permission(princ, Permission.PERMISSION_TYPE.ALLOW, isGroup));
-      }
-    } catch (Exception ex) {
-      LOG.error("Error getting CUG ACLs", ex);
-    }
-
-    List<Permission> aclList = new ArrayList<>();
-    aclList.addAll(acl);
-
-    return aclList;
-  }
-
-  private boolean hasPrivileges(JsonArray privileges) {
-    for (JsonElement priv : privileges) {
-      if (priv.getAsString().equals("jcr:read") || priv.getAsString().equals("jcr:all")) {
-        return true;
-      }
-    }
-
-    return false;
-  }
-
   protected boolean isGroup(UserManager userManager, String id) {
     try {
       // Search the id in Groups
       Iterator<Authorizable> auths = userManager.findAuthorizables(new Query() {
         public <T> void build(QueryBuilder<T> builder) {
           builder.setSelector(Group.class);
-          builder.setSortOrder("@jcr:created", Direction.ASCENDING);
           builder.setCondition(builder.nameMatches(id));
+          // only tells if a group matches
+          builder.setLimit(0, 1);
         }
       });
 
@@ -460,6 +256,23 @@ public abstract class AbstractCoveoContentBuilder implements CoveoContentBuilder
     }
   }
 
+  /**
+   * Add the encoded body of the document to the content, compressed with the
+   * configured compression type if it is bigger than the threshold.
+   *
+   * @param mapContent content of the document
+   * @param data body of the document
+   */
+  protected void putContent(Map<String, Object> mapContent, byte[] data) {
+    CompressionType type = ContentEncoder.resolve(compressionType, data.length, compressionThreshold);
+    try {
+      mapContent.put(CONTENT_FIELDNAME, ContentEncoder.encode(data, type));
+      mapContent.put(COMPRESSION_TYPE_FIELDNAME, type.toString());
+    } catch (IOException ex) {
+      LOG.error("Could not encode the content", ex);
+    }
+  }
+
   protected void setTagManager(TagManager tagManager) {
     this.tagManager = tagManager;
   }
@@ -0,0 +1,82 @@
+package com.mcplusa.coveo.connector.aem.indexing.contentbuilder;
+
+import com.mcplusa.coveo.sdk.pushapi.model.CompressionType;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Encodes the body of a document as the Base64 value expected in CompressedBinaryData, compressing
+ * it first with the configured {@link CompressionType}.
+ */
+public final class ContentEncoder {
+
+  private ContentEncoder() {
+    // static methods only
+  }
+
+  /**
+   * Get the compression that will be applied to a body.
+   *
+   * @param type      configured compression, null for no compression
+   * @param length    length in bytes of the body
+   * @param threshold bodies smaller than this value are not compressed
+   * @return the compression to use, UNCOMPRESSED if the type is not supported
+   */
+  public static CompressionType resolve(CompressionType type, int length, int threshold) {
+    if (type == null || length < threshold) {
+      return CompressionType.UNCOMPRESSED;
+    }
+
+    switch (type) {
+      case ZLIB:
+      case GZIP:
+      case DEFLATE:
+        return type;
+      default:
+        return CompressionType.UNCOMPRESSED;
+    }
+  }
+
+  /**
+   * Compress and encode the body. The compressed bytes are written straight into the Base64
+   * encoder, so the compressed body is never held in memory on its own.
+   *
+   * @param data body of the document
+   * @param type compression returned by {@link #resolve(CompressionType, int, int)}
+   * @return Base64 of the compressed body
+   * @throws IOException if the body could not be compressed
+   */
+  public static String encode(byte[] data, CompressionType type) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2);
+    try (OutputStream os = compress(Base64.getEncoder().wrap(out), type)) {
+      os.write(data);
+    }
+
+    return new String(out.toByteArray(), StandardCharsets.US_ASCII);
+  }
+
+  private static OutputStream compress(OutputStream out, CompressionType type) throws IOException {
+    switch (type) {
+      case ZLIB:
+        return new DeflaterOutputStream(out);
+      case GZIP:
+        return new GZIPOutputStream(out);
+      case DEFLATE:
+        return new DeflaterOutputStream(out, new Deflater(Deflater.DEFAULT_COMPRESSION, true)) {
+          @Override
+          public void close() throws IOException {
+            super.close();
+            def.end();
+          }
+        };
+      default:
+        return out;
+    }
+  }
+}
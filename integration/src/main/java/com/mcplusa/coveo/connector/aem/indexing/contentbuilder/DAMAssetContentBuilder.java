@@ -4,19 +4,15 @@ import com.day.cq.commons.Externalizer;
 import com.day.cq.dam.api.Asset;
 import com.day.cq.dam.api.Rendition;
 import com.day.cq.tagging.TagManager;
-import com.google.common.reflect.TypeToken;
-import com.google.gson.Gson;
-import com.google.gson.JsonObject;
 import com.mcplusa.coveo.connector.aem.indexing.IndexEntry;
 import com.mcplusa.coveo.connector.aem.indexing.NodePermissionLevel;
+import com.mcplusa.coveo.connector.aem.indexing.PermissionChain;
 import com.mcplusa.coveo.connector.aem.indexing.config.CoveoIndexConfiguration;
+import com.mcplusa.coveo.connector.aem.service.AccessPolicyCache;
 import com.mcplusa.coveo.connector.aem.service.CoveoService;
-import com.mcplusa.coveo.sdk.CoveoResponse;
-import com.mcplusa.coveo.sdk.pushapi.CoveoPushClient;
-import com.mcplusa.coveo.sdk.pushapi.model.FileContainerResponse;
-import java.io.InputStream;
-import java.lang.reflect.Type;
-import java.util.Base64;
+import com.mcplusa.coveo.connector.aem.service.PrincipalTypeCache;
+import com.mcplusa.coveo.connector.aem.service.TagTitleCache;
+import java.util.Calendar;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
 import java.util.List;
@@ -30,7 +26,7 @@ import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
-import org.apache.http.HttpStatus;
+import org.apache.jackrabbit.JcrConstants;
 import org.apache.jackrabbit.api.security.user.UserManager;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
@@ -52,13 +48,31 @@ public class DAMAssetContentBuilder extends AbstractCoveoContentBuilder {
   @Reference
   protected CoveoService coveoService;
 
+  @Reference
+  private AccessPolicyCache accessPolicyCache;
+
+  @Reference
+  private PrincipalTypeCache principalTypeCache;
+
+  @Reference
+  private TagTitleCache tagTitleCache;
+
   private static final Logger LOG = LoggerFactory.getLogger(DAMAssetContentBuilder.class);
   private static final String TITLE_FIELDNAME = "dc:title";
   private static final String DESCRIPTION_FIELDNAME = "dc:description";
   private static final String CREATED_FIELDNAME = "jcr:created";
   private static final String AUTHOR_FIELDNAME = "jcr:createdBy";
   private static final String MODIFIED_FIELDNAME = "jcr:lastModified";
+  private static final String SHA1_FIELDNAME = "dam:sha1";
   public static final String PRIMARY_TYPE_VALUE = "dam:Asset";
+  /** Field of the entries with the original rendition, uploaded to the Sources on delivery. */
+  public static final String BINARY_FIELDNAME = "binary";
+  /** Path of the original rendition. */
+  public static final String BINARY_PATH = "path";
+  /** Digest of the original rendition, stable while its binary does not change. */
+  public static final String BINARY_DIGEST = "digest";
+  /** Type of the entries built for the primary type. */
+  public static final String ENTRY_TYPE = "asset";
 
   private static final String[] FIXED_RULES = {
     TITLE_FIELDNAME, DESCRIPTION_FIELDNAME, CREATED_FIELDNAME, AUTHOR_FIELDNAME, MODIFIED_FIELDNAME
@@ -72,6 +86,8 @@ public class DAMAssetContentBuilder extends AbstractCoveoContentBuilder {
       Externalizer externalizer = resolver.adaptTo(Externalizer.class);
       Resource res = resolver.getResource(path);
       this.permissionPolicy = this.coveoService.getPermissionPolicy();
+      this.compressionType = this.coveoService.getCompressionType();
+      this.compressionThreshold = this.coveoService.getCompressionThreshold();
       setTagManager(resolver.adaptTo(TagManager.class));
       if (res != null) {
         Asset asset = res.adaptTo(Asset.class);
@@ -80,7 +96,7 @@ public class DAMAssetContentBuilder extends AbstractCoveoContentBuilder {
           if (externalizer != null) {
             documentId = externalizer.publishLink(resolver, path);
           }
-          IndexEntry ret = new IndexEntry("idx", "asset", path);
+          IndexEntry ret = new IndexEntry("idx", ENTRY_TYPE, path);
           ret.setDocumentId(documentId);
 
           if (includeContent) {
@@ -102,7 +118,7 @@ public class DAMAssetContentBuilder extends AbstractCoveoContentBuilder {
     if (externalizer != null) {
       documentId = externalizer.publishLink(resolver, path);
     }
-    IndexEntry ret = new IndexEntry("idx", "asset", path);
+    IndexEntry ret = new IndexEntry("idx", ENTRY_TYPE, path);
     ret.setDocumentId(documentId);
 
     return ret;
@@ -113,21 +129,10 @@ public class DAMAssetContentBuilder extends AbstractCoveoContentBuilder {
     Map<String, Object> mapContent = new HashMap<>();
     String[] indexRules = getIndexRules(PRIMARY_TYPE_VALUE);
 
-    Map<String, Object> allProperties = getAllProperties(res);
-    mapContent.putAll(getProperties(res, indexRules));
-
-    // Extract additional properties from the Node
-    try {
-      Session session = resolver.adaptTo(Session.class);
-      Node node = session.getNode(path);
-      JsonObject content = toJson(node).getAsJsonObject("jcr:content");
-      if (content != null) {
-        Map<String, Object> allprops = getJsonProperties(content, indexRules);
-        mapContent.putAll(allprops);
-      }
-    } catch (Exception ex) {
-      LOG.error("Could not extract additionals properties from the node", ex);
-    }
+    PropertyCollector collector = collectProperties(res, indexRules, true, tagTitleCache);
+    Map<String, Object> allProperties = collector.getAllProperties();
+    mapContent.putAll(collector.getProperties());
+    mapContent.putAll(collector.getNodeProperties());
 
     if (this.getLastValue(allProperties, TITLE_FIELDNAME, String.class) != null) {
       String title = this.getLastValue(allProperties, TITLE_FIELDNAME, String.class);
@@ -149,12 +154,7 @@ public class DAMAssetContentBuilder extends AbstractCoveoContentBuilder {
         || MimeTypes.getType(asset.getMimeType()).isEmpty()) {
       Rendition original = asset.getOriginal();
       if (original != null) {
-        InputStream is = original.getStream();
-
-        if (is != null) {
-          String content = pushToFileContainer(is);
-          mapContent.put("fileId", content);
-        }
+        mapContent.put(BINARY_FIELDNAME, getBinary(asset, original));
       }
 
     } else if (MimeTypes.Video.isVideo(asset.getMimeType()) != null) {
@@ -165,8 +165,7 @@ public class DAMAssetContentBuilder extends AbstractCoveoContentBuilder {
               (String) mapContent.get("title"),
               (String) mapContent.get("description"));
 
-      String content = Base64.getEncoder().encodeToString(data.getBytes());
-      mapContent.put("content", content);
+      putContent(mapContent, data.getBytes());
     }
 
     if (StringUtils.isNotEmpty(MimeTypes.getType(asset.getMimeType()))) {
@@ -215,15 +214,10 @@ public class DAMAssetContentBuilder extends AbstractCoveoContentBuilder {
       UserManager userManager = resourceResolver.adaptTo(UserManager.class);
 
       Node node = adminSession.getNode(path);
-      List<NodePermissionLevel> permLevels = getPermissionLevelList(node, userManager);
-
-      Type listType =
-          new TypeToken<List<NodePermissionLevel>>() {
-            private static final long serialVersionUID = 8901050930521733762L;
-          }.getType();
-      String aclJson = new Gson().toJson(permLevels, listType);
+      List<NodePermissionLevel> permLevels = getPermissionLevelList(node, userManager, accessPolicyCache,
+          principalTypeCache);
 
-      mapContent.put("acl", aclJson);
+      mapContent.put("acl", PermissionChain.encode(permLevels));
     } catch (Exception ex) {
       LOG.error("Error getting Permissions for asset " + path, ex);
     } finally {
@@ -269,24 +263,24 @@ public class DAMAssetContentBuilder extends AbstractCoveoContentBuilder {
   }
 
   /**
-   * Get a FileContainer and push the data to the S3 instance.
+   * Identify the original rendition of the asset, so the transport handler uploads it only when the
+   * document is pushed.
    *
-   * @param is InputStream of the document.
-   * @return the fileId of the FileContainer.
+   * @param asset    asset of the rendition.
+   * @param original original rendition of the asset.
+   * @return the path of the rendition and a digest of its binary.
    */
-  private String pushToFileContainer(InputStream is) {
-    try {
-      CoveoPushClient client = coveoService.getClient();
-      FileContainerResponse fileContainer = client.getFileContainer();
-
-      CoveoResponse response = client.pushFileOnS3(is, fileContainer.getUploadUri());
-      if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
-        return fileContainer.getFileId();
-      }
-    } catch (Exception e) {
-      LOG.error("Could not push the data to the file Container", e);
+  private Map<String, String> getBinary(Asset asset, Rendition original) {
+    String digest = asset.getMetadataValue(SHA1_FIELDNAME);
+    if (StringUtils.isEmpty(digest)) {
+      Calendar modified = original.getProperties().get(JcrConstants.JCR_LASTMODIFIED, Calendar.class);
+      long lastModified = modified != null ? modified.getTimeInMillis() : asset.getLastModified();
+      digest = lastModified + "/" + original.getSize();
     }
 
-    return null;
+    Map<String, String> binary = new HashMap<>();
+    binary.put(BINARY_PATH, original.getPath());
+    binary.put(BINARY_DIGEST, digest);
+    return binary;
   }
 }
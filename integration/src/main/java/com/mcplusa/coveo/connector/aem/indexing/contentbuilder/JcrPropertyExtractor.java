@@ -0,0 +1,103 @@
+package com.mcplusa.coveo.connector.aem.indexing.contentbuilder;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.JSONObject;
+import org.apache.sling.commons.json.jcr.JsonItemWriter;
+
+/**
+ * Extracts the properties listed in the index rules from a node, reading the {@link Property}s
+ * directly.
+ *
+ * <p>Only the properties of the rules are read. The values are the ones the node gave once dumped
+ * with {@link JsonItemWriter} and parsed back: a single value as a string, and multiple values as a
+ * list of strings, numbers as doubles and booleans. The binary properties are left out.
+ */
+public final class JcrPropertyExtractor {
+
+  private JcrPropertyExtractor() {
+    // static methods only
+  }
+
+  /**
+   * Extract the properties of the rules from a node.
+   *
+   * @param node       node to read
+   * @param properties names of the properties to extract
+   * @return the values by name of property
+   * @throws RepositoryException if the node could not be read
+   */
+  public static Map<String, Object> extract(Node node, Collection<String> properties) throws RepositoryException {
+    Map<String, Object> props = new HashMap<>();
+    for (String name : properties) {
+      if (node.hasProperty(name)) {
+        Object value = getValue(node.getProperty(name));
+        if (value != null) {
+          props.put(name, value);
+        }
+      }
+    }
+    return props;
+  }
+
+  private static Object getValue(Property property) throws RepositoryException {
+    if (property.getType() == PropertyType.BINARY) {
+      return null;
+    }
+
+    if (!property.isMultiple()) {
+      return toString(property.getValue());
+    }
+
+    Value[] values = property.getValues();
+    List<Object> list = new ArrayList<>(values.length);
+    for (Value value : values) {
+      switch (value.getType()) {
+        case PropertyType.LONG:
+          list.add((double) value.getLong());
+          break;
+        case PropertyType.DOUBLE:
+          list.add(value.getDouble());
+          break;
+        case PropertyType.DECIMAL:
+          list.add(value.getDecimal().doubleValue());
+          break;
+        case PropertyType.BOOLEAN:
+          list.add(value.getBoolean());
+          break;
+        default:
+          list.add(toString(value));
+      }
+    }
+    return list;
+  }
+
+  private static String toString(Value value) throws RepositoryException {
+    try {
+      switch (value.getType()) {
+        case PropertyType.LONG:
+          return String.valueOf(value.getLong());
+        case PropertyType.DOUBLE:
+          return JSONObject.numberToString(value.getDouble());
+        case PropertyType.DECIMAL:
+          return JSONObject.numberToString(value.getDecimal());
+        case PropertyType.DATE:
+          return JsonItemWriter.format(value.getDate());
+        default:
+          return value.getString();
+      }
+    } catch (JSONException ex) {
+      // not finite, JsonItemWriter could not write it either
+      return null;
+    }
+  }
+}
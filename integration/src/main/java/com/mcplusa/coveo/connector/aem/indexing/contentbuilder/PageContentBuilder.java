@@ -5,19 +5,17 @@ import com.day.cq.contentsync.handler.util.RequestResponseFactory;
 import com.day.cq.tagging.TagManager;
 import com.day.cq.wcm.api.Page;
 import com.day.cq.wcm.api.PageManager;
-import com.google.common.reflect.TypeToken;
-import com.google.gson.Gson;
-import com.google.gson.JsonObject;
 import com.mcplusa.coveo.connector.aem.indexing.IndexEntry;
 import com.mcplusa.coveo.connector.aem.indexing.NodePermissionLevel;
+import com.mcplusa.coveo.connector.aem.indexing.PermissionChain;
 import com.mcplusa.coveo.connector.aem.indexing.config.CoveoIndexConfiguration;
+import com.mcplusa.coveo.connector.aem.service.AccessPolicyCache;
 import com.mcplusa.coveo.connector.aem.service.CoveoService;
+import com.mcplusa.coveo.connector.aem.service.PrincipalTypeCache;
+import com.mcplusa.coveo.connector.aem.service.TagTitleCache;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.lang.reflect.Type;
-import java.nio.charset.StandardCharsets;
-import java.util.Base64;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -55,7 +53,18 @@ public class PageContentBuilder extends AbstractCoveoContentBuilder {
   @Reference
   protected CoveoService coveoService;
 
+  @Reference
+  private AccessPolicyCache accessPolicyCache;
+
+  @Reference
+  private PrincipalTypeCache principalTypeCache;
+
+  @Reference
+  private TagTitleCache tagTitleCache;
+
   public static final String PRIMARY_TYPE_VALUE = "cq:Page";
+  /** Type of the entries built for the primary type. */
+  public static final String ENTRY_TYPE = "page";
 
   private static final Logger LOG = LoggerFactory.getLogger(PageContentBuilder.class);
   private static final String[] FIXED_RULES = {
@@ -69,6 +78,8 @@ public class PageContentBuilder extends AbstractCoveoContentBuilder {
     PageManager pageManager = resolver.adaptTo(PageManager.class);
     setTagManager(resolver.adaptTo(TagManager.class));
     this.permissionPolicy = coveoService.getPermissionPolicy();
+    this.compressionType = coveoService.getCompressionType();
+    this.compressionThreshold = coveoService.getCompressionThreshold();
     if (pageManager != null) {
       Page page = pageManager.getPage(path);
       if (page != null) {
@@ -77,7 +88,7 @@ public class PageContentBuilder extends AbstractCoveoContentBuilder {
           documentId = externalizer.publishLink(resolver, path) + ".html";
         }
         Resource res = page.getContentResource();
-        IndexEntry ret = new IndexEntry("idx", "page", path);
+        IndexEntry ret = new IndexEntry("idx", ENTRY_TYPE, path);
         ret.setDocumentId(documentId);
 
         if (includeContent) {
@@ -98,7 +109,7 @@ public class PageContentBuilder extends AbstractCoveoContentBuilder {
     if (externalizer != null) {
       documentId = externalizer.publishLink(resolver, path);
     }
-    IndexEntry ret = new IndexEntry("idx", "page", path);
+    IndexEntry ret = new IndexEntry("idx", ENTRY_TYPE, path);
     ret.setDocumentId(documentId);
 
     return ret;
@@ -109,25 +120,17 @@ public class PageContentBuilder extends AbstractCoveoContentBuilder {
     Map<String, Object> mapContent = new HashMap<>();
     String[] indexRules = getIndexRules(PRIMARY_TYPE_VALUE);
 
-    mapContent.putAll(getProperties(res, indexRules));
-
-    // Extract additional properties from the Node
-    try {
-      Session session = resolver.adaptTo(Session.class);
-      Node node = session.getNode(path);
-      JsonObject content = toJson(node).getAsJsonObject("jcr:content");
-      if (content != null) {
-        Map<String, Object> allprops = getJsonProperties(content, indexRules);
-        mapContent.putAll(allprops);
-      }
-    } catch (Exception ex) {
-      LOG.error("Could not extract additionals properties from the node", ex);
-    }
+    PropertyCollector collector = collectProperties(res, indexRules, false, tagTitleCache);
+    mapContent.putAll(collector.getProperties());
+    mapContent.putAll(collector.getNodeProperties());
 
     mapContent.put("title", page.getTitle());
     mapContent.put("author", this.getLastValue(res.getValueMap(), "jcr:createdBy", String.class));
     mapContent.put("created", this.getLastValue(res.getValueMap(), "jcr:created", Long.class));
-    mapContent.put("content", getHtmlContent(resolver, path + ".html"));
+    byte[] html = getHtmlContent(resolver, path + ".html");
+    if (html != null) {
+      putContent(mapContent, html);
+    }
 
     if (page.getLastModified() != null) {
       mapContent.put("lastmodified", page.getLastModified().getTimeInMillis());
@@ -141,15 +144,10 @@ public class PageContentBuilder extends AbstractCoveoContentBuilder {
       UserManager userManager = resourceResolver.adaptTo(UserManager.class);
 
       Node node = adminSession.getNode(path);
-      List<NodePermissionLevel> permLevels = getPermissionLevelList(node, userManager);
-
-      Type listType =
-          new TypeToken<List<NodePermissionLevel>>() {
-            private static final long serialVersionUID = -452808663442673585L;
-          }.getType();
-      String aclJson = new Gson().toJson(permLevels, listType);
+      List<NodePermissionLevel> permLevels = getPermissionLevelList(node, userManager, accessPolicyCache,
+          principalTypeCache);
 
-      mapContent.put("acl", aclJson);
+      mapContent.put("acl", PermissionChain.encode(permLevels));
     } catch (Exception ex) {
       LOG.error("Error getting Permissions for page " + path, ex);
     } finally {
@@ -161,7 +159,7 @@ public class PageContentBuilder extends AbstractCoveoContentBuilder {
     return mapContent;
   }
 
-  private String getHtmlContent(ResourceResolver resourceResolver, String path) {
+  private byte[] getHtmlContent(ResourceResolver resourceResolver, String path) {
     try {
       HttpServletRequest request = requestResponseFactory.createRequest("GET", path);
 
@@ -170,8 +168,7 @@ public class PageContentBuilder extends AbstractCoveoContentBuilder {
       HttpServletResponse response = requestResponseFactory.createResponse(out);
       requestProcessor.processRequest(request, response, resourceResolver);
 
-      String html = new String(out.toByteArray(), StandardCharsets.UTF_8);
-      return Base64.getEncoder().encodeToString(html.getBytes());
+      return out.toByteArray();
     } catch (ServletException | IOException ex) {
       LOG.error("Error getting Page content", ex);
     } catch (Exception ex) {
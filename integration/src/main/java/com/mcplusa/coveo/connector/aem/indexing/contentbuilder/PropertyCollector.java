@@ -0,0 +1,160 @@
+package com.mcplusa.coveo.connector.aem.indexing.contentbuilder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.UnaryOperator;
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import lombok.Getter;
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ValueMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects the properties of a document in a single walk of its resources.
+ *
+ * <p>Each resource is visited once and feeds:
+ * <ul>
+ *   <li>all its properties, if asked for</li>
+ *   <li>the properties of the index rules</li>
+ *   <li>the properties of the index rules read from the JCR nodes of the jcr:content, the tags
+ *   resolved to their titles</li>
+ * </ul>
+ *
+ * <p>A property found on several resources is merged in the order of the walk, the nearest first,
+ * into an array. The values are accumulated in a list and the array is built once the walk is
+ * done. The access policies are not walked.
+ */
+public final class PropertyCollector {
+
+  private static final Logger LOG = LoggerFactory.getLogger(PropertyCollector.class);
+
+  /** Child resources never walked. */
+  private static final Set<String> PRUNED_NODES =
+      new LinkedHashSet<>(Arrays.asList("rep:policy", "rep:cugPolicy", "rep:repoPolicy"));
+
+  private final Set<String> rules;
+
+  private final boolean collectAll;
+
+  private final UnaryOperator<Object> resolve;
+
+  /** All the properties, empty unless asked for. */
+  @Getter
+  private final Map<String, Object> allProperties = new HashMap<>();
+
+  /** The properties of the rules. */
+  @Getter
+  private final Map<String, Object> properties = new HashMap<>();
+
+  /** The properties of the rules read from the nodes of the jcr:content. */
+  @Getter
+  private final Map<String, Object> nodeProperties = new HashMap<>();
+
+  private PropertyCollector(String[] rules, boolean collectAll, UnaryOperator<Object> resolve) {
+    this.rules = new LinkedHashSet<>(Arrays.asList(rules));
+    this.collectAll = collectAll;
+    this.resolve = resolve;
+  }
+
+  /**
+   * Collect the properties of a resource and its descendants.
+   *
+   * @param res        resource of the document, or its jcr:content
+   * @param rules      names of the properties of the rules
+   * @param collectAll whether all the properties are collected too
+   * @param resolve    maps every value read from the nodes, like the tags to their titles
+   * @return the collected properties
+   */
+  public static PropertyCollector collect(Resource res, String[] rules, boolean collectAll,
+      UnaryOperator<Object> resolve) {
+    PropertyCollector collector = new PropertyCollector(rules, collectAll, resolve);
+    String contentPath = JcrConstants.JCR_CONTENT.equals(res.getName())
+        ? res.getPath() : res.getPath() + "/" + JcrConstants.JCR_CONTENT;
+    collector.visit(res, contentPath, false);
+    collector.allProperties.replaceAll(PropertyCollector::toArray);
+    collector.properties.replaceAll(PropertyCollector::toArray);
+    collector.nodeProperties.replaceAll(PropertyCollector::toArray);
+    return collector;
+  }
+
+  private void visit(Resource res, String contentPath, boolean inContent) {
+    boolean readNodes = inContent || res.getPath().equals(contentPath);
+
+    ValueMap vm = res.getValueMap();
+    if (collectAll) {
+      for (Map.Entry<String, Object> entry : vm.entrySet()) {
+        add(allProperties, entry.getKey(), entry.getValue());
+      }
+    }
+    for (String rule : rules) {
+      add(properties, rule, vm.get(rule));
+    }
+    if (readNodes) {
+      readNode(res);
+    }
+
+    for (Resource child : res.getChildren()) {
+      if (!PRUNED_NODES.contains(child.getName())) {
+        visit(child, contentPath, readNodes);
+      }
+    }
+  }
+
+  private void readNode(Resource res) {
+    Node node = res.adaptTo(Node.class);
+    if (node == null) {
+      return;
+    }
+
+    try {
+      for (Map.Entry<String, Object> entry : JcrPropertyExtractor.extract(node, rules).entrySet()) {
+        add(nodeProperties, entry.getKey(), resolve.apply(entry.getValue()));
+      }
+    } catch (RepositoryException ex) {
+      LOG.error("Could not extract additionals properties from the node {}", res.getPath(), ex);
+    }
+  }
+
+  private static void add(Map<String, Object> props, String name, Object value) {
+    if (value == null) {
+      return;
+    }
+
+    Object previous = props.get(name);
+    if (previous == null) {
+      props.put(name, value);
+    } else if (previous instanceof MergedValues) {
+      ((MergedValues) previous).addValue(value);
+    } else {
+      MergedValues merged = new MergedValues();
+      merged.addValue(previous);
+      merged.addValue(value);
+      props.put(name, merged);
+    }
+  }
+
+  private static Object toArray(String name, Object value) {
+    return value instanceof MergedValues ? ((MergedValues) value).toArray() : value;
+  }
+
+  /** Values of a property found on several resources, the arrays flattened. */
+  private static final class MergedValues extends ArrayList<Object> {
+
+    private static final long serialVersionUID = 1L;
+
+    void addValue(Object value) {
+      if (value instanceof Object[]) {
+        addAll(Arrays.asList((Object[]) value));
+      } else {
+        add(value);
+      }
+    }
+  }
+}
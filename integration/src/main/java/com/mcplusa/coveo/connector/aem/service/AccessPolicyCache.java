@@ -0,0 +1,526 @@
+package com.mcplusa.coveo.connector.aem.service;
+
+import com.mcplusa.coveo.connector.aem.indexing.Permission;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+import javax.jcr.query.Query;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.SlingConstants;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Permissions read from the {@code rep:policy} and {@code rep:cugPolicy} of the nodes under
+ * {@code /content}, kept in a snapshot so the permission levels of a document are looked up without
+ * reading its ancestors from the repository.
+ *
+ * <p>The snapshot is a trie of the paths with policies. It is built on the first lookup from a
+ * single query of the policies under {@code /content}, pages and assets alike, and every policy is
+ * parsed once. The snapshot is then kept up to date incrementally: the resource events only queue
+ * the changed paths, and the next lookup reads the policies of the queued nodes again, drops a
+ * removed subtree, or queries the policies of an added subtree, since a moved subtree keeps its
+ * policies. The snapshot is built again when too many changes are queued, or when reading the
+ * policies failed.
+ *
+ * <p>The policies are read with an administrative session, the snapshot is shared by all the
+ * documents whatever the session indexing them can read. It keeps the principals of the policies
+ * only, whether a principal is a group is asked on every lookup, so it follows the
+ * {@link PrincipalTypeCache}.
+ */
+@Component(metatype = false, immediate = true)
+@Service({AccessPolicyCache.class, EventHandler.class})
+@Properties({
+    @Property(name = EventConstants.EVENT_TOPIC, value = {
+        SlingConstants.TOPIC_RESOURCE_ADDED,
+        SlingConstants.TOPIC_RESOURCE_CHANGED,
+        SlingConstants.TOPIC_RESOURCE_REMOVED
+    }),
+    @Property(name = EventConstants.EVENT_FILTER, value = "(&(path=/content/*)(|(path=*/"
+        + AccessPolicyCache.POLICY_NODE + "*)(path=*/" + AccessPolicyCache.CUG_POLICY_NODE + "*)(event.topics="
+        + SlingConstants.TOPIC_RESOURCE_ADDED + ")(event.topics=" + SlingConstants.TOPIC_RESOURCE_REMOVED + ")))")
+})
+public class AccessPolicyCache implements EventHandler {
+
+  private static final Logger LOG = LoggerFactory.getLogger(AccessPolicyCache.class);
+
+  public static final String POLICY_NODE = "rep:policy";
+
+  public static final String CUG_POLICY_NODE = "rep:cugPolicy";
+
+  private static final String ROOT_PATH = "/content";
+
+  private static final String POLICIES_QUERY = "SELECT * FROM [rep:Policy] AS policy WHERE ISDESCENDANTNODE(policy, '%s')";
+
+  /** Max number of changes queued, the snapshot is built again past it. */
+  private static final int MAX_CHANGES = 10000;
+
+  /** Permissions of a node without policies. */
+  public static final NodePolicies NO_POLICIES = new NodePolicies(Collections.emptyList(), Collections.emptyList());
+
+  @Reference
+  private ResourceResolverFactory resolverFactory;
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  /**
+   * Paths changed since the last lookup, an added subtree is prefixed with {@link #ADDED} and a
+   * removed subtree with {@link #REMOVED}.
+   */
+  private final Queue<String> changes = new ConcurrentLinkedQueue<>();
+
+  private final AtomicInteger changeCount = new AtomicInteger();
+
+  private static final String ADDED = "+";
+
+  private static final String REMOVED = "-";
+
+  private volatile boolean rebuild;
+
+  private TrieNode root;
+
+  public AccessPolicyCache() {
+    // the resolver factory is injected
+  }
+
+  /**
+   * Create the cache.
+   *
+   * @param resolverFactory opens the administrative sessions reading the policies
+   */
+  AccessPolicyCache(ResourceResolverFactory resolverFactory) {
+    this.resolverFactory = resolverFactory;
+  }
+
+  /**
+   * Permissions declared by the policies of a node. The snapshot keeps them without telling the
+   * groups apart, see {@link #resolve(Predicate)}.
+   */
+  @Getter
+  @AllArgsConstructor
+  public static class NodePolicies {
+
+    /** Permissions of the {@code rep:policy} of the node. */
+    private final List<Permission> policy;
+
+    /** Permissions of the {@code rep:cugPolicy} of the node. */
+    private final List<Permission> cug;
+
+    public boolean isEmpty() {
+      return policy.isEmpty() && cug.isEmpty();
+    }
+
+    /**
+     * Get the permissions with the groups told apart.
+     *
+     * @param isGroup tells if a principal is a group
+     * @return the permissions
+     */
+    NodePolicies resolve(Predicate<String> isGroup) {
+      return new NodePolicies(resolve(policy, isGroup), resolve(cug, isGroup));
+    }
+
+    private static List<Permission> resolve(List<Permission> permissions, Predicate<String> isGroup) {
+      List<Permission> resolved = new ArrayList<>(permissions.size());
+      for (Permission permission : permissions) {
+        String principal = permission.getPrincipalName();
+        resolved.add(new Permission(principal, permission.getType(), isGroup.test(principal)));
+      }
+      return resolved;
+    }
+  }
+
+  private static final class TrieNode {
+
+    private final Map<String, TrieNode> children = new HashMap<>(4);
+
+    private NodePolicies policies;
+  }
+
+  /**
+   * Get the policies of a node and of its ancestors up to {@code /content} excluded, the nearest
+   * first. The nodes without policies are left out.
+   *
+   * @param path    path of the node
+   * @param isGroup tells if a principal is a group
+   * @return the policies
+   * @throws RepositoryException if the policies could not be read
+   */
+  public List<NodePolicies> getPolicies(String path, Predicate<String> isGroup) throws RepositoryException {
+    if (!path.startsWith(ROOT_PATH + "/")) {
+      ResourceResolver resolver = openResolver();
+      try {
+        return readAncestors(resolver.adaptTo(Session.class), path, isGroup);
+      } finally {
+        resolver.close();
+      }
+    }
+
+    update();
+
+    List<NodePolicies> policies = new ArrayList<>();
+    lock.readLock().lock();
+    try {
+      TrieNode node = root;
+      int start = ROOT_PATH.length() + 1;
+      while (node != null && start <= path.length()) {
+        int end = path.indexOf('/', start);
+        if (end < 0) {
+          end = path.length();
+        }
+        node = node.children.get(path.substring(start, end));
+        if (node != null && node.policies != null) {
+          policies.add(node.policies.resolve(isGroup));
+        }
+        start = end + 1;
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+
+    Collections.reverse(policies);
+    return policies;
+  }
+
+  /**
+   * Queue the changed policies for the next lookup.
+   *
+   * @param event resource event under /content
+   */
+  @Override
+  public void handleEvent(Event event) {
+    Object property = event.getProperty(SlingConstants.PROPERTY_PATH);
+    if (property == null) {
+      return;
+    }
+
+    String path = property.toString();
+    String node = getPolicyOwner(path);
+    if (node != null) {
+      LOG.debug("Policy of {} changed", node);
+      addChange(node);
+    } else if (SlingConstants.TOPIC_RESOURCE_REMOVED.equals(event.getTopic())) {
+      addChange(REMOVED + path);
+    } else if (SlingConstants.TOPIC_RESOURCE_ADDED.equals(event.getTopic())) {
+      addChange(ADDED + path);
+    }
+  }
+
+  /**
+   * Drop the snapshot, it is built again on the next lookup.
+   */
+  public void invalidate() {
+    rebuild = true;
+  }
+
+  private void addChange(String change) {
+    if (rebuild) {
+      return;
+    }
+
+    if (changeCount.incrementAndGet() > MAX_CHANGES) {
+      LOG.debug("Too many changes of the access policies, the snapshot is built again");
+      rebuild = true;
+    } else {
+      changes.add(change);
+    }
+  }
+
+  /**
+   * Get the node a policy belongs to.
+   *
+   * @param path path of the policy or of one of its entries
+   * @return the path of the node, null if the path is not in a policy
+   */
+  static String getPolicyOwner(String path) {
+    for (String policyNode : new String[] {POLICY_NODE, CUG_POLICY_NODE}) {
+      int index = path.indexOf("/" + policyNode);
+      int end = index + policyNode.length() + 1;
+      if (index >= 0 && (end == path.length() || path.charAt(end) == '/')) {
+        return index == 0 ? "/" : path.substring(0, index);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Read the permissions declared by the policies of a node, the groups not told apart.
+   *
+   * @param node node
+   * @return the permissions of the node
+   * @throws RepositoryException if the policies could not be read
+   */
+  static NodePolicies readPolicies(Node node) throws RepositoryException {
+    List<Permission> policy = Collections.emptyList();
+    if (node.hasNode(POLICY_NODE)) {
+      policy = readAcl(node.getNode(POLICY_NODE));
+    }
+
+    List<Permission> cug = Collections.emptyList();
+    if (node.hasNode(CUG_POLICY_NODE)) {
+      cug = readCug(node.getNode(CUG_POLICY_NODE));
+    }
+
+    return policy.isEmpty() && cug.isEmpty() ? NO_POLICIES : new NodePolicies(policy, cug);
+  }
+
+  private void update() throws RepositoryException {
+    lock.readLock().lock();
+    try {
+      if (root != null && !rebuild && changes.isEmpty()) {
+        return;
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+
+    lock.writeLock().lock();
+    ResourceResolver resolver = null;
+    try {
+      if (root != null && !rebuild && changes.isEmpty()) {
+        // updated by another lookup
+        return;
+      }
+
+      resolver = openResolver();
+      Session session = resolver.adaptTo(Session.class);
+      if (root == null || rebuild) {
+        build(session);
+      }
+
+      Set<String> paths = new LinkedHashSet<>();
+      for (String path = changes.poll(); path != null; path = changes.poll()) {
+        changeCount.decrementAndGet();
+        paths.add(path);
+      }
+
+      Set<String> added = new LinkedHashSet<>();
+      for (String path : paths) {
+        if (path.startsWith(ADDED)) {
+          added.add(path.substring(ADDED.length()));
+        } else if (path.startsWith(REMOVED)) {
+          remove(root, path.substring(REMOVED.length()));
+        } else if (session.nodeExists(path)) {
+          put(root, path, readPolicies(session.getNode(path)));
+        } else {
+          remove(root, path);
+        }
+      }
+
+      for (String path : added) {
+        if (!hasAncestor(added, path)) {
+          putTree(session, root, path);
+        }
+      }
+    } catch (RepositoryException | RuntimeException ex) {
+      // the polled changes are lost, the snapshot can't be trusted any more
+      rebuild = true;
+      throw ex;
+    } finally {
+      if (resolver != null) {
+        resolver.close();
+      }
+      lock.writeLock().unlock();
+    }
+  }
+
+  private void build(Session session) throws RepositoryException {
+    long start = System.currentTimeMillis();
+    // the changes made during the query are applied once the snapshot is built
+    rebuild = false;
+    changes.clear();
+    changeCount.set(0);
+
+    TrieNode trie = new TrieNode();
+    int nodes = putTree(session, trie, ROOT_PATH);
+    // kept only once all the policies are read, a failed build is tried again on the next lookup
+    root = trie;
+    LOG.info("Access policies of {} nodes read in {} ms", nodes, System.currentTimeMillis() - start);
+  }
+
+  /**
+   * Read the policies of a subtree with a single query.
+   *
+   * @return the number of nodes with policies
+   */
+  private static int putTree(Session session, TrieNode trie, String path) throws RepositoryException {
+    if (!session.nodeExists(path)) {
+      remove(trie, path);
+      return 0;
+    }
+
+    Set<String> owners = new LinkedHashSet<>();
+    String statement = String.format(POLICIES_QUERY, path.replace("'", "''"));
+    NodeIterator nodes = session.getWorkspace().getQueryManager()
+        .createQuery(statement, Query.JCR_SQL2).execute().getNodes();
+    while (nodes.hasNext()) {
+      Node policy = nodes.nextNode();
+      if (POLICY_NODE.equals(policy.getName()) || CUG_POLICY_NODE.equals(policy.getName())) {
+        owners.add(policy.getParent().getPath());
+      }
+    }
+
+    for (String owner : owners) {
+      put(trie, owner, readPolicies(session.getNode(owner)));
+    }
+    return owners.size();
+  }
+
+  private ResourceResolver openResolver() throws RepositoryException {
+    try {
+      return resolverFactory.getAdministrativeResourceResolver(null);
+    } catch (LoginException ex) {
+      throw new RepositoryException("Could not open a session to read the access policies", ex);
+    }
+  }
+
+  private static boolean hasAncestor(Set<String> paths, String path) {
+    for (int index = path.lastIndexOf('/'); index > 0; index = path.lastIndexOf('/', index - 1)) {
+      if (paths.contains(path.substring(0, index))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static void put(TrieNode root, String path, NodePolicies policies) {
+    if (!path.startsWith(ROOT_PATH + "/")) {
+      return;
+    }
+
+    if (policies.isEmpty()) {
+      TrieNode node = find(root, path);
+      if (node != null) {
+        node.policies = null;
+      }
+      return;
+    }
+
+    TrieNode node = root;
+    for (String name : path.substring(ROOT_PATH.length() + 1).split("/")) {
+      node = node.children.computeIfAbsent(name, key -> new TrieNode());
+    }
+    node.policies = policies;
+  }
+
+  private static void remove(TrieNode root, String path) {
+    int index = path.lastIndexOf('/');
+    if (index < ROOT_PATH.length() || !path.startsWith(ROOT_PATH + "/")) {
+      return;
+    }
+
+    TrieNode parent = index == ROOT_PATH.length() ? root : find(root, path.substring(0, index));
+    if (parent != null) {
+      parent.children.remove(path.substring(index + 1));
+    }
+  }
+
+  private static TrieNode find(TrieNode root, String path) {
+    TrieNode node = root;
+    for (String name : path.substring(ROOT_PATH.length() + 1).split("/")) {
+      node = node.children.get(name);
+      if (node == null) {
+        return null;
+      }
+    }
+    return node;
+  }
+
+  private static List<NodePolicies> readAncestors(Session session, String path, Predicate<String> isGroup)
+      throws RepositoryException {
+    List<NodePolicies> policies = new ArrayList<>();
+    for (String nodePath = path; nodePath != null; nodePath = getParentPath(nodePath)) {
+      NodePolicies nodePolicies = readPolicies(session.getNode(nodePath));
+      if (!nodePolicies.isEmpty()) {
+        policies.add(nodePolicies.resolve(isGroup));
+      }
+    }
+    return policies;
+  }
+
+  private static String getParentPath(String path) {
+    int index = path.lastIndexOf('/');
+    if (index <= 0) {
+      return null;
+    }
+
+    String parentPath = path.substring(0, index);
+    return parentPath.equals(ROOT_PATH) ? null : parentPath;
+  }
+
+  private static List<Permission> readAcl(Node acl) throws RepositoryException {
+    Set<Permission> permissions = new LinkedHashSet<>();
+    NodeIterator entries = acl.getNodes();
+    while (entries.hasNext()) {
+      Node entry = entries.nextNode();
+      if (!entry.hasProperty("rep:principalName") || !hasReadPrivilege(entry)) {
+        continue;
+      }
+
+      String principal = entry.getProperty("rep:principalName").getString();
+      String type = entry.getProperty("jcr:primaryType").getString();
+      if (type.equals("rep:GrantACE")) {
+        permissions.add(new Permission(principal, Permission.PERMISSION_TYPE.ALLOW, false));
+      } else if (type.equals("rep:DenyACE")) {
+        permissions.add(new Permission(principal, Permission.PERMISSION_TYPE.DENY, false));
+      }
+    }
+    return new ArrayList<>(permissions);
+  }
+
+  private static List<Permission> readCug(Node cug) throws RepositoryException {
+    Set<Permission> permissions = new LinkedHashSet<>();
+    if (cug.hasProperty("rep:principalNames")) {
+      for (Value value : getValues(cug.getProperty("rep:principalNames"))) {
+        String principal = value.getString();
+        permissions.add(new Permission(principal, Permission.PERMISSION_TYPE.ALLOW, false));
+      }
+    }
+    return new ArrayList<>(permissions);
+  }
+
+  private static boolean hasReadPrivilege(Node entry) throws RepositoryException {
+    if (!entry.hasProperty("rep:privileges")) {
+      return false;
+    }
+
+    for (Value value : getValues(entry.getProperty("rep:privileges"))) {
+      String privilege = value.getString();
+      if (privilege.equals("jcr:read") || privilege.equals("jcr:all")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static Value[] getValues(javax.jcr.Property property) throws RepositoryException {
+    return property.isMultiple() ? property.getValues() : new Value[] {property.getValue()};
+  }
+}
@@ -38,6 +38,9 @@ public class CoveoHostConfiguration {
       @PropertyOption(name = "STAGING", value = "STAGING"), @PropertyOption(name = "HIPAA", value = "HIPAA") })
   public static final String PROPERTY_ENV = "environment";
 
+  @Property(name = "additionalSources", label = "Additional Sources", cardinality = Integer.MAX_VALUE, description = "Other Sources the same documents are pushed to, formatted as orgId:sourceId:accessToken. Each Source has its own batches, retries and status.")
+  public static final String PROPERTY_ADDITIONAL_SOURCES = "additionalSources";
+
   @Property(name = "agentId", label = "Agent ID", value = "coveo-index-agent", description = "Agent ID of the created Coveo Index Agent")
   public static final String PROPERTY_AGENT_ID = "agentId";
 
@@ -57,6 +60,62 @@ public class CoveoHostConfiguration {
   @Property(name = "groupIdentityProviderFilter", label = "Groups Identity Provider Filter", value = "", description = "Filter groups to sync in Security Identity, only matches groups name will be included.")
   public static final String PROPERTY_GROUP_IDENTITY_PROVIDER_FILTER = "groupIdentityProviderFilter";
 
+  private static final int PROPERTY_BATCH_MAX_DOCUMENTS_DEFAULT = 1000;
+  @Property(name = "batchMaxDocuments", label = "Batch Max Documents", intValue = PROPERTY_BATCH_MAX_DOCUMENTS_DEFAULT, description = "Max number of documents in a batch before it is pushed to Coveo, 0 to disable.")
+  public static final String PROPERTY_BATCH_MAX_DOCUMENTS = "batchMaxDocuments";
+
+  private static final long PROPERTY_BATCH_MAX_SIZE_DEFAULT = 100L * 1024 * 1024;
+  @Property(name = "batchMaxSize", label = "Batch Max Size", longValue = PROPERTY_BATCH_MAX_SIZE_DEFAULT, description = "Max size in bytes of a batch before it is pushed to Coveo; bigger batches are split in several file containers. 0 to disable.")
+  public static final String PROPERTY_BATCH_MAX_SIZE = "batchMaxSize";
+
+  private static final long PROPERTY_BATCH_MAX_AGE_DEFAULT = 60000L;
+  @Property(name = "batchMaxAge", label = "Batch Max Age", longValue = PROPERTY_BATCH_MAX_AGE_DEFAULT, description = "Max time in milliseconds a batch waits before it is pushed to Coveo, 0 to disable.")
+  public static final String PROPERTY_BATCH_MAX_AGE = "batchMaxAge";
+
+  private static final long PROPERTY_BATCH_DEBOUNCE_WINDOW_DEFAULT = 0L;
+  @Property(name = "batchDebounceWindow", label = "Batch Debounce Window", longValue = PROPERTY_BATCH_DEBOUNCE_WINDOW_DEFAULT, description = "Time in milliseconds without new documents before a batch is pushed at the end of the queue, so repeated activations are pushed once. 0 to disable.")
+  public static final String PROPERTY_BATCH_DEBOUNCE_WINDOW = "batchDebounceWindow";
+
+  private static final long PROPERTY_FINGERPRINT_TIME_TO_LIVE_DEFAULT = 24L * 60 * 60 * 1000;
+  @Property(name = "fingerprintTimeToLive", label = "Fingerprint Time To Live", longValue = PROPERTY_FINGERPRINT_TIME_TO_LIVE_DEFAULT, description = "Time in milliseconds an activation identical to the last pushed version of the document is skipped. 0 to always push.")
+  public static final String PROPERTY_FINGERPRINT_TIME_TO_LIVE = "fingerprintTimeToLive";
+
+  private static final int PROPERTY_ENTRY_HANDOFF_SIZE_DEFAULT = 1000;
+  @Property(name = "entryHandoffSize", label = "Entry Handoff Size", intValue = PROPERTY_ENTRY_HANDOFF_SIZE_DEFAULT, description = "Max number of built entries kept in memory for the replication queue, so they are not read back from the queue. 0 to disable.")
+  public static final String PROPERTY_ENTRY_HANDOFF_SIZE = "entryHandoffSize";
+
+  private static final int PROPERTY_BATCH_MAX_IN_FLIGHT_DEFAULT = 2;
+  @Property(name = "batchMaxInFlight", label = "Batch Max In-Flight", intValue = PROPERTY_BATCH_MAX_IN_FLIGHT_DEFAULT, description = "Max number of batches being uploaded to Coveo at the same time.")
+  public static final String PROPERTY_BATCH_MAX_IN_FLIGHT = "batchMaxInFlight";
+
+  private static final int PROPERTY_FILE_CONTAINER_POOL_SIZE_DEFAULT = 4;
+  @Property(name = "fileContainerPoolSize", label = "File Container Pool Size", intValue = PROPERTY_FILE_CONTAINER_POOL_SIZE_DEFAULT, description = "Number of file containers requested in advance, so uploads start right away. 0 to disable.")
+  public static final String PROPERTY_FILE_CONTAINER_POOL_SIZE = "fileContainerPoolSize";
+
+  private static final long PROPERTY_SOURCE_STATUS_WINDOW_DEFAULT = 5000L;
+  @Property(name = "sourceStatusWindow", label = "Source Status Window", longValue = PROPERTY_SOURCE_STATUS_WINDOW_DEFAULT, description = "Time in milliseconds the REFRESH/IDLE changes of the Source status are coalesced, 0 to send them right away.")
+  public static final String PROPERTY_SOURCE_STATUS_WINDOW = "sourceStatusWindow";
+
+  private static final double PROPERTY_PUSH_API_RATE_DEFAULT = 5;
+  @Property(name = "pushApiRate", label = "Push API Rate", doubleValue = PROPERTY_PUSH_API_RATE_DEFAULT, description = "Max number of Push API calls per second, lowered automatically while Coveo throttles the calls. 0 to disable.")
+  public static final String PROPERTY_PUSH_API_RATE = "pushApiRate";
+
+  private static final int PROPERTY_PUSH_API_MAX_RETRIES_DEFAULT = 5;
+  @Property(name = "pushApiMaxRetries", label = "Push API Max Retries", intValue = PROPERTY_PUSH_API_MAX_RETRIES_DEFAULT, description = "Max number of retries of a Push API call that is throttled or fails with a server error.")
+  public static final String PROPERTY_PUSH_API_MAX_RETRIES = "pushApiMaxRetries";
+
+  private static final String PROPERTY_COMPRESSION_TYPE_DEFAULT = "ZLIB";
+  @Property(name = "compressionType", label = "Compression Type", value = PROPERTY_COMPRESSION_TYPE_DEFAULT, description = "Compression applied to the body of the documents before it is pushed to Coveo", options = {
+      @PropertyOption(name = "UNCOMPRESSED", value = "UNCOMPRESSED"),
+      @PropertyOption(name = "ZLIB", value = "ZLIB"),
+      @PropertyOption(name = "GZIP", value = "GZIP"),
+      @PropertyOption(name = "DEFLATE", value = "DEFLATE") })
+  public static final String PROPERTY_COMPRESSION_TYPE = "compressionType";
+
+  private static final int PROPERTY_COMPRESSION_THRESHOLD_DEFAULT = 1024;
+  @Property(name = "compressionThreshold", label = "Compression Threshold", intValue = PROPERTY_COMPRESSION_THRESHOLD_DEFAULT, description = "Bodies smaller than this size in bytes are pushed uncompressed.")
+  public static final String PROPERTY_COMPRESSION_THRESHOLD = "compressionThreshold";
+
   @Getter
   protected String organizationId;
 
@@ -69,6 +128,9 @@ public class CoveoHostConfiguration {
   @Getter
   protected String environment;
 
+  @Getter
+  protected String[] additionalSources;
+
   @Getter
   protected String agentId;
 
@@ -87,6 +149,45 @@ public class CoveoHostConfiguration {
   @Getter
   protected String groupIdentityProviderFilter;
 
+  @Getter
+  protected int batchMaxDocuments;
+
+  @Getter
+  protected long batchMaxSize;
+
+  @Getter
+  protected long batchMaxAge;
+
+  @Getter
+  protected long batchDebounceWindow;
+
+  @Getter
+  protected long fingerprintTimeToLive;
+
+  @Getter
+  protected int entryHandoffSize;
+
+  @Getter
+  protected int batchMaxInFlight;
+
+  @Getter
+  protected int fileContainerPoolSize;
+
+  @Getter
+  protected long sourceStatusWindow;
+
+  @Getter
+  protected double pushApiRate;
+
+  @Getter
+  protected int pushApiMaxRetries;
+
+  @Getter
+  protected String compressionType;
+
+  @Getter
+  protected int compressionThreshold;
+
   protected ComponentContext context;
 
   @Activate
@@ -96,11 +197,25 @@ public class CoveoHostConfiguration {
     this.sourceId = PropertiesUtil.toString(context.getProperties().get(CoveoHostConfiguration.PROPERTY_SOURCE_ID), null);
     this.accessToken = PropertiesUtil.toString(context.getProperties().get(CoveoHostConfiguration.PROPERTY_ACCESS_TOKEN), null);
     this.environment = PropertiesUtil.toString(context.getProperties().get(CoveoHostConfiguration.PROPERTY_ENV), CoveoHostConfiguration.PROPERTY_ENV_DEFAULT);
+    this.additionalSources = PropertiesUtil.toStringArray(context.getProperties().get(CoveoHostConfiguration.PROPERTY_ADDITIONAL_SOURCES), new String[0]);
     this.agentId = PropertiesUtil.toString(context.getProperties().get(CoveoHostConfiguration.PROPERTY_AGENT_ID), null);
     this.userIdentityProvider = PropertiesUtil.toString(context.getProperties().get(CoveoHostConfiguration.PROPERTY_USER_IDENTITY_PROVIDER), null);
     this.groupIdentityProvider = PropertiesUtil.toString(context.getProperties().get(CoveoHostConfiguration.PROPERTY_GROUP_IDENTITY_PROVIDER), null);
     this.aemIdentityProvider = "aem-security-identity";
     this.permissionPolicy = PropertiesUtil.toString(context.getProperties().get(CoveoHostConfiguration.PROPERTY_PERMISSION_POLICY), CoveoHostConfiguration.PROPERTY_PERMISSION_POLICY_DEFAULT);
     this.groupIdentityProviderFilter = PropertiesUtil.toString(context.getProperties().get(CoveoHostConfiguration.PROPERTY_GROUP_IDENTITY_PROVIDER_FILTER), null);
+    this.batchMaxDocuments = PropertiesUtil.toInteger(context.getProperties().get(CoveoHostConfiguration.PROPERTY_BATCH_MAX_DOCUMENTS), CoveoHostConfiguration.PROPERTY_BATCH_MAX_DOCUMENTS_DEFAULT);
+    this.batchMaxSize = PropertiesUtil.toLong(context.getProperties().get(CoveoHostConfiguration.PROPERTY_BATCH_MAX_SIZE), CoveoHostConfiguration.PROPERTY_BATCH_MAX_SIZE_DEFAULT);
+    this.batchMaxAge = PropertiesUtil.toLong(context.getProperties().get(CoveoHostConfiguration.PROPERTY_BATCH_MAX_AGE), CoveoHostConfiguration.PROPERTY_BATCH_MAX_AGE_DEFAULT);
+    this.batchDebounceWindow = PropertiesUtil.toLong(context.getProperties().get(CoveoHostConfiguration.PROPERTY_BATCH_DEBOUNCE_WINDOW), CoveoHostConfiguration.PROPERTY_BATCH_DEBOUNCE_WINDOW_DEFAULT);
+    this.fingerprintTimeToLive = PropertiesUtil.toLong(context.getProperties().get(CoveoHostConfiguration.PROPERTY_FINGERPRINT_TIME_TO_LIVE), CoveoHostConfiguration.PROPERTY_FINGERPRINT_TIME_TO_LIVE_DEFAULT);
+    this.entryHandoffSize = PropertiesUtil.toInteger(context.getProperties().get(CoveoHostConfiguration.PROPERTY_ENTRY_HANDOFF_SIZE), CoveoHostConfiguration.PROPERTY_ENTRY_HANDOFF_SIZE_DEFAULT);
+    this.batchMaxInFlight = PropertiesUtil.toInteger(context.getProperties().get(CoveoHostConfiguration.PROPERTY_BATCH_MAX_IN_FLIGHT), CoveoHostConfiguration.PROPERTY_BATCH_MAX_IN_FLIGHT_DEFAULT);
+    this.fileContainerPoolSize = PropertiesUtil.toInteger(context.getProperties().get(CoveoHostConfiguration.PROPERTY_FILE_CONTAINER_POOL_SIZE), CoveoHostConfiguration.PROPERTY_FILE_CONTAINER_POOL_SIZE_DEFAULT);
+    this.sourceStatusWindow = PropertiesUtil.toLong(context.getProperties().get(CoveoHostConfiguration.PROPERTY_SOURCE_STATUS_WINDOW), CoveoHostConfiguration.PROPERTY_SOURCE_STATUS_WINDOW_DEFAULT);
+    this.pushApiRate = PropertiesUtil.toDouble(context.getProperties().get(CoveoHostConfiguration.PROPERTY_PUSH_API_RATE), CoveoHostConfiguration.PROPERTY_PUSH_API_RATE_DEFAULT);
+    this.pushApiMaxRetries = PropertiesUtil.toInteger(context.getProperties().get(CoveoHostConfiguration.PROPERTY_PUSH_API_MAX_RETRIES), CoveoHostConfiguration.PROPERTY_PUSH_API_MAX_RETRIES_DEFAULT);
+    this.compressionType = PropertiesUtil.toString(context.getProperties().get(CoveoHostConfiguration.PROPERTY_COMPRESSION_TYPE), CoveoHostConfiguration.PROPERTY_COMPRESSION_TYPE_DEFAULT);
+    this.compressionThreshold = PropertiesUtil.toInteger(context.getProperties().get(CoveoHostConfiguration.PROPERTY_COMPRESSION_THRESHOLD), CoveoHostConfiguration.PROPERTY_COMPRESSION_THRESHOLD_DEFAULT);
   }
 }
@@ -1,10 +1,23 @@
 package com.mcplusa.coveo.connector.aem.service;
 
-import com.mcplusa.coveo.sdk.pushapi.model.BatchRequest;
+import com.mcplusa.coveo.connector.aem.indexing.IndexEntryHandoff;
+import com.mcplusa.coveo.connector.aem.indexing.batch.BatchFlushPolicy;
+import com.mcplusa.coveo.connector.aem.indexing.batch.BatchJournal;
+import com.mcplusa.coveo.connector.aem.indexing.batch.BatchRegistry;
+import com.mcplusa.coveo.connector.aem.indexing.batch.BatchUploadPipeline;
+import com.mcplusa.coveo.connector.aem.indexing.batch.PendingBatch;
+import com.mcplusa.coveo.connector.aem.indexing.batch.QueueDrainTracker;
+import com.mcplusa.coveo.sdk.CoveoResponse;
 import com.mcplusa.coveo.sdk.pushapi.model.Document;
+import com.mcplusa.coveo.sdk.pushapi.model.PushAPIStatus;
 
-import java.util.HashMap;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 import lombok.Getter;
 
@@ -14,62 +27,368 @@ import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.ReferenceCardinality;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.http.HttpStatus;
 import org.osgi.service.component.ComponentContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Service to handle queues for an specific Agent.
+ *
+ * <p>Every {@link CoveoSource} of the {@link CoveoService} has its own batches, journal and
+ * upload pipeline, so the documents are serialized once and pushed to all the Sources in
+ * parallel. The result of a push is the result of the configured Source; a batch an additional
+ * Source could not push is kept and pushed again by {@link #flushStaleBatches()}.
  */
 @Component(metatype = false, immediate = true)
 @Service(CoveoQueueService.class)
 public class CoveoQueueService {
 
+  private static final Logger LOG = LoggerFactory.getLogger(CoveoQueueService.class);
+
+  private static final String JOURNAL_DIRECTORY = "batch-journal";
+
+  private static final String FINGERPRINT_FILE = "document-fingerprints";
+
+  /** Metadata of a document with the fileId of its binary. */
+  public static final String COMPRESSEDBINARYDATAFILEID_FIELDNAME = "compressedBinaryDataFileId";
+
   @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
   protected CoveoHostConfiguration hostConfiguration;
 
+  @Reference
+  protected CoveoService coveoService;
+
   @Getter
-  private Map<String, BatchRequest> queueMap;
+  private BatchRegistry batchRegistry;
 
   @Getter
   private String agentId;
 
+  @Getter
+  private QueueDrainTracker drainTracker;
+
+  @Getter
+  private BatchFlushPolicy flushPolicy;
+
+  @Getter
+  private DocumentFingerprintStore fingerprintStore;
+
+  @Getter
+  private IndexEntryHandoff entryHandoff;
+
+  private List<SourceBatches> sourceBatches = new ArrayList<>();
+
   @Activate
   public void activate(ComponentContext context) {
-    this.queueMap = new HashMap<>();
     this.agentId = this.hostConfiguration.getAgentId();
+    this.drainTracker = new QueueDrainTracker();
+    this.entryHandoff = new IndexEntryHandoff(this.hostConfiguration.getEntryHandoffSize());
+    this.flushPolicy = new BatchFlushPolicy(this.hostConfiguration.getBatchMaxDocuments(),
+        this.hostConfiguration.getBatchMaxSize(), this.hostConfiguration.getBatchMaxAge(),
+        this.hostConfiguration.getBatchDebounceWindow());
+
+    List<SourceBatches> activeBatches = new ArrayList<>();
+    for (CoveoSource source : this.coveoService.getSources()) {
+      // the configured Source keeps the journal of the versions with a single Source
+      String directory = activeBatches.isEmpty() ? JOURNAL_DIRECTORY
+          : JOURNAL_DIRECTORY + "-" + source.getName().replaceAll("[^\\w-]", "_");
+      BatchRegistry registry = new BatchRegistry(new BatchJournal(getDataFile(context, directory)));
+      BatchUploadPipeline pipeline = new BatchUploadPipeline(registry,
+          part -> source.uploadToFileContainer(part::open).getFileId(), source::pushDocumentsBatch,
+          this.hostConfiguration.getBatchMaxInFlight(), this.hostConfiguration.getBatchMaxSize());
+      activeBatches.add(new SourceBatches(source, registry, pipeline));
+    }
+    this.sourceBatches = activeBatches;
+    this.batchRegistry = activeBatches.isEmpty() ? null : activeBatches.get(0).registry;
+    replayJournal();
+    this.fingerprintStore = new DocumentFingerprintStore(getDataFile(context, FINGERPRINT_FILE),
+        this.hostConfiguration.getFingerprintTimeToLive());
+    this.fingerprintStore.load();
   }
 
   @Deactivate
   public void deactivate(ComponentContext context) {
-    if (this.queueMap != null) {
-      this.queueMap.clear();
+    for (SourceBatches batches : this.sourceBatches) {
+      batches.pipeline.shutdown();
+      batches.registry.clear();
+    }
+
+    if (this.drainTracker != null) {
+      this.drainTracker.reset();
+    }
+
+    if (this.fingerprintStore != null) {
+      this.fingerprintStore.close();
+    }
+  }
+
+  /**
+   * Create a new batch for the queue if there is not one already.
+   *
+   * @param queueName key of the map
+   * @return true if a new batch was created
+   */
+  public boolean startBatch(String queueName) {
+    boolean started = false;
+    for (SourceBatches batches : sourceBatches) {
+      started = batches.registry.start(queueName) || started;
+    }
+    return started;
+  }
+
+  /**
+   * Push a document to the addOrUpdate list of every Source. The document is
+   * serialized once.
+   *
+   * @param queueName key of the map
+   * @param document  document to push
+   * @throws IOException if the document could not be written to the journal
+   */
+  public void addDocument(String queueName, Document document) throws IOException {
+    String json = document.toJson();
+    for (SourceBatches batches : sourceBatches) {
+      batches.registry.addDocument(queueName, document.getDocumentId(), json);
     }
   }
 
   /**
-   * Push a document to the addOrUpdate list.
-   * 
+   * Push a document to the addOrUpdate list of every Source, with the binary
+   * uploaded to a FileContainer of each Source. A Source without a FileContainer
+   * gets the document without its binary.
+   *
    * @param queueName key of the map
    * @param document  document to push
+   * @param fileIds   fileId of the binary of the document, by name of the Source
+   * @param onPushed  action to run once the batch of the configured Source has
+   *                  been pushed, null for none
+   * @throws IOException if the document could not be written to the journal
    */
-  public void addDocument(String queueName, Document document) {
-    if (queueMap.containsKey(queueName)) {
-      BatchRequest batchRequest = queueMap.get(queueName);
-      batchRequest.pushDocument(document);
-      queueMap.put(queueName, batchRequest);
+  public void addDocument(String queueName, Document document, Map<String, String> fileIds, Runnable onPushed)
+      throws IOException {
+    String json = fileIds.isEmpty() ? document.toJson() : null;
+    for (SourceBatches batches : sourceBatches) {
+      if (!fileIds.isEmpty()) {
+        String fileId = fileIds.get(batches.source.getName());
+        if (fileId != null) {
+          document.addMetadata(COMPRESSEDBINARYDATAFILEID_FIELDNAME, fileId, String.class);
+        } else if (document.getMetadata() != null) {
+          document.getMetadata().remove(COMPRESSEDBINARYDATAFILEID_FIELDNAME);
+        }
+        json = document.toJson();
+      }
+
+      if (onPushed != null && batches.registry == batchRegistry) {
+        batches.registry.addDocument(queueName, document.getDocumentId(), json, onPushed);
+      } else {
+        batches.registry.addDocument(queueName, document.getDocumentId(), json);
+      }
     }
   }
 
   /**
-   * Push a document to the delete list.
-   * 
+   * Push a document to the delete list of every Source.
+   *
+   * @param queueName  key of the map
+   * @param documentId documentId to push
+   * @throws IOException if the document could not be written to the journal
+   */
+  public void deleteDocument(String queueName, String documentId) throws IOException {
+    deleteDocument(queueName, documentId, null);
+  }
+
+  /**
+   * Push a document to the delete list of every Source.
+   *
    * @param queueName  key of the map
    * @param documentId documentId to push
+   * @param onPushed   action to run once the batch of the configured Source has
+   *                   been pushed, null for none
+   * @throws IOException if the document could not be written to the journal
+   */
+  public void deleteDocument(String queueName, String documentId, Runnable onPushed) throws IOException {
+    for (SourceBatches batches : sourceBatches) {
+      if (onPushed != null && batches.registry == batchRegistry) {
+        batches.registry.deleteDocument(queueName, documentId, onPushed);
+      } else {
+        batches.registry.deleteDocument(queueName, documentId);
+      }
+    }
+  }
+
+  /**
+   * Check if the batch of the queue has documents waiting to be pushed to any
+   * Source.
+   *
+   * @param queueName key of the map
+   * @return true if a batch is not empty
+   */
+  public boolean hasPendingDocuments(String queueName) {
+    return sourceBatches.stream()
+        .anyMatch(batches -> batches.registry.test(queueName, batch -> batch != null && !batch.isEmpty()));
+  }
+
+  /**
+   * Check if the batch of the queue reached the limits of the flush policy for
+   * any Source.
+   *
+   * @param queueName key of the map
+   * @return true if the batch should be pushed now
+   */
+  public boolean isFlushRequired(String queueName) {
+    return sourceBatches.stream().anyMatch(batches -> batches.registry.test(queueName, flushPolicy::isFull));
+  }
+
+  /**
+   * Check if the batch of the queue received a document within the debounce
+   * window of the flush policy, in which case it is pushed later by
+   * {@link #flushStaleBatches()}.
+   *
+   * @param queueName key of the map
+   * @return true if the batch should not be pushed yet
+   */
+  public boolean isDebounced(String queueName) {
+    long now = System.currentTimeMillis();
+    return sourceBatches.stream()
+        .anyMatch(batches -> !batches.registry.test(queueName, batch -> flushPolicy.isSettled(batch, now)));
+  }
+
+  /**
+   * Get a FileContainer and push the batch of the queue to the S3 instance, and
+   * wait until the batch and the batches of the queue uploaded before it are
+   * pushed. If the push fails the batch is put back.
+   *
+   * @param queueName key of the map
+   * @return the response of the batch push, null if the batch could not be pushed.
+   */
+  public CoveoResponse flush(String queueName) {
+    try {
+      return flushAsync(queueName).get();
+    } catch (InterruptedException e) {
+      LOG.error("Interrupted while pushing the batch of queue {}", queueName, e);
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      LOG.error("Could not push the data to the file Container", e);
+    }
+
+    return null;
+  }
+
+  /**
+   * Push the batch of the queue to every Source in the background. The batches
+   * are detached, so documents delivered meanwhile go to new batches.
+   *
+   * @param queueName key of the map
+   * @return completes with the response of the batch push to the configured
+   *         Source, or null if the batch could not be pushed
+   * @throws InterruptedException if interrupted while waiting for a free upload slot
+   */
+  public CompletableFuture<CoveoResponse> flushAsync(String queueName) throws InterruptedException {
+    CompletableFuture<CoveoResponse> result = CompletableFuture.completedFuture(null);
+    for (SourceBatches batches : sourceBatches) {
+      CompletableFuture<CoveoResponse> response = batches.pipeline.flush(queueName);
+      if (batches.registry == batchRegistry) {
+        result = response;
+      } else {
+        response.thenAccept(batchResponse -> {
+          if (batchResponse == null || batchResponse.getStatusLine().getStatusCode() != HttpStatus.SC_ACCEPTED) {
+            LOG.error("Could not push batch of queue {} to {}, it will be pushed again: {}", queueName,
+                batches.source.getName(), batchResponse);
+          }
+        });
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Push the batches that have been waiting longer than the max age of the flush
+   * policy, or that did not receive any document for the debounce window. The
+   * batches of each Source are checked on their own, so a batch an additional
+   * Source failed to push is pushed again here. Once the replication queue is
+   * drained, the Sources that received a batch go back to IDLE.
+   */
+  public void flushStaleBatches() {
+    long now = System.currentTimeMillis();
+    List<String> queueNames = new ArrayList<>();
+    List<SourceBatches> flushed = new ArrayList<>();
+    List<CompletableFuture<CoveoResponse>> responses = new ArrayList<>();
+    try {
+      for (SourceBatches batches : sourceBatches) {
+        for (String queueName : batches.registry.getQueueNames()) {
+          if (batches.registry.test(queueName, batch -> flushPolicy.isStale(batch, now))) {
+            LOG.info("Pushing stale batch of queue {} to {}", queueName, batches.source.getName());
+            queueNames.add(queueName);
+            flushed.add(batches);
+            responses.add(batches.pipeline.flush(queueName));
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    for (int i = 0; i < responses.size(); i++) {
+      CoveoResponse response = responses.get(i).exceptionally(e -> null).join();
+      if (response == null || response.getStatusLine().getStatusCode() != HttpStatus.SC_ACCEPTED) {
+        LOG.error("Could not push stale batch of queue {} to {}: {}", queueNames.get(i),
+            flushed.get(i).source.getName(), response);
+      }
+    }
+
+    if (drainTracker.getPending() == 0) {
+      flushed.stream().distinct()
+          .forEach(batches -> batches.source.getSourceStatusManager().request(PushAPIStatus.IDLE));
+    }
+  }
+
+  /**
+   * Load the batches left in the journal by the previous activation. They are
+   * pushed by the {@link com.mcplusa.coveo.connector.aem.indexing.BatchFlushCronJob}
+   * once they reach the max age.
+   */
+  private void replayJournal() {
+    for (SourceBatches sourceBatch : sourceBatches) {
+      try {
+        Map<String, PendingBatch> batches = sourceBatch.registry.getJournal().replay();
+        for (Map.Entry<String, PendingBatch> entry : batches.entrySet()) {
+          LOG.info("Recovered {} documents of queue {} for {} from the batch journal",
+              entry.getValue().getDocumentCount(), entry.getKey(), sourceBatch.source.getName());
+          sourceBatch.registry.restore(entry.getKey(), entry.getValue());
+        }
+      } catch (IOException e) {
+        LOG.error("Could not replay the batch journal of {}", sourceBatch.source.getName(), e);
+      }
+    }
+  }
+
+  /**
+   * Get a file in the persistent storage area of the bundle, so it survives
+   * restarts.
+   */
+  private File getDataFile(ComponentContext context, String name) {
+    File file = context != null ? context.getBundleContext().getDataFile(name) : null;
+    if (file == null) {
+      file = new File(System.getProperty("java.io.tmpdir"), "coveo-" + name);
+    }
+    return file;
+  }
+
+  /**
+   * The batches of a Source and the pipeline uploading them.
    */
-  public void deleteDocument(String queueName, String documentId) {
-    if (queueMap.containsKey(queueName)) {
-      BatchRequest batchRequest = queueMap.get(queueName);
-      batchRequest.deleteDocument(documentId, true);
-      queueMap.put(queueName, batchRequest);
+  private static final class SourceBatches {
+
+    private final CoveoSource source;
+
+    private final BatchRegistry registry;
+
+    private final BatchUploadPipeline pipeline;
+
+    private SourceBatches(CoveoSource source, BatchRegistry registry, BatchUploadPipeline pipeline) {
+      this.source = source;
+      this.registry = registry;
+      this.pipeline = pipeline;
     }
   }
 }
@@ -4,16 +4,22 @@ import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.mcplusa.coveo.sdk.CoveoEnvironment;
 import com.mcplusa.coveo.sdk.CoveoFactory;
-import com.mcplusa.coveo.sdk.CoveoResponse;
-import com.mcplusa.coveo.sdk.CoveoResponseException;
 import com.mcplusa.coveo.sdk.pushapi.CoveoPushClient;
 import com.mcplusa.coveo.sdk.pushapi.model.BatchIdentity;
+import com.mcplusa.coveo.sdk.pushapi.model.CompressionType;
 import com.mcplusa.coveo.sdk.pushapi.model.FileContainerResponse;
+import com.mcplusa.coveo.sdk.pushapi.model.PushAPIStatus;
 
-import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import lombok.Getter;
 
@@ -23,13 +29,14 @@ import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.ReferenceCardinality;
 import org.apache.felix.scr.annotations.Service;
-import org.apache.http.HttpStatus;
+import org.apache.commons.lang3.StringUtils;
 import org.osgi.service.component.ComponentContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Service keeping a connection to the Coveo Source.
+ * Service keeping a connection to the Coveo Source, and to the additional
+ * Sources the same documents are pushed to.
  */
 @Component(metatype = false, immediate = false)
 @Service(CoveoService.class)
@@ -58,19 +65,47 @@ public class CoveoService {
   @Getter
   protected String permissionPolicy;
 
+  @Getter
+  protected CompressionType compressionType;
+
+  @Getter
+  protected int compressionThreshold;
+
+  /**
+   * The configured Source first, then the additional Sources.
+   */
+  @Getter
+  private List<CoveoSource> sources = Collections.emptyList();
+
   @Activate
   public void activate(ComponentContext context) {
     CoveoEnvironment environment = CoveoEnvironment.valueOf(config.getEnvironment());
     factory = new CoveoFactory(environment);
     client = factory.newPushClient(config.getAccessToken(), config.getOrganizationId(), config.getSourceId());
+    List<CoveoSource> activeSources = new ArrayList<>();
+    activeSources.add(newSource(client));
+    for (String additionalSource : config.getAdditionalSources()) {
+      CoveoPushClient additionalClient = newPushClient(additionalSource);
+      if (additionalClient != null) {
+        activeSources.add(newSource(additionalClient));
+      }
+    }
+    sources = Collections.unmodifiableList(activeSources);
     userIdentityProvider = config.getUserIdentityProvider();
     groupIdentityProvider = config.getGroupIdentityProvider();
     permissionPolicy = config.getPermissionPolicy();
+    compressionType = toCompressionType(config.getCompressionType());
+    compressionThreshold = config.getCompressionThreshold();
     createIdentityProvider();
   }
 
   @Deactivate
   public void deactivate(ComponentContext context) {
+    for (CoveoSource source : this.sources) {
+      source.close();
+    }
+    this.sources = Collections.emptyList();
+
     if (this.factory != null) {
       try {
         this.factory.close();
@@ -80,6 +115,63 @@ public class CoveoService {
     }
   }
 
+  /**
+   * Create a Source with its own throttle, so the Sources are throttled and
+   * retried independently.
+   */
+  private CoveoSource newSource(CoveoPushClient sourceClient) {
+    PushApiThrottle throttle = new PushApiThrottle(config.getPushApiRate(), config.getPushApiMaxRetries(),
+        PushApiThrottle.DEFAULT_BASE_DELAY, PushApiThrottle.DEFAULT_MAX_DELAY);
+    return new CoveoSource(sourceClient, throttle, config.getFileContainerPoolSize(), config.getSourceStatusWindow());
+  }
+
+  /**
+   * Create the client of an additional Source.
+   *
+   * @param additionalSource Source formatted as orgId:sourceId:accessToken
+   * @return the client, null if the value is invalid
+   */
+  private CoveoPushClient newPushClient(String additionalSource) {
+    String[] values = StringUtils.split(StringUtils.trimToEmpty(additionalSource), ":", 3);
+    if (values.length != 3 || StringUtils.isAnyBlank(values)) {
+      LOG.warn("Invalid additional Source, expected orgId:sourceId:accessToken");
+      return null;
+    }
+
+    return factory.newPushClient(values[2].trim(), values[0].trim(), values[1].trim());
+  }
+
+  private CompressionType toCompressionType(String value) {
+    try {
+      return CompressionType.valueOf(value);
+    } catch (IllegalArgumentException | NullPointerException ex) {
+      LOG.warn("Invalid compression type {}, documents will be pushed uncompressed", value);
+      return CompressionType.UNCOMPRESSED;
+    }
+  }
+
+  /**
+   * Get the configured Source.
+   *
+   * @return the configured Source, null if the service is not active
+   */
+  public CoveoSource getPrimarySource() {
+    return sources.isEmpty() ? null : sources.get(0);
+  }
+
+  /**
+   * Request a status update of every Source. The update is coalesced with the
+   * other requests of the same window by the {@link SourceStatusManager} of
+   * each Source.
+   *
+   * @param status status of the Sources
+   */
+  public void requestSourceStatus(PushAPIStatus status) {
+    for (CoveoSource source : sources) {
+      source.getSourceStatusManager().request(status);
+    }
+  }
+
   public void createIdentityProvider() {
     if (client != null && config.getOrganizationId() != null && config.getSourceId() != null
         && config.getAccessToken() != null) {
@@ -88,23 +180,50 @@ public class CoveoService {
     }
   }
 
+  /**
+   * Push the identities to every Source. The identities are serialized once and
+   * uploaded to a FileContainer of each Source.
+   */
   private void updateSecurityIdentity(BatchIdentity batchIdentity) {
-    Gson gson = new GsonBuilder().disableHtmlEscaping().create();
-    String json = gson.toJson(batchIdentity);
-
-    try (InputStream is = new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8))) {
-
-      FileContainerResponse fileContainer = client.getFileContainer();
-
-      CoveoResponse response = client.pushFileOnS3(is, fileContainer.getUploadUri());
-      if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
-        client.pushIdentitiesBatch(config.getAemIdentityProvider(), fileContainer.getFileId());
-      } else {
-        throw new CoveoResponseException(response);
+    try {
+      Path tempFile = serialize(batchIdentity);
+      try {
+        for (CoveoSource source : sources) {
+          try {
+            FileContainerResponse fileContainer = source.uploadToFileContainer(
+                () -> new FileInputStream(tempFile.toFile()));
+            source.pushIdentitiesBatch(config.getAemIdentityProvider(), fileContainer.getFileId());
+          } catch (Exception e) {
+            LOG.error("Could not push the identity batch to the file Container of {}", source.getName(), e);
+          }
+        }
+      } finally {
+        Files.deleteIfExists(tempFile);
       }
+    } catch (IOException e) {
+      LOG.error("Could not serialize the identity batch", e);
+    }
+  }
 
-    } catch (Exception e) {
-      LOG.error("Could not push the identity batch to the file Container", e);
+  private static Path serialize(Object payload) throws IOException {
+    Path tempFile = Files.createTempFile("coveo_batch", ".json");
+    try {
+      Gson gson = new GsonBuilder().disableHtmlEscaping().create();
+      try (Writer writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+        gson.toJson(payload, writer);
+      }
+      return tempFile;
+    } catch (IOException | RuntimeException e) {
+      Files.deleteIfExists(tempFile);
+      throw e;
     }
   }
+
+  /**
+   * Opens the content to upload to a FileContainer.
+   */
+  @FunctionalInterface
+  public interface PayloadSource {
+    InputStream open() throws IOException;
+  }
 }
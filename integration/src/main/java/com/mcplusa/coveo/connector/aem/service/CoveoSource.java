@@ -0,0 +1,124 @@
+package com.mcplusa.coveo.connector.aem.service;
+
+import com.mcplusa.coveo.sdk.CoveoResponse;
+import com.mcplusa.coveo.sdk.CoveoResponseException;
+import com.mcplusa.coveo.sdk.pushapi.CoveoPushClient;
+import com.mcplusa.coveo.sdk.pushapi.model.FileContainerResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import lombok.Getter;
+import org.apache.http.HttpStatus;
+
+/**
+ * A Coveo Source the documents are pushed to, with its own Push API throttle,
+ * pool of file containers and status.
+ *
+ * <p>The {@link CoveoService} keeps one for the configured Source and one for every additional
+ * Source, so a Source that is throttled or down does not slow down the others.
+ */
+public class CoveoSource {
+
+  @Getter
+  private final CoveoPushClient client;
+
+  @Getter
+  private final PushApiThrottle pushApiThrottle;
+
+  private final FileContainerPool fileContainerPool;
+
+  @Getter
+  private final SourceStatusManager sourceStatusManager;
+
+  /**
+   * Create the Source.
+   *
+   * @param client          client of the Push API of the Source
+   * @param pushApiThrottle throttle of the Push API calls of the Source
+   * @param poolSize        number of file containers requested in advance
+   * @param statusWindow    time in milliseconds the status changes are coalesced
+   */
+  public CoveoSource(CoveoPushClient client, PushApiThrottle pushApiThrottle, int poolSize, long statusWindow) {
+    this.client = client;
+    this.pushApiThrottle = pushApiThrottle;
+    this.fileContainerPool = new FileContainerPool(() -> pushApiThrottle.execute(client::getFileContainer),
+        poolSize, FileContainerPool.DEFAULT_TIME_TO_LIVE);
+    this.sourceStatusManager = new SourceStatusManager(
+        status -> pushApiThrottle.execute(() -> client.updateSourceStatus(status)), statusWindow);
+  }
+
+  /**
+   * Get a name for the Source, unique within the bundle.
+   *
+   * @return the organization and the id of the Source
+   */
+  public String getName() {
+    return client.getOrganizationId() + "/" + client.getSourceId();
+  }
+
+  /**
+   * Get a FileContainer from the pool of prefetched FileContainers. Every
+   * FileContainer can only be used for one upload.
+   *
+   * @return a FileContainer ready to be used
+   * @throws IOException if no FileContainer could be acquired
+   */
+  public FileContainerResponse getFileContainer() throws IOException {
+    return fileContainerPool.take();
+  }
+
+  /**
+   * Get a FileContainer and upload the content of the payload to its S3
+   * instance. The payload is opened again if the upload has to be retried, and
+   * the stream must return the whole length of the content in available(), like
+   * a FileInputStream does.
+   *
+   * @param payload opens the JSON of the payload
+   * @return the FileContainer where the payload was uploaded
+   * @throws IOException if the payload could not be uploaded
+   */
+  public FileContainerResponse uploadToFileContainer(CoveoService.PayloadSource payload) throws IOException {
+    FileContainerResponse fileContainer = getFileContainer();
+    CoveoResponse response = pushApiThrottle.retry(() -> {
+      try (InputStream is = payload.open()) {
+        return client.pushFileOnS3(is, fileContainer.getUploadUri());
+      }
+    });
+    if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+      throw new CoveoResponseException(response);
+    }
+
+    return fileContainer;
+  }
+
+  /**
+   * Push the documents of a FileContainer to the Source.
+   *
+   * @param fileId id of the FileContainer
+   * @return the response of the Push API
+   * @throws IOException if the batch could not be pushed
+   */
+  public CoveoResponse pushDocumentsBatch(String fileId) throws IOException {
+    return pushApiThrottle.execute(() -> client.pushDocumentsBatch(fileId));
+  }
+
+  /**
+   * Push the identities of a FileContainer to an identity provider of the
+   * organization of the Source.
+   *
+   * @param identityProvider name of the identity provider
+   * @param fileId           id of the FileContainer
+   * @return the response of the Push API
+   * @throws IOException if the identities could not be pushed
+   */
+  public CoveoResponse pushIdentitiesBatch(String identityProvider, String fileId) throws IOException {
+    return pushApiThrottle.execute(() -> client.pushIdentitiesBatch(identityProvider, fileId));
+  }
+
+  /**
+   * Stop the status updates and release the prefetched FileContainers.
+   */
+  public void close() {
+    sourceStatusManager.close();
+    fileContainerPool.close();
+  }
+}
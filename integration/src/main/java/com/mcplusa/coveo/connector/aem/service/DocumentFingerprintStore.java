@@ -0,0 +1,414 @@
+package com.mcplusa.coveo.connector.aem.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.mcplusa.coveo.connector.aem.indexing.IndexEntry;
+import com.mcplusa.coveo.sdk.pushapi.model.Document;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+import org.apache.commons.io.output.NullOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fingerprints of the documents last pushed to Coveo, so an activation that does not change the
+ * document is skipped before it enters the batch. A fingerprint is only stored once the batch of
+ * its document has been pushed, and the last fingerprint enqueued for each document is tracked
+ * until then: an activation is only skipped if it matches both, otherwise an older version could be
+ * skipped while a newer one is still waiting to be pushed.
+ *
+ * <p>The fingerprint is a hash of the {@link Document} mapped from the {@link IndexEntry}, so a
+ * change of the field mappings, the compression or the identity providers is pushed too. The binary
+ * of an asset is identified by its digest, not by the FileContainer it is uploaded to, and it is
+ * only uploaded once the document is not skipped. The keys
+ * of the maps are sorted so the order of the properties does not matter, and it is stored under
+ * {@link IndexEntry#getId()}. A fingerprint is only trusted for the time to live, after which the
+ * document is pushed again even if it did not change, so an index rebuilt on the Coveo side is
+ * eventually filled again. A delete removes the fingerprints of the document and of its children,
+ * like the delete of the Push API.
+ *
+ * <p>The store is an append-only log of changes, loaded on activation and rewritten when most of
+ * its lines are obsolete.
+ */
+public class DocumentFingerprintStore {
+
+  private static final Logger LOG = LoggerFactory.getLogger(DocumentFingerprintStore.class);
+
+  private static final String PUT = "+";
+  private static final String REMOVE = "-";
+  private static final String ENQUEUE = "~";
+  private static final char FIELD_SEPARATOR = '\t';
+  private static final String COMPACT_EXTENSION = ".compact";
+
+  /** Obsolete lines tolerated in the log before it is rewritten. */
+  private static final int MIN_OBSOLETE_LINES = 1000;
+
+  private static final ObjectMapper MAPPER = new ObjectMapper()
+      .configure(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS, true);
+
+  private final File file;
+
+  private final long timeToLive;
+
+  private final LongSupplier clock;
+
+  private final Map<String, Fingerprint> fingerprints = new ConcurrentHashMap<>();
+
+  /** Last fingerprint enqueued for each id, until a batch with that fingerprint is pushed. */
+  private final Map<String, Long> enqueued = new ConcurrentHashMap<>();
+
+  /** Ids of the fingerprints by path, so the fingerprints of a tree are found without a scan. */
+  private final NavigableMap<String, Set<String>> idsByPath = new TreeMap<>();
+
+  private Writer out;
+
+  private int lines;
+
+  /**
+   * Create the store.
+   *
+   * @param file       log of the store
+   * @param timeToLive time in milliseconds a fingerprint is trusted, 0 or less to disable the store
+   */
+  public DocumentFingerprintStore(File file, long timeToLive) {
+    this(file, timeToLive, System::currentTimeMillis);
+  }
+
+  DocumentFingerprintStore(File file, long timeToLive, LongSupplier clock) {
+    this.file = file;
+    this.timeToLive = timeToLive;
+    this.clock = clock;
+  }
+
+  /**
+   * Compute the fingerprint of a document, as it is pushed to Coveo.
+   *
+   * @param document document mapped from the entry, before the fileIds of the Sources are added
+   * @param binary   identity of the binary of the document, like the path and the digest of the
+   *                 original rendition of an asset, empty if none
+   * @return the fingerprint of the document
+   * @throws IOException if the document could not be serialized
+   */
+  public static long fingerprint(Document document, Map<String, String> binary) throws IOException {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+
+    Map<String, Object> pushed = new HashMap<>();
+    pushed.put("document", MAPPER.readValue(document.toJson(), Object.class));
+    pushed.put("binary", binary);
+    try (OutputStream out = new DigestOutputStream(NullOutputStream.NULL_OUTPUT_STREAM, digest)) {
+      MAPPER.writeValue(out, pushed);
+    }
+
+    long fingerprint = 0;
+    byte[] hash = digest.digest();
+    for (int i = 0; i < Long.BYTES; i++) {
+      fingerprint = (fingerprint << 8) | (hash[i] & 0xff);
+    }
+    return fingerprint;
+  }
+
+  public boolean isEnabled() {
+    return timeToLive > 0;
+  }
+
+  /**
+   * Check if the document was already pushed with the same fingerprint, within the time to live,
+   * and no other version of the document is waiting to be pushed.
+   *
+   * @param entry       entry to push
+   * @param fingerprint fingerprint of the entry
+   * @return true if the document can be skipped
+   */
+  public boolean isUnchanged(IndexEntry entry, long fingerprint) {
+    if (!isEnabled() || entry.getId() == null) {
+      return false;
+    }
+
+    Fingerprint stored = fingerprints.get(entry.getId());
+    Long pending = enqueued.get(entry.getId());
+    return stored != null && stored.value == fingerprint && clock.getAsLong() - stored.storedAt < timeToLive
+        && (pending == null || pending == fingerprint);
+  }
+
+  /**
+   * Record the fingerprint of a document added to a batch. It is kept until a batch with the same
+   * fingerprint is pushed; a batch that fails is put back with its documents, so the fingerprint
+   * is kept for it too.
+   *
+   * @param id          {@link IndexEntry#getId()} of the entry
+   * @param fingerprint fingerprint of the entry
+   */
+  public synchronized void enqueue(String id, long fingerprint) {
+    if (!isEnabled() || id == null) {
+      return;
+    }
+
+    Long previous = enqueued.put(id, fingerprint);
+    if (previous == null || previous != fingerprint) {
+      append(formatEnqueued(id, fingerprint));
+    }
+  }
+
+  /**
+   * Store the fingerprint of a document pushed to Coveo.
+   *
+   * @param entry       entry pushed
+   * @param fingerprint fingerprint of the entry
+   */
+  public void put(IndexEntry entry, long fingerprint) {
+    put(entry.getId(), entry.getPath(), fingerprint);
+  }
+
+  /**
+   * Store the fingerprint of a document pushed to Coveo, once its batch has been pushed.
+   *
+   * @param id          {@link IndexEntry#getId()} of the entry pushed
+   * @param path        path of the entry pushed
+   * @param fingerprint fingerprint of the entry
+   */
+  public synchronized void put(String id, String path, long fingerprint) {
+    if (!isEnabled() || id == null || path == null) {
+      return;
+    }
+
+    Fingerprint value = new Fingerprint(fingerprint, clock.getAsLong(), path);
+    store(id, value);
+    enqueued.remove(id, fingerprint);
+    append(format(id, value));
+  }
+
+  /**
+   * Remove the fingerprints of a deleted document and of its children.
+   *
+   * @param path path of the deleted document
+   */
+  public synchronized void remove(String path) {
+    if (!isEnabled() || path == null) {
+      return;
+    }
+
+    if (removeTree(path)) {
+      append(REMOVE + FIELD_SEPARATOR + path + FIELD_SEPARATOR);
+    }
+  }
+
+  public int size() {
+    return fingerprints.size();
+  }
+
+  /**
+   * Load the log of the store, dropping the expired fingerprints.
+   */
+  public synchronized void load() {
+    fingerprints.clear();
+    enqueued.clear();
+    idsByPath.clear();
+    lines = 0;
+    if (!isEnabled() || !file.exists()) {
+      return;
+    }
+
+    long now = clock.getAsLong();
+    try (BufferedReader reader = new BufferedReader(
+        new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        lines++;
+        load(line, now);
+      }
+    } catch (IOException e) {
+      LOG.warn("Could not read all the document fingerprints of {}", file, e);
+    }
+
+    LOG.info("Loaded {} document fingerprints", fingerprints.size());
+    if (lines > getLiveLines()) {
+      rewrite();
+    }
+  }
+
+  /**
+   * Close the log, the fingerprints stay on disk.
+   */
+  public synchronized void close() {
+    if (out != null) {
+      try {
+        out.close();
+      } catch (IOException e) {
+        LOG.warn("Could not close the document fingerprints", e);
+      }
+      out = null;
+    }
+  }
+
+  private int getLiveLines() {
+    return fingerprints.size() + enqueued.size();
+  }
+
+  /**
+   * Format a fingerprint as a line of the log. Every line ends with a separator, so a line left
+   * incomplete by a crash can be told apart.
+   */
+  private static String format(String id, Fingerprint value) {
+    return PUT + FIELD_SEPARATOR + id + FIELD_SEPARATOR + Long.toHexString(value.value) + FIELD_SEPARATOR
+        + value.storedAt + FIELD_SEPARATOR + value.path + FIELD_SEPARATOR;
+  }
+
+  private static String formatEnqueued(String id, long fingerprint) {
+    return ENQUEUE + FIELD_SEPARATOR + id + FIELD_SEPARATOR + Long.toHexString(fingerprint) + FIELD_SEPARATOR;
+  }
+
+  /**
+   * Apply a line of the log. A line left incomplete by a crash is ignored, and dropped by the
+   * rewrite that follows the load.
+   */
+  private void load(String line, long now) {
+    String[] fields = line.split(String.valueOf(FIELD_SEPARATOR), -1);
+    try {
+      if (fields.length == 6 && PUT.equals(fields[0]) && fields[5].isEmpty()) {
+        Fingerprint value = new Fingerprint(Long.parseUnsignedLong(fields[2], 16), Long.parseLong(fields[3]),
+            fields[4]);
+        if (now - value.storedAt < timeToLive) {
+          store(fields[1], value);
+        } else {
+          unindex(fields[1], fingerprints.remove(fields[1]));
+        }
+        enqueued.remove(fields[1], value.value);
+      } else if (fields.length == 4 && ENQUEUE.equals(fields[0]) && fields[3].isEmpty()) {
+        enqueued.put(fields[1], Long.parseUnsignedLong(fields[2], 16));
+      } else if (fields.length == 3 && REMOVE.equals(fields[0]) && fields[2].isEmpty()) {
+        removeTree(fields[1]);
+      }
+    } catch (NumberFormatException e) {
+      LOG.debug("Ignoring invalid document fingerprint {}", line);
+    }
+  }
+
+  private void store(String id, Fingerprint value) {
+    unindex(id, fingerprints.put(id, value));
+    idsByPath.computeIfAbsent(value.path, key -> new HashSet<>()).add(id);
+  }
+
+  private void unindex(String id, Fingerprint previous) {
+    if (previous == null) {
+      return;
+    }
+
+    Set<String> ids = idsByPath.get(previous.path);
+    if (ids != null && ids.remove(id) && ids.isEmpty()) {
+      idsByPath.remove(previous.path);
+    }
+  }
+
+  /**
+   * Remove the fingerprints of a path and of the paths below it, found in the range of the paths
+   * starting with {@code path + "/"}, which all sort before {@code path + "0"}.
+   */
+  private boolean removeTree(String path) {
+    boolean removed = removeIds(idsByPath.remove(path));
+    Map<String, Set<String>> children = idsByPath.subMap(path + "/", true, path + "0", false);
+    for (Set<String> ids : children.values()) {
+      removed = removeIds(ids) || removed;
+    }
+    children.clear();
+    return removed;
+  }
+
+  private boolean removeIds(Set<String> ids) {
+    if (ids == null) {
+      return false;
+    }
+
+    for (String id : ids) {
+      fingerprints.remove(id);
+    }
+    return !ids.isEmpty();
+  }
+
+  private void append(String line) {
+    try {
+      if (out == null) {
+        Files.createDirectories(file.getParentFile().toPath());
+        out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+      }
+      out.write(line);
+      out.write('\n');
+      out.flush();
+      lines++;
+    } catch (IOException e) {
+      LOG.warn("Could not write the document fingerprint", e);
+    }
+
+    if (lines - getLiveLines() > Math.max(MIN_OBSOLETE_LINES, getLiveLines())) {
+      rewrite();
+    }
+  }
+
+  /**
+   * Rewrite the log with the current fingerprints only.
+   */
+  private void rewrite() {
+    close();
+    File compacted = new File(file.getPath() + COMPACT_EXTENSION);
+    try {
+      Files.createDirectories(file.getParentFile().toPath());
+      try (Writer writer = new BufferedWriter(
+          new OutputStreamWriter(new FileOutputStream(compacted), StandardCharsets.UTF_8))) {
+        for (Map.Entry<String, Fingerprint> entry : fingerprints.entrySet()) {
+          writer.write(format(entry.getKey(), entry.getValue()));
+          writer.write('\n');
+        }
+        for (Map.Entry<String, Long> entry : enqueued.entrySet()) {
+          writer.write(formatEnqueued(entry.getKey(), entry.getValue()));
+          writer.write('\n');
+        }
+      }
+      Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+      lines = getLiveLines();
+    } catch (IOException e) {
+      LOG.warn("Could not rewrite the document fingerprints", e);
+    }
+  }
+
+  private static final class Fingerprint {
+
+    private final long value;
+
+    private final long storedAt;
+
+    private final String path;
+
+    private Fingerprint(long value, long storedAt, String path) {
+      this.value = value;
+      this.storedAt = storedAt;
+      this.path = path;
+    }
+  }
+}
@@ -0,0 +1,152 @@
+package com.mcplusa.coveo.connector.aem.service;
+
+import com.mcplusa.coveo.sdk.pushapi.model.FileContainerResponse;
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongSupplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pool of file containers acquired in the background, so an upload does not wait for the file
+ * container request. The upload URI of a file container expires one hour after it is created, so
+ * the containers older than the time to live are dropped instead of used.
+ */
+public class FileContainerPool {
+
+  private static final Logger LOG = LoggerFactory.getLogger(FileContainerPool.class);
+
+  /**
+   * Upload URIs are valid for one hour, keep a margin for the upload itself.
+   */
+  public static final long DEFAULT_TIME_TO_LIVE = 45L * 60 * 1000;
+
+  private final Callable<FileContainerResponse> supplier;
+
+  private final int size;
+
+  private final long timeToLive;
+
+  private final LongSupplier clock;
+
+  private final BlockingQueue<PooledContainer> containers;
+
+  private final AtomicBoolean refilling = new AtomicBoolean();
+
+  private final ExecutorService executor;
+
+  /**
+   * Create the pool.
+   *
+   * @param supplier   requests a new file container, e.g. CoveoPushClient::getFileContainer
+   * @param size       number of file containers kept ready, 0 to disable the pool
+   * @param timeToLive time in milliseconds a file container can be used after it is acquired
+   */
+  public FileContainerPool(Callable<FileContainerResponse> supplier, int size, long timeToLive) {
+    this(supplier, size, timeToLive, System::currentTimeMillis);
+  }
+
+  FileContainerPool(Callable<FileContainerResponse> supplier, int size, long timeToLive, LongSupplier clock) {
+    this.supplier = supplier;
+    this.size = Math.max(0, size);
+    this.timeToLive = timeToLive;
+    this.clock = clock;
+    this.containers = new LinkedBlockingQueue<>();
+    this.executor = Executors.newSingleThreadExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "coveo-file-container-pool");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Get a file container that has not expired. If the pool is empty the file container is
+   * requested right away. Every file container can only be used once.
+   *
+   * @return a file container
+   * @throws IOException if a file container could not be acquired
+   */
+  public FileContainerResponse take() throws IOException {
+    long now = clock.getAsLong();
+    PooledContainer pooled;
+    while ((pooled = containers.poll()) != null) {
+      if (pooled.expiresAt > now) {
+        refill();
+        return pooled.container;
+      }
+    }
+
+    refill();
+    return acquire();
+  }
+
+  /**
+   * Fill the pool in the background.
+   */
+  public void refill() {
+    if (size == 0 || !refilling.compareAndSet(false, true)) {
+      return;
+    }
+
+    try {
+      executor.execute(() -> {
+        try {
+          while (containers.size() < size) {
+            FileContainerResponse container = acquire();
+            containers.add(new PooledContainer(container, clock.getAsLong() + timeToLive));
+          }
+        } catch (IOException e) {
+          LOG.warn("Could not prefetch a file container", e);
+        } finally {
+          refilling.set(false);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      refilling.set(false);
+    }
+  }
+
+  public int getAvailable() {
+    return containers.size();
+  }
+
+  /**
+   * Stop the refill and drop the pooled file containers.
+   */
+  public void close() {
+    executor.shutdownNow();
+    containers.clear();
+  }
+
+  private FileContainerResponse acquire() throws IOException {
+    try {
+      FileContainerResponse container = supplier.call();
+      if (container == null) {
+        throw new IOException("Empty file container response");
+      }
+      return container;
+    } catch (IOException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new IOException("Could not get a file container", e);
+    }
+  }
+
+  private static final class PooledContainer {
+
+    private final FileContainerResponse container;
+
+    private final long expiresAt;
+
+    private PooledContainer(FileContainerResponse container, long expiresAt) {
+      this.container = container;
+      this.expiresAt = expiresAt;
+    }
+  }
+}
@@ -0,0 +1,159 @@
+package com.mcplusa.coveo.connector.aem.service;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.SlingConstants;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tells if a principal of an access policy is a user or a group, without querying the
+ * {@link org.apache.jackrabbit.api.security.user.UserManager} for every entry of every policy.
+ *
+ * <p>The types are cached for a time to live, the least recently used are dropped once the cache
+ * is full. The cache is warmed with all the users and groups read by
+ * {@link UserManagerService#getIdentityList(String)}, and cleared when an authorizable is added or
+ * removed under {@code /home}.
+ */
+@Component(metatype = false, immediate = true)
+@Service({PrincipalTypeCache.class, EventHandler.class})
+@Properties({
+    @Property(name = EventConstants.EVENT_TOPIC, value = {
+        SlingConstants.TOPIC_RESOURCE_ADDED,
+        SlingConstants.TOPIC_RESOURCE_REMOVED
+    }),
+    @Property(name = EventConstants.EVENT_FILTER, value = "(&(path=/home/*)(!(path=*/.tokens*)))")
+})
+public class PrincipalTypeCache implements EventHandler {
+
+  private static final Logger LOG = LoggerFactory.getLogger(PrincipalTypeCache.class);
+
+  /** Max number of principals cached. */
+  private static final int MAX_PRINCIPALS = 50000;
+
+  /** Time in milliseconds the type of a principal is trusted. */
+  private static final long TIME_TO_LIVE = 60L * 60L * 1000L;
+
+  private final int maxPrincipals;
+
+  private final long timeToLive;
+
+  private final LongSupplier clock;
+
+  private final Map<String, PrincipalType> principals;
+
+  private static final class PrincipalType {
+
+    private final boolean group;
+
+    private final long expires;
+
+    private PrincipalType(boolean group, long expires) {
+      this.group = group;
+      this.expires = expires;
+    }
+  }
+
+  public PrincipalTypeCache() {
+    this(MAX_PRINCIPALS, TIME_TO_LIVE, System::currentTimeMillis);
+  }
+
+  /**
+   * Create the cache.
+   *
+   * @param maxPrincipals max number of principals cached
+   * @param timeToLive    time in milliseconds the type of a principal is trusted
+   * @param clock         current time in milliseconds
+   */
+  PrincipalTypeCache(int maxPrincipals, long timeToLive, LongSupplier clock) {
+    this.maxPrincipals = maxPrincipals;
+    this.timeToLive = timeToLive;
+    this.clock = clock;
+    this.principals = new LinkedHashMap<String, PrincipalType>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, PrincipalType> eldest) {
+        return size() > PrincipalTypeCache.this.maxPrincipals;
+      }
+    };
+  }
+
+  /**
+   * Tell if a principal is a group.
+   *
+   * @param principalName name of the principal
+   * @param isGroup       looks the principal up when its type is not cached
+   * @return true for a group, false for a user
+   */
+  public boolean isGroup(String principalName, Predicate<String> isGroup) {
+    long now = clock.getAsLong();
+    synchronized (principals) {
+      PrincipalType type = principals.get(principalName);
+      if (type != null && type.expires > now) {
+        return type.group;
+      }
+    }
+
+    boolean group = isGroup.test(principalName);
+    put(principalName, group, now);
+    return group;
+  }
+
+  /**
+   * Cache the principals read in bulk.
+   *
+   * @param users  names of the users
+   * @param groups names of the groups
+   */
+  public void putAll(Collection<String> users, Collection<String> groups) {
+    long now = clock.getAsLong();
+    // the groups are put last, they are kept over the users when the cache is full
+    for (String user : users) {
+      put(user, false, now);
+    }
+    for (String group : groups) {
+      put(group, true, now);
+    }
+    LOG.debug("{} users and {} groups cached", users.size(), groups.size());
+  }
+
+  public void clear() {
+    synchronized (principals) {
+      principals.clear();
+    }
+  }
+
+  public int size() {
+    synchronized (principals) {
+      return principals.size();
+    }
+  }
+
+  /**
+   * Clear the cache when an authorizable is added or removed.
+   *
+   * @param event resource event under /home
+   */
+  @Override
+  public void handleEvent(Event event) {
+    LOG.debug("Authorizables changed ({}), clearing the principal types", event.getProperty(SlingConstants.PROPERTY_PATH));
+    clear();
+  }
+
+  private void put(String principalName, boolean group, long now) {
+    synchronized (principals) {
+      principals.put(principalName, new PrincipalType(group, now + timeToLive));
+    }
+  }
+}
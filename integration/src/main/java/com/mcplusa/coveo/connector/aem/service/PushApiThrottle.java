@@ -0,0 +1,256 @@
+package com.mcplusa.coveo.connector.aem.service;
+
+import com.mcplusa.coveo.sdk.CoveoResponse;
+import com.mcplusa.coveo.sdk.CoveoResponseException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.apache.http.NoHttpResponseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Throttles and retries the calls to the Push API.
+ *
+ * <p>Every {@link CoveoSource} has its own throttle, the calls to a Source go through its token
+ * bucket. The rate of the bucket adapts
+ * to Coveo: it is halved every time a call is throttled (429) and grows back a little on every
+ * successful call, up to the configured rate. A call that is throttled, fails with a 5xx or loses
+ * the connection is retried with an exponential backoff with jitter, or after the delay given in
+ * the Retry-After header. If Coveo asks to wait longer than the max delay the call fails right
+ * away, the batches are kept and pushed again later.
+ */
+public class PushApiThrottle {
+
+  private static final Logger LOG = LoggerFactory.getLogger(PushApiThrottle.class);
+
+  private static final int SC_TOO_MANY_REQUESTS = 429;
+
+  private static final double MIN_RATE = 0.1;
+
+  private static final double RATE_INCREASE_RATIO = 0.05;
+
+  public static final long DEFAULT_BASE_DELAY = 1000;
+
+  public static final long DEFAULT_MAX_DELAY = 60000;
+
+  /**
+   * A call to the Push API.
+   *
+   * @param <T> result of the call
+   */
+  @FunctionalInterface
+  public interface Call<T> {
+    T call() throws IOException;
+  }
+
+  private final double maxRate;
+
+  private final int maxRetries;
+
+  private final long baseDelay;
+
+  private final long maxDelay;
+
+  private double rate;
+
+  private double tokens;
+
+  private long lastRefill;
+
+  /**
+   * Create the throttle.
+   *
+   * @param maxRate    max calls per second, 0 or less to disable the token bucket
+   * @param maxRetries max number of retries of a call
+   * @param baseDelay  delay in milliseconds before the first retry, doubled on every retry
+   * @param maxDelay   max delay in milliseconds between two retries
+   */
+  public PushApiThrottle(double maxRate, int maxRetries, long baseDelay, long maxDelay) {
+    this.maxRate = maxRate;
+    this.maxRetries = Math.max(0, maxRetries);
+    this.baseDelay = baseDelay;
+    this.maxDelay = maxDelay;
+    this.rate = maxRate;
+    this.tokens = Math.max(1, maxRate);
+    this.lastRefill = System.nanoTime();
+  }
+
+  /**
+   * Perform a Push API call once a token is available, retrying it if it is throttled or fails
+   * with a transient error.
+   *
+   * @param call call to perform
+   * @param <T>  result of the call
+   * @return the result of the call
+   * @throws IOException the error of the last attempt
+   */
+  public <T> T execute(Call<T> call) throws IOException {
+    return execute(call, true);
+  }
+
+  /**
+   * Perform a call that does not count for the Push API rate, like an upload to S3, retrying it
+   * if it fails with a transient error.
+   *
+   * @param call call to perform
+   * @param <T>  result of the call
+   * @return the result of the call
+   * @throws IOException the error of the last attempt
+   */
+  public <T> T retry(Call<T> call) throws IOException {
+    return execute(call, false);
+  }
+
+  public synchronized double getRate() {
+    return rate;
+  }
+
+  @SuppressWarnings("unchecked")
+  private <T> T execute(Call<T> call, boolean throttled) throws IOException {
+    for (int attempt = 0;; attempt++) {
+      if (throttled) {
+        acquire();
+      }
+
+      CoveoResponse failed;
+      IOException error;
+      try {
+        T result = call.call();
+        if (!(result instanceof CoveoResponse) || !isRetriable((CoveoResponse) result)) {
+          if (throttled) {
+            onSuccess();
+          }
+          return result;
+        }
+        failed = (CoveoResponse) result;
+        error = null;
+      } catch (CoveoResponseException e) {
+        if (!isRetriable(e.getResponse())) {
+          throw e;
+        }
+        failed = e.getResponse();
+        error = e;
+      } catch (SocketException | InterruptedIOException | NoHttpResponseException e) {
+        failed = null;
+        error = e;
+      }
+
+      boolean tooManyRequests = failed != null && failed.getStatusLine().getStatusCode() == SC_TOO_MANY_REQUESTS;
+      if (tooManyRequests && throttled) {
+        onThrottled();
+      }
+
+      long delay = getDelay(failed, attempt);
+      if (attempt >= maxRetries || delay > maxDelay) {
+        LOG.warn("Giving up after {} attempts", attempt + 1);
+        if (error != null) {
+          throw error;
+        }
+        return (T) failed;
+      }
+
+      LOG.info("Push API call failed ({}), retrying in {} ms",
+          failed != null ? failed.getStatusLine() : error.toString(), delay);
+      sleep(delay);
+    }
+  }
+
+  private static boolean isRetriable(CoveoResponse response) {
+    int status = response.getStatusLine().getStatusCode();
+    return status == SC_TOO_MANY_REQUESTS || status >= 500;
+  }
+
+  /**
+   * Get the delay before the next attempt: the Retry-After of the response if any, otherwise a
+   * random delay between 0 and the exponential backoff.
+   */
+  long getDelay(CoveoResponse response, int attempt) {
+    long retryAfter = response != null ? parseRetryAfter(response.getHeader("Retry-After")) : -1;
+    if (retryAfter >= 0) {
+      return retryAfter;
+    }
+
+    long backoff = Math.min(maxDelay, baseDelay << Math.min(attempt, 30));
+    return ThreadLocalRandom.current().nextLong(backoff + 1);
+  }
+
+  /**
+   * Parse a Retry-After header, either a number of seconds or an HTTP date.
+   *
+   * @return the delay in milliseconds, -1 if there is no valid header
+   */
+  static long parseRetryAfter(String value) {
+    if (value == null || value.trim().isEmpty()) {
+      return -1;
+    }
+
+    try {
+      return Math.max(0, TimeUnit.SECONDS.toMillis(Long.parseLong(value.trim())));
+    } catch (NumberFormatException e) {
+      // not a number of seconds
+    }
+
+    try {
+      ZonedDateTime date = ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+      return Math.max(0, date.toInstant().toEpochMilli() - System.currentTimeMillis());
+    } catch (DateTimeParseException e) {
+      return -1;
+    }
+  }
+
+  private void acquire() throws InterruptedIOException {
+    if (maxRate <= 0) {
+      return;
+    }
+
+    while (true) {
+      long wait;
+      synchronized (this) {
+        refill();
+        if (tokens >= 1) {
+          tokens--;
+          return;
+        }
+        wait = (long) Math.ceil((1 - tokens) * 1000 / rate);
+      }
+      sleep(wait);
+    }
+  }
+
+  private void refill() {
+    long now = System.nanoTime();
+    tokens = Math.min(Math.max(1, rate), tokens + (now - lastRefill) * rate / TimeUnit.SECONDS.toNanos(1));
+    lastRefill = now;
+  }
+
+  private synchronized void onSuccess() {
+    if (maxRate > 0 && rate < maxRate) {
+      refill();
+      rate = Math.min(maxRate, rate + maxRate * RATE_INCREASE_RATIO);
+    }
+  }
+
+  private synchronized void onThrottled() {
+    if (maxRate > 0) {
+      refill();
+      rate = Math.max(MIN_RATE, rate / 2);
+      tokens = Math.min(tokens, 0);
+      LOG.warn("Push API throttled, reducing the rate to {} calls per second", rate);
+    }
+  }
+
+  private static void sleep(long millis) throws InterruptedIOException {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for the Push API");
+    }
+  }
+}
@@ -0,0 +1,132 @@
+package com.mcplusa.coveo.connector.aem.service;
+
+import com.mcplusa.coveo.sdk.CoveoResponse;
+import com.mcplusa.coveo.sdk.pushapi.model.PushAPIStatus;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.apache.http.HttpStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the status of the Coveo Source in sync with the replication, without a call per batch.
+ *
+ * <p>{@link #request(PushAPIStatus)} only records the desired status. The first request schedules
+ * an update at the end of the window; every request received meanwhile just replaces the desired
+ * status, and the update is only sent if it differs from the status the Source already has. So on
+ * an idle Source a REFRESH followed by an IDLE within the window results in no call at all, and
+ * there is at most one call per window. A failed update is sent again at the end of the next window.
+ */
+public class SourceStatusManager {
+
+  private static final Logger LOG = LoggerFactory.getLogger(SourceStatusManager.class);
+
+  /**
+   * Sends the status to the Source, e.g. CoveoPushClient::updateSourceStatus.
+   */
+  @FunctionalInterface
+  public interface StatusUpdater {
+    CoveoResponse update(PushAPIStatus status) throws IOException;
+  }
+
+  private final StatusUpdater updater;
+
+  private final long window;
+
+  private final ScheduledExecutorService scheduler;
+
+  private PushAPIStatus desired;
+
+  private PushAPIStatus current;
+
+  private boolean scheduled;
+
+  /**
+   * Create the manager.
+   *
+   * @param updater sends the status to the Source
+   * @param window  time in milliseconds the status requests are coalesced, 0 to send them right
+   *                away
+   */
+  public SourceStatusManager(StatusUpdater updater, long window) {
+    this.updater = updater;
+    this.window = Math.max(0, window);
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "coveo-source-status");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Request the status of the Source. The status is sent at the end of the window, if it is still
+   * the desired status and the Source does not have it already.
+   *
+   * @param status desired status of the Source
+   */
+  public synchronized void request(PushAPIStatus status) {
+    desired = status;
+    if (scheduled) {
+      return;
+    }
+
+    try {
+      scheduler.schedule(this::emit, window, TimeUnit.MILLISECONDS);
+      scheduled = true;
+    } catch (RejectedExecutionException e) {
+      LOG.debug("Source status manager is closed, {} not sent", status);
+    }
+  }
+
+  public synchronized PushAPIStatus getCurrent() {
+    return current;
+  }
+
+  /**
+   * Stop the manager, sending the desired status if it was not sent yet so the Source is not left
+   * refreshing.
+   */
+  public void close() {
+    scheduler.shutdownNow();
+    emit();
+  }
+
+  private void emit() {
+    PushAPIStatus status;
+    synchronized (this) {
+      scheduled = false;
+      status = desired;
+      if (status == null || status == current) {
+        return;
+      }
+    }
+
+    try {
+      CoveoResponse response = updater.update(status);
+      if (response.getStatusLine().getStatusCode() == HttpStatus.SC_CREATED) {
+        LOG.debug("Source Status updated to {}", status);
+        synchronized (this) {
+          current = status;
+        }
+        return;
+      }
+      LOG.error("Could not update the Source status to {}", status);
+    } catch (IOException e) {
+      LOG.error("Exception: Could not update the Source status to {}", status, e);
+    }
+
+    retry(status);
+  }
+
+  /**
+   * Try again at the end of the next window, unless another status was requested meanwhile.
+   */
+  private synchronized void retry(PushAPIStatus status) {
+    if (status == desired && !scheduler.isShutdown()) {
+      request(status);
+    }
+  }
+}
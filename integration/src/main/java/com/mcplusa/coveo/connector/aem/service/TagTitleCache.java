@@ -0,0 +1,177 @@
+package com.mcplusa.coveo.connector.aem.service;
+
+import com.day.cq.tagging.Tag;
+import com.day.cq.tagging.TagManager;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.SlingConstants;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resolves the tag IDs of the indexed properties to the titles of the tags, without asking the
+ * {@link TagManager} for every value of every property.
+ *
+ * <p>Only the values that look like a tag are resolved: an ID in a known namespace, like
+ * {@code namespace:tag}, a bare ID without whitespace when the {@code default} namespace exists,
+ * or the path of a tag. The titles, and the values that are not a tag, are
+ * cached until a tag is added, changed or removed, the least recently used are dropped once the
+ * cache is full.
+ */
+@Component(metatype = false, immediate = true)
+@Service({TagTitleCache.class, EventHandler.class})
+@Properties({
+    @Property(name = EventConstants.EVENT_TOPIC, value = {
+        SlingConstants.TOPIC_RESOURCE_ADDED,
+        SlingConstants.TOPIC_RESOURCE_CHANGED,
+        SlingConstants.TOPIC_RESOURCE_REMOVED
+    }),
+    @Property(name = EventConstants.EVENT_FILTER, value = "(|(path=/content/cq:tags/*)(path=/etc/tags/*))")
+})
+public class TagTitleCache implements EventHandler {
+
+  private static final Logger LOG = LoggerFactory.getLogger(TagTitleCache.class);
+
+  /** Roots of the tags, the current one first. */
+  private static final String[] TAG_ROOTS = {"/content/cq:tags/", "/etc/tags/"};
+
+  /** Namespace of the tag IDs without a namespace. */
+  private static final String DEFAULT_NAMESPACE = "default";
+
+  /** Max number of values cached. */
+  private static final int MAX_TAGS = 10000;
+
+  private final int maxTags;
+
+  private final Map<String, String> titles;
+
+  private Set<String> namespaces;
+
+  /** Bumped on every change of the tags, a title looked up before is not cached. */
+  private long generation;
+
+  public TagTitleCache() {
+    this(MAX_TAGS);
+  }
+
+  /**
+   * Create the cache.
+   *
+   * @param maxTags max number of values cached
+   */
+  TagTitleCache(int maxTags) {
+    this.maxTags = maxTags;
+    this.titles = new LinkedHashMap<String, String>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+        return size() > TagTitleCache.this.maxTags;
+      }
+    };
+  }
+
+  /**
+   * Get the title of a tag.
+   *
+   * @param value      value of a property, an ID or the path of a tag
+   * @param tagManager looks the tag up when its title is not cached
+   * @return the title of the tag, or null if the value is not a tag
+   */
+  public String getTitle(String value, TagManager tagManager) {
+    if (!isTagCandidate(value, tagManager)) {
+      return null;
+    }
+
+    String title;
+    long lookedUp;
+    synchronized (this) {
+      title = titles.get(value);
+      lookedUp = generation;
+    }
+    if (title == null) {
+      Tag tag = tagManager.resolve(value);
+      title = tag != null && tag.getTitle() != null ? tag.getTitle() : "";
+      synchronized (this) {
+        if (lookedUp == generation) {
+          titles.put(value, title);
+        }
+      }
+    }
+
+    // the values that are not a tag are cached as empty
+    return title.isEmpty() ? null : title;
+  }
+
+  public synchronized void clear() {
+    titles.clear();
+    namespaces = null;
+    generation++;
+  }
+
+  public synchronized int size() {
+    return titles.size();
+  }
+
+  /**
+   * Clear the cache when a tag is added, changed or removed.
+   *
+   * @param event resource event under the roots of the tags
+   */
+  @Override
+  public void handleEvent(Event event) {
+    LOG.debug("Tags changed ({}), clearing the tag titles", event.getProperty(SlingConstants.PROPERTY_PATH));
+    clear();
+  }
+
+  private boolean isTagCandidate(String value, TagManager tagManager) {
+    for (String root : TAG_ROOTS) {
+      if (value.startsWith(root)) {
+        return true;
+      }
+    }
+
+    int colon = value.indexOf(':');
+    if (colon < 0) {
+      return !value.isEmpty() && !StringUtils.containsWhitespace(value)
+          && getNamespaces(tagManager).contains(DEFAULT_NAMESPACE);
+    }
+    return colon > 0 && getNamespaces(tagManager).contains(value.substring(0, colon));
+  }
+
+  private Set<String> getNamespaces(TagManager tagManager) {
+    long lookedUp;
+    synchronized (this) {
+      if (namespaces != null) {
+        return namespaces;
+      }
+      lookedUp = generation;
+    }
+
+    Set<String> names = new HashSet<>();
+    Tag[] tags = tagManager.getNamespaces();
+    if (tags != null) {
+      for (Tag namespace : tags) {
+        names.add(namespace.getName());
+      }
+    }
+    LOG.debug("{} tag namespaces read", names.size());
+
+    synchronized (this) {
+      if (lookedUp == generation) {
+        namespaces = names;
+      }
+    }
+    return names;
+  }
+}
@@ -6,8 +6,10 @@ import com.mcplusa.coveo.sdk.pushapi.model.Identity;
 import com.mcplusa.coveo.sdk.pushapi.model.IdentityBody;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
@@ -50,6 +52,9 @@ public class UserManagerService {
   @Reference
   private QueryBuilder builder;
 
+  @Reference
+  private PrincipalTypeCache principalTypeCache;
+
   /**
    * Get all authorizables and return a BatchIdentity.
    *
@@ -62,6 +67,9 @@ public class UserManagerService {
     List<IdentityBody> identityList = new ArrayList<>();
 
     Map<String, List<String>> groupsMap = new HashMap<>();
+    // every principal read, to warm the principal types
+    List<String> userNames = new ArrayList<>();
+    Set<String> groupNames = new HashSet<>();
 
     ResourceResolver resourceResolver = null;
     Session session = null;
@@ -91,6 +99,7 @@ public class UserManagerService {
             User auth = (User) userManager.getAuthorizableByPath(row.getPath());
             String username = auth.getPrincipal().getName();
             List<Group> groups = IteratorUtils.toList(auth.memberOf());
+            userNames.add(username);
 
             // Build Identity
             IdentityBody idUserBody = new IdentityBody();
@@ -103,6 +112,7 @@ public class UserManagerService {
 
             for (Group group : groups) {
               String groupId = group.getPrincipal().getName();
+              groupNames.add(groupId);
 
               if (!isGroupFilterValid || groupId.matches(groupFilter)) {
                 // push to wellKnowns identity
@@ -151,6 +161,7 @@ public class UserManagerService {
       }
 
       batchIdentity.setMembers(identityList);
+      principalTypeCache.putAll(userNames, groupNames);
     } catch (RepositoryException | LoginException ex) {
       LOG.error("Error getting all identities", ex);
     } catch (Exception ex) {
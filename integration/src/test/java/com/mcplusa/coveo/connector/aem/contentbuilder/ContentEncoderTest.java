@@ -0,0 +1,72 @@
+package com.mcplusa.coveo.connector.aem.contentbuilder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.mcplusa.coveo.connector.aem.indexing.contentbuilder.ContentEncoder;
+import com.mcplusa.coveo.sdk.pushapi.model.CompressionType;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import org.junit.Test;
+
+public class ContentEncoderTest {
+
+  private static final String HTML = "<html><body><p>Lorem ipsum dolor sit amet</p>"
+      + "<p>Lorem ipsum dolor sit amet</p><p>Lorem ipsum dolor sit amet</p></body></html>";
+
+  @Test
+  public void testResolve() {
+    assertEquals(CompressionType.UNCOMPRESSED, ContentEncoder.resolve(null, 2048, 1024));
+    assertEquals(CompressionType.UNCOMPRESSED, ContentEncoder.resolve(CompressionType.ZLIB, 512, 1024));
+    assertEquals(CompressionType.UNCOMPRESSED, ContentEncoder.resolve(CompressionType.LZMA, 2048, 1024));
+    assertEquals(CompressionType.GZIP, ContentEncoder.resolve(CompressionType.GZIP, 2048, 1024));
+  }
+
+  @Test
+  public void testUncompressed() throws IOException {
+    String encoded = ContentEncoder.encode(HTML.getBytes(StandardCharsets.UTF_8), CompressionType.UNCOMPRESSED);
+    assertEquals(Base64.getEncoder().encodeToString(HTML.getBytes(StandardCharsets.UTF_8)), encoded);
+  }
+
+  @Test
+  public void testZlib() throws IOException {
+    byte[] compressed = decode(ContentEncoder.encode(HTML.getBytes(StandardCharsets.UTF_8), CompressionType.ZLIB));
+    assertTrue(compressed.length < HTML.length());
+    assertEquals(HTML, read(new InflaterInputStream(new ByteArrayInputStream(compressed))));
+  }
+
+  @Test
+  public void testGzip() throws IOException {
+    byte[] compressed = decode(ContentEncoder.encode(HTML.getBytes(StandardCharsets.UTF_8), CompressionType.GZIP));
+    assertEquals(HTML, read(new GZIPInputStream(new ByteArrayInputStream(compressed))));
+  }
+
+  @Test
+  public void testDeflate() throws IOException {
+    byte[] compressed = decode(ContentEncoder.encode(HTML.getBytes(StandardCharsets.UTF_8), CompressionType.DEFLATE));
+    InputStream is = new InflaterInputStream(new ByteArrayInputStream(compressed), new Inflater(true));
+    assertEquals(HTML, read(is));
+  }
+
+  private byte[] decode(String encoded) {
+    return Base64.getDecoder().decode(encoded);
+  }
+
+  private String read(InputStream is) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024];
+    int read;
+    while ((read = is.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+    is.close();
+    return new String(out.toByteArray(), StandardCharsets.UTF_8);
+  }
+}
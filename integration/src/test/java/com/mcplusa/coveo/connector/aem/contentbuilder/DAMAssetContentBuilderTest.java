@@ -9,7 +9,11 @@ import com.mcplusa.coveo.connector.aem.service.CoveoService;
 import com.mcplusa.coveo.connector.aem.testcontext.AppAemContext;
 import io.wcm.testing.mock.aem.junit.AemContext;
 
+import java.io.ByteArrayInputStream;
 import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.Base64;
@@ -126,6 +130,27 @@ public class DAMAssetContentBuilderTest {
     assertEquals("asset", entry.getType());
   }
 
+  @Test
+  public void testBinaryIsIdentifiedWithoutUpload() {
+    Map<String, Object> metadata = new HashMap<>();
+    metadata.put("dam:sha1", "5f4dcc3b5aa765d61d8327deb882cf99");
+    context.create().asset("/content/dam/notes.txt",
+        new ByteArrayInputStream("notes".getBytes(StandardCharsets.UTF_8)), "text/plain", metadata);
+    DAMAssetContentBuilder builder = new DAMAssetContentBuilder();
+    CoveoService coveoService = mockReferences(builder);
+
+    IndexEntry first = builder.create("/content/dam/notes.txt", context.resourceResolver(), true);
+    IndexEntry second = builder.create("/content/dam/notes.txt", context.resourceResolver(), true);
+
+    Map<?, ?> binary = first.getContent(DAMAssetContentBuilder.BINARY_FIELDNAME, Map.class);
+    assertEquals("5f4dcc3b5aa765d61d8327deb882cf99", binary.get(DAMAssetContentBuilder.BINARY_DIGEST));
+    assertEquals("/content/dam/notes.txt/jcr:content/renditions/original",
+        binary.get(DAMAssetContentBuilder.BINARY_PATH));
+    // an unchanged asset gets the same fingerprint, the binary is uploaded on delivery only
+    assertEquals(binary, second.getContent(DAMAssetContentBuilder.BINARY_FIELDNAME, Map.class));
+    Mockito.verify(coveoService, Mockito.never()).getSources();
+  }
+
   @Test
   public void testCreateDeletedItem() {
     AppAemContext.loadImageSampleContent(context);
@@ -138,7 +163,8 @@ public class DAMAssetContentBuilderTest {
     assertEquals("asset", entry.getType());
   }
 
-  private void mockReferences(DAMAssetContentBuilder instance) {
+  private CoveoService mockReferences(DAMAssetContentBuilder instance) {
+    CoveoService coveoService = Mockito.mock(CoveoService.class);
     try {
       Field resolverFactoryField = DAMAssetContentBuilder.class.getDeclaredField("resolverFactory");
       resolverFactoryField.setAccessible(true);
@@ -146,9 +172,10 @@ public class DAMAssetContentBuilderTest {
 
       Field coveoServiceField = DAMAssetContentBuilder.class.getDeclaredField("coveoService");
       coveoServiceField.setAccessible(true);
-      coveoServiceField.set(instance, Mockito.mock(CoveoService.class));
+      coveoServiceField.set(instance, coveoService);
     } catch (NoSuchFieldException | SecurityException | IllegalArgumentException | IllegalAccessException ex) {
       Logger.getLogger(DAMAssetContentBuilder.class.getName()).log(Level.SEVERE, null, ex);
     }
+    return coveoService;
   }
 }
@@ -0,0 +1,65 @@
+package com.mcplusa.coveo.connector.aem.contentbuilder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.mcplusa.coveo.connector.aem.indexing.contentbuilder.JcrPropertyExtractor;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Map;
+import java.util.TimeZone;
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+import javax.jcr.ValueFactory;
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.sling.commons.json.jcr.JsonItemWriter;
+import org.apache.sling.testing.mock.jcr.MockJcr;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JcrPropertyExtractorTest {
+
+  private Node content;
+
+  @Before
+  public void setUp() throws RepositoryException {
+    Session session = MockJcr.newSession();
+    content = session.getRootNode().addNode("content", JcrConstants.NT_UNSTRUCTURED)
+        .addNode(JcrConstants.JCR_CONTENT, JcrConstants.NT_UNSTRUCTURED);
+    content.setProperty("jcr:title", "Page");
+    content.setProperty("count", 3L);
+    content.setProperty("ratio", 2.0d);
+    content.setProperty("hidden", true);
+    content.setProperty("cq:tags", new String[] {"site:a", "site:b"});
+    ValueFactory factory = session.getValueFactory();
+    content.setProperty("sizes", new Value[] {factory.createValue(1L), factory.createValue(2L)});
+    content.setProperty("ignored", "value");
+  }
+
+  @Test
+  public void testSameValuesAsJsonDump() throws RepositoryException {
+    Map<String, Object> props = extract("count", "ratio", "hidden", "cq:tags", "sizes");
+
+    assertEquals("3", props.get("count"));
+    assertEquals("2", props.get("ratio"));
+    assertEquals("true", props.get("hidden"));
+    assertEquals(Arrays.asList("site:a", "site:b"), props.get("cq:tags"));
+    assertEquals(Arrays.asList(1.0d, 2.0d), props.get("sizes"));
+    assertFalse(props.containsKey("ignored"));
+  }
+
+  @Test
+  public void testDateFormattedLikeJsonDump() throws RepositoryException {
+    Calendar date = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+    date.setTimeInMillis(1577836800000L);
+    content.setProperty("cq:lastModified", date);
+
+    assertEquals(JsonItemWriter.format(date), extract("cq:lastModified").get("cq:lastModified"));
+  }
+
+  private Map<String, Object> extract(String... properties) throws RepositoryException {
+    return JcrPropertyExtractor.extract(content, Arrays.asList(properties));
+  }
+}
@@ -0,0 +1,70 @@
+package com.mcplusa.coveo.connector.aem.contentbuilder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.mcplusa.coveo.connector.aem.indexing.contentbuilder.PropertyCollector;
+import io.wcm.testing.mock.aem.junit.AemContext;
+import java.util.Arrays;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.testing.mock.sling.ResourceResolverType;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class PropertyCollectorTest {
+
+  @Rule
+  public AemContext context = new AemContext(ResourceResolverType.JCR_MOCK);
+
+  private Resource asset;
+
+  @Before
+  public void setUp() {
+    asset = context.create().resource("/content/dam/asset", "jcr:primaryType", "nt:unstructured",
+        "jcr:title", "Asset");
+    context.create().resource("/content/dam/asset/jcr:content", "jcr:primaryType", "nt:unstructured",
+        "jcr:title", "Content", "count", 3L, "cq:tags", new String[] {"site:a", "site:b"});
+    context.create().resource("/content/dam/asset/jcr:content/metadata", "jcr:primaryType", "nt:unstructured",
+        "jcr:title", "Metadata");
+    context.create().resource("/content/dam/asset/renditions", "jcr:primaryType", "nt:unstructured",
+        "jcr:title", "Renditions");
+  }
+
+  @Test
+  public void testPropertiesAreMergedInWalkOrder() {
+    PropertyCollector collector = PropertyCollector.collect(asset, new String[] {"jcr:title", "jcr:title", "count"},
+        true, value -> value);
+
+    assertArrayEquals(new Object[] {"Asset", "Content", "Metadata", "Renditions"},
+        (Object[]) collector.getProperties().get("jcr:title"));
+    assertEquals(3L, collector.getProperties().get("count"));
+    assertArrayEquals(new Object[] {"Asset", "Content", "Metadata", "Renditions"},
+        (Object[]) collector.getAllProperties().get("jcr:title"));
+    assertArrayEquals(new String[] {"site:a", "site:b"}, (Object[]) collector.getAllProperties().get("cq:tags"));
+  }
+
+  @Test
+  public void testNodePropertiesAreReadFromTheContent() {
+    PropertyCollector collector = PropertyCollector.collect(asset, new String[] {"jcr:title", "count", "cq:tags"},
+        false, value -> value instanceof String ? ((String) value).toUpperCase() : value);
+
+    assertArrayEquals(new Object[] {"CONTENT", "METADATA"}, (Object[]) collector.getNodeProperties().get("jcr:title"));
+    assertEquals("3", collector.getNodeProperties().get("count"));
+    assertEquals(Arrays.asList("site:a", "site:b"), collector.getNodeProperties().get("cq:tags"));
+    assertTrue(collector.getAllProperties().isEmpty());
+  }
+
+  @Test
+  public void testArraysAreFlattenedWhenMerged() {
+    context.create().resource("/content/dam/asset/jcr:content/metadata/tags", "jcr:primaryType", "nt:unstructured",
+        "cq:tags", new String[] {"site:c"});
+
+    PropertyCollector collector = PropertyCollector.collect(asset, new String[] {"cq:tags"}, false, value -> value);
+
+    assertArrayEquals(new Object[] {"site:a", "site:b", "site:c"}, (Object[]) collector.getProperties().get("cq:tags"));
+    assertFalse(collector.getProperties().containsKey("jcr:title"));
+  }
+}
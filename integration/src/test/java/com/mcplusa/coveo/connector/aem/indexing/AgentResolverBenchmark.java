@@ -0,0 +1,73 @@
+package com.mcplusa.coveo.connector.aem.indexing;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import com.day.cq.replication.Agent;
+import com.day.cq.replication.ReplicationQueue;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Supplier;
+
+/**
+ * Measures the cost of resolving the agent and its queue for each delivery. Not run by the build,
+ * run it with {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=com.mcplusa.coveo.connector.aem.indexing.AgentResolverBenchmark}.
+ *
+ * <p>The agent manager returns a copy of its agents map, as the AEM implementation does, for an
+ * instance with a few dozen agents. Three cases are measured: five lookups per delivery (deliver,
+ * isFirstEntryOfBatch, isLastEntryOfBatch, doActivate and pushToFileContainer each looking the
+ * agent up), one lookup per delivery, and the {@link AgentResolver}.
+ */
+public class AgentResolverBenchmark {
+
+  private static final int AGENTS = 40;
+
+  private static final int WARMUP = 200_000;
+
+  private static final int DELIVERIES = 1_000_000;
+
+  private static volatile Object sink;
+
+  public static void main(String[] args) {
+    Map<String, Agent> agents = new HashMap<>();
+    for (int i = 0; i < AGENTS; i++) {
+      // stub only, the invocations of the agent are not recorded
+      Agent agent = mock(Agent.class, withSettings().stubOnly());
+      when(agent.getQueue()).thenReturn(mock(ReplicationQueue.class));
+      agents.put("agent-" + i, agent);
+    }
+    Supplier<Map<String, Agent>> agentManager = () -> new HashMap<>(agents);
+    AgentResolver resolver = new AgentResolver(agentManager);
+    String agentId = "agent-7";
+
+    Runnable fiveLookups = () -> {
+      for (int i = 0; i < 5; i++) {
+        sink = Optional.ofNullable(agentManager.get().get(agentId).getQueue());
+      }
+    };
+    Runnable oneLookup = () -> sink = Optional.ofNullable(agentManager.get().get(agentId).getQueue());
+    Runnable cached = () -> sink = resolver.resolve(agentId).getQueue();
+
+    for (int round = 0; round < 3; round++) {
+      System.out.printf("round %d%n", round + 1);
+      System.out.printf("  5 lookups per delivery: %8.1f ns%n", measure(fiveLookups));
+      System.out.printf("  1 lookup per delivery:  %8.1f ns%n", measure(oneLookup));
+      System.out.printf("  AgentResolver:          %8.1f ns%n", measure(cached));
+    }
+  }
+
+  private static double measure(Runnable delivery) {
+    for (int i = 0; i < WARMUP; i++) {
+      delivery.run();
+    }
+
+    long start = System.nanoTime();
+    for (int i = 0; i < DELIVERIES; i++) {
+      delivery.run();
+    }
+    return (System.nanoTime() - start) / (double) DELIVERIES;
+  }
+}
@@ -0,0 +1,75 @@
+package com.mcplusa.coveo.connector.aem.indexing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.day.cq.replication.Agent;
+import com.day.cq.replication.ReplicationQueue;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+public class AgentResolverTest {
+
+  private final Map<String, Agent> agents = new HashMap<>();
+
+  private final AtomicInteger lookups = new AtomicInteger();
+
+  private final AgentResolver resolver = new AgentResolver(() -> {
+    lookups.incrementAndGet();
+    return new HashMap<>(agents);
+  });
+
+  @Test
+  public void testAgentIsResolvedOnce() {
+    ReplicationQueue queue = mock(ReplicationQueue.class);
+    agents.put("coveo", mockAgent(queue));
+
+    AgentResolver.ResolvedAgent first = resolver.resolve("coveo");
+    AgentResolver.ResolvedAgent second = resolver.resolve("coveo");
+
+    assertSame(first, second);
+    assertSame(queue, second.getQueue().get());
+    assertEquals(1, lookups.get());
+  }
+
+  @Test
+  public void testInvalidate() {
+    agents.put("coveo", mockAgent(mock(ReplicationQueue.class)));
+    resolver.resolve("coveo");
+
+    Agent reconfigured = mockAgent(mock(ReplicationQueue.class));
+    agents.put("coveo", reconfigured);
+    resolver.invalidate();
+
+    assertSame(reconfigured, resolver.resolve("coveo").getAgent());
+    assertEquals(2, lookups.get());
+
+    // another agentId is looked up as well
+    agents.put("other", mockAgent(null));
+    assertEquals("other", resolver.resolve("other").getAgentId());
+    assertEquals(3, lookups.get());
+  }
+
+  @Test
+  public void testMissingAgentIsNotCached() {
+    assertNull(resolver.resolve("coveo"));
+
+    agents.put("coveo", mockAgent(null));
+    AgentResolver.ResolvedAgent agent = resolver.resolve("coveo");
+
+    assertNotNull(agent);
+    assertEquals(false, agent.getQueue().isPresent());
+  }
+
+  private static Agent mockAgent(ReplicationQueue queue) {
+    Agent agent = mock(Agent.class);
+    when(agent.getQueue()).thenReturn(queue);
+    return agent;
+  }
+}
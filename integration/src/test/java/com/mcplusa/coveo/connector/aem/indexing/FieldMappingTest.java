@@ -0,0 +1,76 @@
+package com.mcplusa.coveo.connector.aem.indexing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+
+public class FieldMappingTest {
+
+  @Test
+  public void testDefaultMapping() {
+    Map<String, Object> content = new HashMap<>();
+    content.put("jcr:title", "Title");
+    content.put("Page Size", 3);
+    content.put("documentId", "https://localhost/page.html");
+    content.put("title", "Title");
+    content.put("content", "PGh0bWw+");
+    content.put("acl", "[]");
+    content.put("empty", null);
+
+    Map<String, Object> metadata = FieldMapping.DEFAULT.map(content);
+
+    assertEquals("Title", metadata.get("jcrtitle"));
+    assertEquals(3, metadata.get("page_size"));
+    assertEquals("https://localhost/page.html", metadata.get("documentid"));
+    assertFalse(metadata.containsKey("title"));
+    assertFalse(metadata.containsKey("content"));
+    assertFalse(metadata.containsKey("acl"));
+    assertFalse(metadata.containsKey("empty"));
+  }
+
+  @Test
+  public void testRenamesAndCoercions() {
+    FieldMapping mapping = FieldMapping.compile(
+        new String[] {"jcr:title=pagetitle", "size=filesize:LONG", "rating=:DOUBLE", "tags=keywords:STRING",
+            "invalid", "other=field:UNKNOWN"},
+        new String[] {"cq:template", " "});
+    Map<String, Object> content = new HashMap<>();
+    content.put("jcr:title", "Title");
+    content.put("size", "1024");
+    content.put("rating", 4);
+    content.put("tags", Arrays.asList(1, 2));
+    content.put("cq:template", "/apps/template");
+    content.put("other", "value");
+
+    Map<String, Object> metadata = mapping.map(content);
+
+    assertEquals("Title", metadata.get("pagetitle"));
+    assertEquals(1024L, metadata.get("filesize"));
+    assertEquals(4.0, metadata.get("rating"));
+    assertEquals(Arrays.asList("1", "2"), metadata.get("keywords"));
+    assertEquals("value", metadata.get("other"));
+    assertFalse(metadata.containsKey("cqtemplate"));
+    assertFalse(metadata.containsKey("jcrtitle"));
+  }
+
+  @Test
+  public void testInvalidValueIsKept() {
+    FieldMapping mapping = FieldMapping.compile(new String[] {"size=filesize:LONG"}, null);
+    Map<String, Object> content = new HashMap<>();
+    content.put("size", "large");
+
+    assertEquals("large", mapping.map(content).get("filesize"));
+  }
+
+  @Test
+  public void testFieldName() {
+    assertEquals("dc_title", FieldMapping.DEFAULT.getFieldName("dc title"));
+    assertEquals("jcrcreatedby", FieldMapping.DEFAULT.getFieldName("jcr:createdBy"));
+    assertTrue(FieldMapping.DEFAULT.getFieldName("jcr:createdBy") == FieldMapping.DEFAULT.getFieldName("jcr:createdBy"));
+  }
+}
@@ -0,0 +1,103 @@
+package com.mcplusa.coveo.connector.aem.indexing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+
+public class IndexEntryCodecTest {
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  @Test
+  public void testSameContentAsJson() throws IOException {
+    IndexEntry entry = new IndexEntry("idx", "page", "/content/site/en/page");
+    entry.setDocumentId("https://localhost/content/site/en/page.html");
+    entry.addContent("title", "Page é");
+    entry.addContent("lastmodified", 1577836800000L);
+    entry.addContent("size", 42L);
+    entry.addContent("ratio", 0.5);
+    entry.addContent("hidden", false);
+    entry.addContent("tags", new String[] {"a", "b"});
+    entry.addContent("created", Calendar.getInstance());
+    Map<String, Object> nested = new HashMap<>();
+    nested.put("count", 3);
+    nested.put("empty", null);
+    entry.addContent("nested", nested);
+    entry.addContent("content", "PGh0bWw+PC9odG1sPg==");
+
+    IndexEntry binary = roundTrip(entry);
+    IndexEntry json = MAPPER.readValue(MAPPER.writeValueAsBytes(entry), IndexEntry.class);
+
+    assertEquals(json.getContent(), binary.getContent());
+    assertEquals(json.getId(), binary.getId());
+    assertEquals(Integer.class, binary.getContent().get("size").getClass());
+    assertEquals(Long.class, binary.getContent().get("lastmodified").getClass());
+    assertEquals(Arrays.asList("a", "b"), binary.getContent().get("tags"));
+  }
+
+  @Test
+  public void testCopyHasSameContentAsRoundTrip() throws IOException {
+    IndexEntry entry = new IndexEntry("idx", "damasset", "/content/dam/image.png");
+    entry.addContent("size", 1024L);
+    entry.addContent("tags", new String[] {"a", "b"});
+    entry.addContent("created", Calendar.getInstance());
+
+    IndexEntry copy = IndexEntryCodec.copy(entry);
+
+    assertEquals(roundTrip(entry).getContent(), copy.getContent());
+    assertEquals(entry.getId(), copy.getId());
+  }
+
+  @Test
+  public void testContentTypeParameters() {
+    assertTrue(IndexEntryCodec.isBinary(IndexEntryCodec.CONTENT_TYPE));
+    assertTrue(IndexEntryCodec.isBinary(IndexEntryCodec.CONTENT_TYPE + ";handle=1"));
+    assertFalse(IndexEntryCodec.isBinary(IndexEntryCodec.JSON_CONTENT_TYPE));
+    assertFalse(IndexEntryCodec.isBinary(null));
+  }
+
+  @Test
+  public void testNullFields() throws IOException {
+    IndexEntry entry = new IndexEntry();
+
+    IndexEntry read = roundTrip(entry);
+
+    assertNull(read.getIndex());
+    assertNull(read.getId());
+    assertEquals(0, read.getContent().size());
+  }
+
+  @Test
+  public void testReadJson() throws IOException {
+    String json = "{\"index\":\"idx\",\"type\":\"page\",\"content\":{\"path\":\"/content/page\",\"title\":\"Page\"}}";
+
+    IndexEntry entry = IndexEntryCodec.read(IndexEntryCodec.JSON_CONTENT_TYPE,
+        new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+
+    assertEquals("/content/page", entry.getPath());
+    assertEquals("Page", entry.getContent("title", String.class));
+  }
+
+  @Test(expected = IOException.class)
+  public void testUnknownFormat() throws IOException {
+    IndexEntryCodec.read(IndexEntryCodec.CONTENT_TYPE, new ByteArrayInputStream("{}".getBytes(StandardCharsets.UTF_8)));
+  }
+
+  private static IndexEntry roundTrip(IndexEntry entry) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    IndexEntryCodec.write(entry, out);
+    return IndexEntryCodec.read(IndexEntryCodec.CONTENT_TYPE, new ByteArrayInputStream(out.toByteArray()));
+  }
+}
@@ -0,0 +1,58 @@
+package com.mcplusa.coveo.connector.aem.indexing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import org.junit.Test;
+
+public class IndexEntryHandoffTest {
+
+  @Test
+  public void testTakeOnce() throws IOException {
+    IndexEntryHandoff handoff = new IndexEntryHandoff(10);
+    String contentType = handoff.register(new IndexEntry("idx", "page", "/content/page"));
+
+    IndexEntry entry = handoff.take(contentType);
+
+    assertNotNull(entry);
+    assertEquals("/content/page", entry.getPath());
+    // a retry of the delivery reads the replication content
+    assertNull(handoff.take(contentType));
+  }
+
+  @Test
+  public void testEviction() throws IOException {
+    IndexEntryHandoff handoff = new IndexEntryHandoff(2);
+    String first = handoff.register(new IndexEntry("idx", "page", "/content/first"));
+    String second = handoff.register(new IndexEntry("idx", "page", "/content/second"));
+    String third = handoff.register(new IndexEntry("idx", "page", "/content/third"));
+
+    assertEquals(2, handoff.size());
+    assertNull(handoff.take(first));
+    assertNotNull(handoff.take(second));
+    assertNotNull(handoff.take(third));
+  }
+
+  @Test
+  public void testUnknownHandle() throws IOException {
+    IndexEntryHandoff handoff = new IndexEntryHandoff(10);
+    handoff.register(new IndexEntry("idx", "page", "/content/page"));
+
+    // handles queued by another instance, e.g. before a restart
+    assertNull(new IndexEntryHandoff(10).take(IndexEntryCodec.CONTENT_TYPE + ";handle=1"));
+    assertNull(handoff.take(IndexEntryCodec.CONTENT_TYPE));
+    assertNull(handoff.take(IndexEntryCodec.JSON_CONTENT_TYPE));
+  }
+
+  @Test
+  public void testDisabled() throws IOException {
+    IndexEntryHandoff handoff = new IndexEntryHandoff(0);
+
+    String contentType = handoff.register(new IndexEntry("idx", "page", "/content/page"));
+
+    assertEquals(IndexEntryCodec.CONTENT_TYPE, contentType);
+    assertEquals(0, handoff.size());
+  }
+}
@@ -0,0 +1,95 @@
+package com.mcplusa.coveo.connector.aem.indexing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.mcplusa.coveo.sdk.pushapi.model.IdentityType;
+import com.mcplusa.coveo.sdk.pushapi.model.PermissionLevelsModel;
+import com.mcplusa.coveo.sdk.pushapi.model.PermissionModel;
+import com.mcplusa.coveo.sdk.pushapi.model.PermissionsSetsModel;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+
+public class PermissionChainTest {
+
+  private static final Permission EVERYONE = new Permission("everyone", Permission.PERMISSION_TYPE.ALLOW, true);
+
+  private static final Permission BOB = new Permission("bob", Permission.PERMISSION_TYPE.DENY, false);
+
+  private static final Permission AUTHORS = new Permission("authors", Permission.PERMISSION_TYPE.ALLOW, true);
+
+  @Test
+  public void testSamePoliciesGiveEqualChains() {
+    List<List<String>> chain = PermissionChain.encode(Arrays.asList(
+        new NodePermissionLevel(1, Arrays.asList(AUTHORS)),
+        new NodePermissionLevel(0, Arrays.asList(EVERYONE, BOB))));
+    List<List<String>> other = PermissionChain.encode(Arrays.asList(
+        new NodePermissionLevel(0, Arrays.asList(BOB, EVERYONE)),
+        new NodePermissionLevel(1, Arrays.asList(AUTHORS))));
+
+    assertEquals(chain, other);
+    assertEquals(Arrays.asList(Arrays.asList("A:G:everyone", "D:U:bob"), Arrays.asList("A:G:authors")), chain);
+  }
+
+  @Test
+  public void testDecodeEntryOfPreviousVersions() throws IOException {
+    String json = "[{\"nodeLevel\":1,\"permissions\":[{\"principalName\":\"authors\",\"type\":\"ALLOW\",\"isGroup\":true}]},"
+        + "{\"nodeLevel\":0,\"permissions\":[{\"principalName\":\"bob\",\"type\":\"DENY\",\"isGroup\":false},"
+        + "{\"principalName\":\"everyone\",\"type\":\"ALLOW\",\"isGroup\":true}]}]";
+
+    assertEquals(PermissionChain.encode(Arrays.asList(
+        new NodePermissionLevel(0, Arrays.asList(EVERYONE, BOB)),
+        new NodePermissionLevel(1, Arrays.asList(AUTHORS)))), PermissionChain.decode(json));
+  }
+
+  @Test
+  public void testChainReadFromTheQueue() throws IOException {
+    IndexEntry entry = new IndexEntry("idx", "page", "/content/site/page");
+    List<List<String>> chain = PermissionChain.encode(Arrays.asList(
+        new NodePermissionLevel(0, Arrays.asList(EVERYONE, BOB))));
+    entry.addContent("acl", chain);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    IndexEntryCodec.write(entry, out);
+    IndexEntry read = IndexEntryCodec.read(IndexEntryCodec.CONTENT_TYPE, new ByteArrayInputStream(out.toByteArray()));
+
+    assertEquals(chain, PermissionChain.decode(read.getContent().get("acl")));
+  }
+
+  @Test
+  public void testEqualChainsSharePermissions() {
+    PermissionChainCache cache = new PermissionChainCache(10);
+    List<List<String>> chain = Arrays.asList(Arrays.asList("A:G:everyone", "D:U:bob"));
+
+    List<PermissionModel> permissions = cache.getPermissions(chain, "users", "groups");
+
+    assertSame(permissions, cache.getPermissions(Arrays.asList(Arrays.asList("A:G:everyone", "D:U:bob")),
+        "users", "groups"));
+    PermissionsSetsModel psm = ((PermissionLevelsModel) permissions.get(0)).getPermissionSets().get(0);
+    assertEquals(IdentityType.VIRTUAL_GROUP, psm.getAllowedPermissions().get(0).getIdentityType());
+    assertEquals("groups", psm.getAllowedPermissions().get(0).getSecurityProvider());
+    assertEquals("bob", psm.getDeniedPermissions().get(0).getIdentity());
+    assertEquals("users", psm.getDeniedPermissions().get(0).getSecurityProvider());
+
+    // the permissions are converted again for the new identity providers
+    assertNotSame(permissions, cache.getPermissions(chain, "users", "other-groups"));
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void testEmptyChainAllowsAnonymous() {
+    PermissionChainCache cache = new PermissionChainCache(10);
+
+    List<PermissionModel> permissions = cache.getPermissions(Collections.emptyList(), "users", "groups");
+
+    assertEquals(1, permissions.size());
+    assertTrue(((PermissionLevelsModel) permissions.get(0)).getPermissionSets().get(0).isAllowAnonymous());
+  }
+}
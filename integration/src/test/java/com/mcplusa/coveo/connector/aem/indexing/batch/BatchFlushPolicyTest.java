@@ -0,0 +1,82 @@
+package com.mcplusa.coveo.connector.aem.indexing.batch;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BatchFlushPolicyTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private BatchJournal journal;
+
+  @Before
+  public void setUp() {
+    journal = new BatchJournal(folder.getRoot());
+  }
+
+  @Test
+  public void testMaxDocuments() throws IOException {
+    BatchFlushPolicy policy = new BatchFlushPolicy(2, 0, 0);
+    PendingBatch batch = journal.create("publish");
+    assertFalse(policy.isFull(batch));
+
+    batch.deleteDocument("https://localhost/content/foo.html");
+    assertFalse(policy.isFull(batch));
+
+    batch.deleteDocument("https://localhost/content/bar.html");
+    assertTrue(policy.isFull(batch));
+  }
+
+  @Test
+  public void testMaxSize() throws IOException {
+    BatchFlushPolicy policy = new BatchFlushPolicy(0, 1024, 0);
+    PendingBatch batch = journal.create("publish");
+
+    batch.deleteDocument("https://localhost/content/foo.html");
+    assertFalse(policy.isFull(batch));
+
+    StringBuilder path = new StringBuilder("https://localhost/content/");
+    for (int i = 0; i < 1024; i++) {
+      path.append('a');
+    }
+    batch.deleteDocument(path.toString());
+    assertTrue(policy.isFull(batch));
+  }
+
+  @Test
+  public void testMaxAge() throws IOException {
+    BatchFlushPolicy policy = new BatchFlushPolicy(0, 0, 1000);
+    PendingBatch batch = journal.create("publish");
+    long now = batch.getCreatedAt();
+
+    // empty batches are never pushed
+    assertFalse(policy.isStale(batch, now + 5000));
+
+    batch.deleteDocument("https://localhost/content/foo.html");
+    assertFalse(policy.isStale(batch, now + 500));
+    assertTrue(policy.isStale(batch, now + 1000));
+  }
+
+  @Test
+  public void testDebounceWindow() throws IOException {
+    BatchFlushPolicy policy = new BatchFlushPolicy(0, 0, 60000, 1000);
+    PendingBatch batch = journal.create("publish");
+    batch.deleteDocument("https://localhost/content/foo.html");
+    long updatedAt = batch.getUpdatedAt();
+
+    assertFalse(policy.isSettled(batch, updatedAt + 500));
+    assertFalse(policy.isStale(batch, updatedAt + 500));
+    assertTrue(policy.isSettled(batch, updatedAt + 1000));
+    assertTrue(policy.isStale(batch, updatedAt + 1000));
+
+    // without debounce window a batch is always settled
+    assertTrue(new BatchFlushPolicy(0, 0, 60000).isSettled(batch, updatedAt));
+  }
+}
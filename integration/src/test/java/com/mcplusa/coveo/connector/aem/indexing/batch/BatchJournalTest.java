@@ -0,0 +1,96 @@
+package com.mcplusa.coveo.connector.aem.indexing.batch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BatchJournalTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testPayload() throws IOException {
+    PendingBatch batch = new BatchJournal(folder.getRoot()).create("publish");
+    assertEquals("{\"addOrUpdate\":[],\"delete\":[]}", read(batch));
+
+    batch.deleteDocument("https://localhost/content/\"foo\".html");
+    String payload = read(batch);
+    assertEquals("{\"addOrUpdate\":[],\"delete\":[{\"documentId\":\"https://localhost/content/\\\"foo\\\".html\","
+        + "\"deleteChildren\":true}\n]}", payload);
+    assertEquals(payload.length() - "{\"addOrUpdate\":[],\"delete\":[]}".length(), batch.getSize());
+  }
+
+  @Test
+  public void testReplay() throws IOException {
+    BatchJournal journal = new BatchJournal(folder.getRoot());
+    PendingBatch first = journal.create("publish/queue");
+    first.deleteDocument("doc1");
+    first.close();
+    PendingBatch second = journal.create("publish/queue");
+    second.deleteDocument("doc2");
+    second.deleteDocument("doc3");
+    second.close();
+
+    Map<String, PendingBatch> batches = new BatchJournal(folder.getRoot()).replay();
+    assertEquals(1, batches.size());
+
+    PendingBatch batch = batches.get("publish/queue");
+    assertEquals(3, batch.getDocumentCount());
+    assertEquals(first.getCreatedAt(), batch.getCreatedAt());
+    assertTrue(read(batch).contains("\"doc1\",\"deleteChildren\":true}\n,{\"documentId\":\"doc2\""));
+
+    batch.discard();
+    assertTrue(new BatchJournal(folder.getRoot()).replay().isEmpty());
+  }
+
+  @Test
+  public void testReplayDropsIncompleteRecord() throws IOException {
+    BatchJournal journal = new BatchJournal(folder.getRoot());
+    PendingBatch batch = journal.create("publish");
+    batch.deleteDocument("doc1");
+    batch.close();
+
+    File deleteFile = new File(folder.getRoot(), "publish").listFiles()[0];
+    try (FileOutputStream out = new FileOutputStream(deleteFile, true)) {
+      out.write(",{\"documentId\":\"do".getBytes(StandardCharsets.UTF_8));
+    }
+
+    PendingBatch replayed = new BatchJournal(folder.getRoot()).replay().get("publish");
+    assertEquals(1, replayed.getDocumentCount());
+    assertEquals("{\"addOrUpdate\":[],\"delete\":[{\"documentId\":\"doc1\",\"deleteChildren\":true}\n]}",
+        read(replayed));
+  }
+
+  static String read(PendingBatch batch) throws IOException {
+    return read(batch.openPayload());
+  }
+
+  static String read(BatchPart part) throws IOException {
+    return read(part.open());
+  }
+
+  private static String read(InputStream payload) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (InputStream is = payload) {
+      int expected = is.available();
+      byte[] buffer = new byte[16];
+      int read;
+      while ((read = is.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+      assertEquals(expected, out.size());
+    }
+    return new String(out.toByteArray(), StandardCharsets.UTF_8);
+  }
+}
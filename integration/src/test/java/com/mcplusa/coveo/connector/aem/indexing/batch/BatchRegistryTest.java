@@ -0,0 +1,64 @@
+package com.mcplusa.coveo.connector.aem.indexing.batch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BatchRegistryTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private BatchRegistry registry;
+
+  @Before
+  public void setUp() {
+    registry = new BatchRegistry(new BatchJournal(folder.getRoot()));
+  }
+
+  @Test
+  public void testTakeDetachesBatch() throws IOException {
+    assertTrue(registry.start("publish"));
+    assertFalse(registry.start("publish"));
+    registry.deleteDocument("publish", "doc1");
+
+    PendingBatch batch = registry.take("publish");
+    assertEquals(1, batch.getDocumentCount());
+    assertNull(registry.take("publish"));
+
+    registry.deleteDocument("publish", "doc2");
+    assertTrue(registry.test("publish", b -> b != null && b.getDocumentCount() == 1));
+    assertEquals(1, batch.getDocumentCount());
+  }
+
+  @Test
+  public void testRestoreKeepsOrder() throws IOException {
+    registry.deleteDocument("publish", "doc1");
+    PendingBatch failed = registry.take("publish");
+    registry.deleteDocument("publish", "doc2");
+
+    registry.restore("publish", failed);
+
+    PendingBatch batch = registry.take("publish");
+    assertEquals(2, batch.getDocumentCount());
+    assertEquals("{\"addOrUpdate\":[],\"delete\":[{\"documentId\":\"doc1\",\"deleteChildren\":true}\n"
+        + ",{\"documentId\":\"doc2\",\"deleteChildren\":true}\n]}", BatchJournalTest.read(batch));
+  }
+
+  @Test
+  public void testQueuesAreIndependent() throws IOException {
+    registry.deleteDocument("publish", "doc1");
+    registry.deleteDocument("preview", "doc2");
+
+    assertEquals(1, registry.take("publish").getDocumentCount());
+    assertTrue(registry.test("preview", b -> b.getDocumentCount() == 1));
+    assertFalse(registry.test("unknown", b -> b != null));
+  }
+}
@@ -0,0 +1,169 @@
+package com.mcplusa.coveo.connector.aem.indexing.batch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import com.mcplusa.coveo.sdk.CoveoResponse;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BatchUploadPipelineTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private BatchRegistry registry;
+
+  private BatchUploadPipeline pipeline;
+
+  @Before
+  public void setUp() {
+    registry = new BatchRegistry(new BatchJournal(folder.getRoot()));
+  }
+
+  @After
+  public void tearDown() {
+    if (pipeline != null) {
+      pipeline.shutdown();
+    }
+  }
+
+  @Test
+  public void testPushInOrder() throws Exception {
+    CountDownLatch firstUpload = new CountDownLatch(1);
+    List<String> pushed = new CopyOnWriteArrayList<>();
+    pipeline = new BatchUploadPipeline(registry, part -> {
+      String payload = BatchJournalTest.read(part);
+      if (payload.contains("doc1")) {
+        // the second batch is uploaded first, but pushed after the first one
+        firstUpload.await(5, TimeUnit.SECONDS);
+      } else {
+        firstUpload.countDown();
+      }
+      return payload;
+    }, fileId -> {
+      pushed.add(fileId);
+      return mock(CoveoResponse.class);
+    }, 2, 0);
+
+    registry.deleteDocument("publish", "doc1");
+    CompletableFuture<CoveoResponse> first = pipeline.flush("publish");
+    registry.deleteDocument("publish", "doc2");
+    CompletableFuture<CoveoResponse> second = pipeline.flush("publish");
+
+    assertNotNull(second.get(5, TimeUnit.SECONDS));
+    assertTrue(first.isDone());
+    assertEquals(2, pushed.size());
+    assertTrue(pushed.get(0).contains("doc1"));
+    assertTrue(pushed.get(1).contains("doc2"));
+    assertTrue(new BatchJournal(folder.getRoot()).replay().isEmpty());
+  }
+
+  @Test
+  public void testFailureRestoresBatchesInOrder() throws Exception {
+    CountDownLatch secondTaken = new CountDownLatch(1);
+    pipeline = new BatchUploadPipeline(registry, part -> {
+      String payload = BatchJournalTest.read(part);
+      if (payload.contains("doc1")) {
+        secondTaken.await(5, TimeUnit.SECONDS);
+        throw new IOException("upload failed");
+      }
+      return payload;
+    }, fileId -> mock(CoveoResponse.class), 2, 0);
+
+    registry.deleteDocument("publish", "doc1");
+    CompletableFuture<CoveoResponse> first = pipeline.flush("publish");
+    registry.deleteDocument("publish", "doc2");
+    CompletableFuture<CoveoResponse> second = pipeline.flush("publish");
+    registry.deleteDocument("publish", "doc3");
+    secondTaken.countDown();
+
+    assertNull(first.get(5, TimeUnit.SECONDS));
+    assertNull(second.get(5, TimeUnit.SECONDS));
+
+    PendingBatch batch = registry.take("publish");
+    assertEquals(3, batch.getDocumentCount());
+    String payload = BatchJournalTest.read(batch);
+    assertTrue(payload.indexOf("doc1") < payload.indexOf("doc2"));
+    assertTrue(payload.indexOf("doc2") < payload.indexOf("doc3"));
+  }
+
+  @Test
+  public void testPushedActionsRunOnceTheBatchIsPushed() throws Exception {
+    AtomicBoolean failing = new AtomicBoolean(true);
+    pipeline = new BatchUploadPipeline(registry, part -> {
+      if (failing.get()) {
+        throw new IOException("upload failed");
+      }
+      return BatchJournalTest.read(part);
+    }, fileId -> mock(CoveoResponse.class), 1, 0);
+
+    List<String> actions = new CopyOnWriteArrayList<>();
+    registry.addDocument("publish", "doc1", "{\"documentId\":\"doc1\"}", () -> actions.add("doc1"));
+    assertNull(pipeline.flush("publish").get(5, TimeUnit.SECONDS));
+    assertTrue(actions.isEmpty());
+
+    // the actions follow the batch put back in the registry
+    registry.deleteDocument("publish", "doc2", () -> actions.add("doc2"));
+    failing.set(false);
+    assertNotNull(pipeline.flush("publish").get(5, TimeUnit.SECONDS));
+    assertEquals(Arrays.asList("doc1", "doc2"), actions);
+  }
+
+  @Test
+  public void testEmptyQueue() throws Exception {
+    pipeline = new BatchUploadPipeline(registry, part -> "fileId", fileId -> mock(CoveoResponse.class), 1, 0);
+    assertNull(pipeline.flush("publish").get(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testFlushWithoutBatchDoesNotWaitForAnUploadSlot() throws Exception {
+    CountDownLatch uploaded = new CountDownLatch(1);
+    pipeline = new BatchUploadPipeline(registry, part -> {
+      uploaded.await(5, TimeUnit.SECONDS);
+      return BatchJournalTest.read(part);
+    }, fileId -> mock(CoveoResponse.class), 1, 0);
+
+    registry.deleteDocument("publish", "doc1");
+    CompletableFuture<CoveoResponse> first = pipeline.flush("publish");
+
+    // the only slot is taken by the first batch
+    assertSame(first, pipeline.flush("publish"));
+    uploaded.countDown();
+    assertNotNull(first.get(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testSplitBatchIsPushedInParts() throws Exception {
+    List<String> pushed = new CopyOnWriteArrayList<>();
+    pipeline = new BatchUploadPipeline(registry, BatchJournalTest::read, fileId -> {
+      pushed.add(fileId);
+      return mock(CoveoResponse.class);
+    }, 1, 100);
+
+    registry.deleteDocument("publish", "doc1");
+    registry.deleteDocument("publish", "doc2");
+    registry.deleteDocument("publish", "doc3");
+
+    assertNotNull(pipeline.flush("publish").get(5, TimeUnit.SECONDS));
+    assertEquals(3, pushed.size());
+    assertTrue(pushed.get(0).contains("doc1"));
+    assertTrue(pushed.get(2).contains("doc3"));
+    assertTrue(new BatchJournal(folder.getRoot()).replay().isEmpty());
+  }
+}
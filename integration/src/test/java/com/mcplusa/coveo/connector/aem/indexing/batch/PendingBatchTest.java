@@ -0,0 +1,122 @@
+package com.mcplusa.coveo.connector.aem.indexing.batch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.mcplusa.coveo.sdk.pushapi.model.Document;
+import java.io.IOException;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PendingBatchTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private BatchJournal journal;
+
+  @Before
+  public void setUp() {
+    journal = new BatchJournal(folder.getRoot());
+  }
+
+  @Test
+  public void testLastRecordWins() throws IOException {
+    PendingBatch batch = journal.create("publish");
+    batch.addDocument(document("doc1", "first"));
+    batch.addDocument(document("doc2", "first"));
+    batch.addDocument(document("doc1", "second"));
+    batch.deleteDocument("doc2");
+
+    assertEquals(1, batch.getAddCount());
+    assertEquals(1, batch.getDeleteCount());
+
+    String payload = BatchJournalTest.read(batch);
+    assertEquals("{\"addOrUpdate\":[{\"documentId\":\"doc1\",\"data\":\"second\"}\n],"
+        + "\"delete\":[{\"documentId\":\"doc2\",\"deleteChildren\":true}\n]}", payload);
+    assertEquals(payload.length() - "{\"addOrUpdate\":[],\"delete\":[]}".length(), batch.getSize());
+
+    // the compacted batch keeps working
+    batch.deleteDocument("doc1");
+    assertEquals("{\"addOrUpdate\":[],\"delete\":[{\"documentId\":\"doc2\",\"deleteChildren\":true}\n"
+        + ",{\"documentId\":\"doc1\",\"deleteChildren\":true}\n]}", BatchJournalTest.read(batch));
+  }
+
+  @Test
+  public void testAppendReplacesRecords() throws IOException {
+    PendingBatch failed = journal.create("publish");
+    failed.addDocument(document("doc1", "first"));
+    failed.deleteDocument("doc2");
+    PendingBatch next = journal.create("publish");
+    next.deleteDocument("doc1");
+
+    failed.append(next);
+
+    assertEquals(0, failed.getAddCount());
+    assertEquals(2, failed.getDeleteCount());
+    assertEquals("{\"addOrUpdate\":[],\"delete\":[{\"documentId\":\"doc2\",\"deleteChildren\":true}\n"
+        + ",{\"documentId\":\"doc1\",\"deleteChildren\":true}\n]}", BatchJournalTest.read(failed));
+  }
+
+  @Test
+  public void testReplayKeepsRecordsOfUnknownOrder() throws IOException {
+    PendingBatch batch = journal.create("publish");
+    batch.deleteDocument("doc1");
+    batch.deleteDocument("doc1");
+    batch.addDocument(document("doc1", "first"));
+    batch.close();
+
+    // the add and the delete are in different files, both are kept
+    PendingBatch replayed = new BatchJournal(folder.getRoot()).replay().get("publish");
+    assertEquals(1, replayed.getAddCount());
+    assertEquals(1, replayed.getDeleteCount());
+
+    // a new record of the document replaces both
+    replayed.addDocument(document("doc1", "second"));
+    assertEquals(1, replayed.getDocumentCount());
+    assertEquals("{\"addOrUpdate\":[{\"documentId\":\"doc1\",\"data\":\"second\"}\n],\"delete\":[]}",
+        BatchJournalTest.read(replayed));
+  }
+
+  @Test
+  public void testSplit() throws IOException {
+    StringBuilder big = new StringBuilder();
+    for (int i = 0; i < 200; i++) {
+      big.append('a');
+    }
+
+    PendingBatch batch = journal.create("publish");
+    batch.addDocument(document("doc1", "first"));
+    batch.addDocument(document("doc2", big.toString()));
+    batch.addDocument(document("doc3", "first"));
+    batch.deleteDocument("doc4");
+    batch.addDocument(document("doc1", "second"));
+
+    List<BatchPart> parts = batch.split(140);
+    assertEquals(3, parts.size());
+    assertEquals("{\"addOrUpdate\":[{\"documentId\":\"doc2\",\"data\":\"" + big + "\"}\n],\"delete\":[]}",
+        BatchJournalTest.read(parts.get(0)));
+    assertEquals("{\"addOrUpdate\":[{\"documentId\":\"doc3\",\"data\":\"first\"}\n"
+        + ",{\"documentId\":\"doc1\",\"data\":\"second\"}\n],\"delete\":[]}", BatchJournalTest.read(parts.get(1)));
+    assertEquals("{\"addOrUpdate\":[],\"delete\":[{\"documentId\":\"doc4\",\"deleteChildren\":true}\n]}",
+        BatchJournalTest.read(parts.get(2)));
+
+    // only the document bigger than the max size goes over it
+    assertTrue(parts.get(0).getSize() > 140);
+    assertTrue(parts.get(1).getSize() <= 140);
+    assertEquals(2, parts.get(1).getDocumentCount());
+    assertEquals(1, batch.split(0).size());
+  }
+
+  private static Document document(String documentId, String data) {
+    Document document = mock(Document.class);
+    when(document.getDocumentId()).thenReturn(documentId);
+    when(document.toJson()).thenReturn("{\"documentId\":\"" + documentId + "\",\"data\":\"" + data + "\"}");
+    return document;
+  }
+}
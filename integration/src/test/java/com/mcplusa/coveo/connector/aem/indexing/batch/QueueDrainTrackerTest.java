@@ -0,0 +1,75 @@
+package com.mcplusa.coveo.connector.aem.indexing.batch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.day.cq.replication.ReplicationQueue;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+
+public class QueueDrainTrackerTest {
+
+  @Test
+  public void testCounterAvoidsListingTheQueue() {
+    ReplicationQueue queue = mockQueue(3);
+    QueueDrainTracker tracker = new QueueDrainTracker(Long.MAX_VALUE);
+
+    // first check synchronizes the counter with the queue
+    assertFalse(tracker.isLastEntry(queue));
+    assertEquals(3, tracker.getPending());
+
+    tracker.entryDelivered();
+    assertFalse(tracker.isLastEntry(queue));
+    verify(queue, times(1)).entries();
+  }
+
+  @Test
+  public void testLastEntryIsConfirmedByTheQueue() {
+    ReplicationQueue queue = mockQueue(2);
+    QueueDrainTracker tracker = new QueueDrainTracker(Long.MAX_VALUE);
+
+    assertFalse(tracker.isLastEntry(queue));
+    tracker.entryDelivered();
+
+    // an entry was added without passing through the content builder
+    List<ReplicationQueue.Entry> entries = entries(4);
+    when(queue.entries()).thenReturn(entries);
+    assertFalse(tracker.isLastEntry(queue));
+    assertEquals(4, tracker.getPending());
+  }
+
+  @Test
+  public void testDrainedQueue() {
+    ReplicationQueue queue = mockQueue(1);
+    QueueDrainTracker tracker = new QueueDrainTracker(Long.MAX_VALUE);
+
+    assertTrue(tracker.isLastEntry(queue));
+
+    tracker.entryDelivered();
+    tracker.entryDelivered();
+    assertEquals(0, tracker.getPending());
+
+    tracker.entryQueued();
+    assertEquals(1, tracker.getPending());
+  }
+
+  private ReplicationQueue mockQueue(int size) {
+    ReplicationQueue queue = mock(ReplicationQueue.class);
+    List<ReplicationQueue.Entry> entries = entries(size);
+    when(queue.entries()).thenReturn(entries);
+    return queue;
+  }
+
+  private List<ReplicationQueue.Entry> entries(int size) {
+    List<ReplicationQueue.Entry> entries = new ArrayList<>();
+    entries.addAll(Collections.nCopies(size, mock(ReplicationQueue.Entry.class)));
+    return entries;
+  }
+}
@@ -0,0 +1,189 @@
+package com.mcplusa.coveo.connector.aem.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.mcplusa.coveo.connector.aem.indexing.Permission;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.sling.api.SlingConstants;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.testing.mock.jcr.MockJcr;
+import org.apache.sling.testing.mock.jcr.MockQueryResult;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.event.Event;
+
+public class AccessPolicyCacheTest {
+
+  private final AtomicInteger queries = new AtomicInteger();
+
+  private final AtomicBoolean failQueries = new AtomicBoolean();
+
+  private AccessPolicyCache cache;
+
+  private Session session;
+
+  @Before
+  public void setUp() throws RepositoryException, LoginException {
+    session = MockJcr.newSession();
+    ResourceResolver resolver = mock(ResourceResolver.class);
+    when(resolver.adaptTo(Session.class)).thenReturn(session);
+    ResourceResolverFactory resolverFactory = mock(ResourceResolverFactory.class);
+    when(resolverFactory.getAdministrativeResourceResolver(null)).thenReturn(resolver);
+    cache = new AccessPolicyCache(resolverFactory);
+
+    Node content = session.getRootNode().addNode("content", JcrConstants.NT_UNSTRUCTURED);
+    Node site = content.addNode("site", JcrConstants.NT_UNSTRUCTURED);
+    addAce(site, "allow", "rep:GrantACE", "everyone", "jcr:read");
+    Node en = site.addNode("en", JcrConstants.NT_UNSTRUCTURED);
+    addAce(en, "deny", "rep:DenyACE", "everyone", "jcr:all");
+    addAce(en, "allow", "rep:GrantACE", "bob", "jcr:read");
+    addAce(en, "write", "rep:GrantACE", "authors", "jcr:write");
+    en.addNode("page", JcrConstants.NT_UNSTRUCTURED);
+
+    MockJcr.addQueryResultHandler(session, query -> {
+      queries.incrementAndGet();
+      if (failQueries.get()) {
+        throw new IllegalStateException("query failed");
+      }
+      String root = query.getStatement().replaceAll(".*ISDESCENDANTNODE\\(policy, '(.*)'\\)", "$1");
+      return new MockQueryResult(findPolicies(root));
+    });
+  }
+
+  @Test
+  public void testPoliciesOfAncestorsAreQueriedOnce() throws RepositoryException {
+    List<AccessPolicyCache.NodePolicies> policies = getPolicies("/content/site/en/page");
+
+    assertEquals(2, policies.size());
+    assertEquals(Arrays.asList(new Permission("everyone", Permission.PERMISSION_TYPE.DENY, true),
+        new Permission("bob", Permission.PERMISSION_TYPE.ALLOW, false)), policies.get(0).getPolicy());
+    assertEquals(Arrays.asList(new Permission("everyone", Permission.PERMISSION_TYPE.ALLOW, true)),
+        policies.get(1).getPolicy());
+
+    assertEquals(1, getPolicies("/content/site").size());
+    assertEquals(0, getPolicies("/content/other").size());
+    assertEquals(1, queries.get());
+  }
+
+  @Test
+  public void testChangedPolicyIsReadAgain() throws RepositoryException {
+    getPolicies("/content/site/en/page");
+
+    session.getNode("/content/site/en/rep:policy").remove();
+    cache.handleEvent(event(SlingConstants.TOPIC_RESOURCE_REMOVED, "/content/site/en/rep:policy"));
+
+    assertEquals(1, getPolicies("/content/site/en/page").size());
+    assertEquals(1, queries.get());
+  }
+
+  @Test
+  public void testMovedSubtreeKeepsItsPolicies() throws RepositoryException {
+    getPolicies("/content/site/en/page");
+
+    // moved by hand, the mock session does not support moves
+    session.getNode("/content/site/en").remove();
+    Node en = session.getNode("/content").addNode("en", JcrConstants.NT_UNSTRUCTURED);
+    addAce(en, "allow", "rep:GrantACE", "bob", "jcr:read");
+    en.addNode("page", JcrConstants.NT_UNSTRUCTURED);
+    cache.handleEvent(event(SlingConstants.TOPIC_RESOURCE_REMOVED, "/content/site/en"));
+    cache.handleEvent(event(SlingConstants.TOPIC_RESOURCE_ADDED, "/content/en"));
+    cache.handleEvent(event(SlingConstants.TOPIC_RESOURCE_ADDED, "/content/en/page"));
+
+    assertEquals(1, getPolicies("/content/en/page").size());
+    assertEquals(1, getPolicies("/content/site/en/page").size());
+    assertEquals(2, queries.get());
+  }
+
+  @Test
+  public void testFailedBuildIsTriedAgain() throws RepositoryException {
+    failQueries.set(true);
+    try {
+      getPolicies("/content/site/en/page");
+      fail("the policies could not be read");
+    } catch (IllegalStateException ex) {
+      // expected
+    }
+
+    failQueries.set(false);
+    assertEquals(2, getPolicies("/content/site/en/page").size());
+    assertEquals(2, queries.get());
+  }
+
+  @Test
+  public void testGroupsFollowThePrincipalTypes() throws RepositoryException {
+    getPolicies("/content/site/en/page");
+
+    List<AccessPolicyCache.NodePolicies> policies = cache.getPolicies("/content/site/en/page", principal -> true);
+
+    assertEquals(new Permission("bob", Permission.PERMISSION_TYPE.ALLOW, true), policies.get(0).getPolicy().get(1));
+    assertEquals(1, queries.get());
+  }
+
+  @Test
+  public void testPolicyOwner() {
+    assertEquals("/content/site", AccessPolicyCache.getPolicyOwner("/content/site/rep:policy"));
+    assertEquals("/content/site", AccessPolicyCache.getPolicyOwner("/content/site/rep:cugPolicy"));
+    assertEquals("/content/dam/a", AccessPolicyCache.getPolicyOwner("/content/dam/a/rep:policy/deny1"));
+    assertNull(AccessPolicyCache.getPolicyOwner("/content/site/rep:policyholder"));
+    assertNull(AccessPolicyCache.getPolicyOwner("/content/site/en"));
+  }
+
+  private List<AccessPolicyCache.NodePolicies> getPolicies(String path) throws RepositoryException {
+    Predicate<String> isGroup = principal -> !principal.equals("bob");
+    return cache.getPolicies(path, isGroup);
+  }
+
+  private List<Node> findPolicies(String root) {
+    try {
+      List<Node> policies = new ArrayList<>();
+      collectPolicies(session.getNode(root), policies);
+      return policies;
+    } catch (RepositoryException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static void collectPolicies(Node node, List<Node> policies) throws RepositoryException {
+    for (NodeIterator children = node.getNodes(); children.hasNext();) {
+      Node child = children.nextNode();
+      if (child.getName().equals(AccessPolicyCache.POLICY_NODE)) {
+        policies.add(child);
+      } else {
+        collectPolicies(child, policies);
+      }
+    }
+  }
+
+  private static void addAce(Node node, String name, String type, String principal, String privilege)
+      throws RepositoryException {
+    Node policy = node.hasNode(AccessPolicyCache.POLICY_NODE) ? node.getNode(AccessPolicyCache.POLICY_NODE)
+        : node.addNode(AccessPolicyCache.POLICY_NODE, "rep:ACL");
+    Node ace = policy.addNode(name, type);
+    ace.setProperty("rep:principalName", principal);
+    ace.setProperty("rep:privileges", new String[] {privilege});
+  }
+
+  private static Event event(String topic, String path) {
+    Map<String, Object> properties = new HashMap<>();
+    properties.put(SlingConstants.PROPERTY_PATH, path);
+    return new Event(topic, properties);
+  }
+}
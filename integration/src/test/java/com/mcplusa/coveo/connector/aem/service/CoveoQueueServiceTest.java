@@ -0,0 +1,134 @@
+package com.mcplusa.coveo.connector.aem.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.mcplusa.coveo.sdk.CoveoResponse;
+import com.mcplusa.coveo.sdk.pushapi.model.Document;
+import com.mcplusa.coveo.sdk.pushapi.model.FileContainerResponse;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.http.HttpStatus;
+import org.apache.http.StatusLine;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.InOrder;
+import org.osgi.framework.BundleContext;
+import org.osgi.service.component.ComponentContext;
+
+public class CoveoQueueServiceTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private CoveoQueueService queueService;
+
+  private CoveoSource primary;
+
+  private CoveoSource staging;
+
+  @Before
+  public void setUp() throws IOException {
+    primary = mockSource("org/primary");
+    staging = mockSource("org/staging");
+
+    queueService = new CoveoQueueService();
+    queueService.hostConfiguration = mock(CoveoHostConfiguration.class);
+    queueService.coveoService = mock(CoveoService.class);
+    when(queueService.coveoService.getSources()).thenReturn(Arrays.asList(primary, staging));
+
+    BundleContext bundleContext = mock(BundleContext.class);
+    when(bundleContext.getDataFile(anyString()))
+        .thenAnswer(invocation -> new File(folder.getRoot(), invocation.getArgument(0)));
+    ComponentContext context = mock(ComponentContext.class);
+    when(context.getBundleContext()).thenReturn(bundleContext);
+    queueService.activate(context);
+  }
+
+  @After
+  public void tearDown() {
+    queueService.deactivate(null);
+  }
+
+  @Test
+  public void testDocumentIsSerializedOnceForAllSources() throws Exception {
+    Document document = mock(Document.class);
+    when(document.getDocumentId()).thenReturn("doc1");
+    when(document.toJson()).thenReturn("{\"documentId\":\"doc1\"}");
+
+    queueService.addDocument("publish", document);
+    CoveoResponse response = queueService.flush("publish");
+
+    assertEquals(HttpStatus.SC_ACCEPTED, response.getStatusLine().getStatusCode());
+    verify(document, times(1)).toJson();
+    verify(primary).pushDocumentsBatch(anyString());
+    verify(staging, timeout(5000)).pushDocumentsBatch(anyString());
+  }
+
+  @Test
+  public void testEachSourceGetsItsOwnBinary() throws Exception {
+    Document document = mock(Document.class);
+    when(document.getDocumentId()).thenReturn("doc1");
+    when(document.toJson()).thenReturn("{\"documentId\":\"doc1\"}");
+    Map<String, String> fileIds = new HashMap<>();
+    fileIds.put("org/primary", "primary-binary");
+    fileIds.put("org/staging", "staging-binary");
+
+    queueService.addDocument("publish", document, fileIds, null);
+
+    InOrder inOrder = inOrder(document);
+    inOrder.verify(document).addMetadata(CoveoQueueService.COMPRESSEDBINARYDATAFILEID_FIELDNAME, "primary-binary",
+        String.class);
+    inOrder.verify(document).toJson();
+    inOrder.verify(document).addMetadata(CoveoQueueService.COMPRESSEDBINARYDATAFILEID_FIELDNAME, "staging-binary",
+        String.class);
+    inOrder.verify(document).toJson();
+  }
+
+  @Test
+  public void testFailedSourceKeepsItsBatch() throws Exception {
+    when(staging.uploadToFileContainer(any())).thenThrow(new IOException("staging is down"));
+
+    queueService.deleteDocument("publish", "doc1");
+    CoveoResponse response = queueService.flush("publish");
+
+    assertEquals(HttpStatus.SC_ACCEPTED, response.getStatusLine().getStatusCode());
+    verify(primary).pushDocumentsBatch(anyString());
+    // only the batch of the staging Source is left, the next flush pushes it again
+    for (int i = 0; i < 50 && !queueService.hasPendingDocuments("publish"); i++) {
+      Thread.sleep(100);
+    }
+    assertTrue(queueService.hasPendingDocuments("publish"));
+    assertFalse(queueService.getBatchRegistry().test("publish", batch -> batch != null && !batch.isEmpty()));
+  }
+
+  private static CoveoSource mockSource(String name) throws IOException {
+    StatusLine statusLine = mock(StatusLine.class);
+    when(statusLine.getStatusCode()).thenReturn(HttpStatus.SC_ACCEPTED);
+    CoveoResponse response = mock(CoveoResponse.class);
+    when(response.getStatusLine()).thenReturn(statusLine);
+    FileContainerResponse fileContainer = mock(FileContainerResponse.class);
+    when(fileContainer.getFileId()).thenReturn(name + "-file");
+
+    CoveoSource source = mock(CoveoSource.class);
+    when(source.getName()).thenReturn(name);
+    when(source.uploadToFileContainer(any())).thenReturn(fileContainer);
+    when(source.pushDocumentsBatch(anyString())).thenReturn(response);
+    return source;
+  }
+}
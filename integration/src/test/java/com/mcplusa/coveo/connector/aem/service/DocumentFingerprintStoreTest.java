@@ -0,0 +1,207 @@
+package com.mcplusa.coveo.connector.aem.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.mcplusa.coveo.connector.aem.indexing.IndexEntry;
+import com.mcplusa.coveo.sdk.pushapi.model.Document;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DocumentFingerprintStoreTest {
+
+  private static final long TIME_TO_LIVE = 1000;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private final AtomicLong now = new AtomicLong(10000);
+
+  private File file;
+
+  @Before
+  public void setUp() {
+    file = new File(folder.getRoot(), "document-fingerprints");
+  }
+
+  @Test
+  public void testFingerprintIgnoresPropertyOrder() throws IOException {
+    Document first = document("{\"documentId\":\"en\",\"title\":\"English\",\"nested\":{\"b\":1,\"a\":[\"x\",\"y\"]}}");
+    Document second = document("{\"nested\":{\"a\":[\"x\",\"y\"],\"b\":1},\"title\":\"English\",\"documentId\":\"en\"}");
+    Map<String, String> noBinary = Collections.emptyMap();
+    assertEquals(DocumentFingerprintStore.fingerprint(first, noBinary),
+        DocumentFingerprintStore.fingerprint(second, noBinary));
+
+    // a field mapped differently
+    Document mapped = document("{\"documentId\":\"en\",\"pagetitle\":\"English\",\"nested\":{\"b\":1,\"a\":[\"x\",\"y\"]}}");
+    assertNotEquals(DocumentFingerprintStore.fingerprint(first, noBinary),
+        DocumentFingerprintStore.fingerprint(mapped, noBinary));
+
+    // a new binary
+    assertNotEquals(DocumentFingerprintStore.fingerprint(first, noBinary),
+        DocumentFingerprintStore.fingerprint(first, Collections.singletonMap("digest", "5f4dcc3b")));
+  }
+
+  @Test
+  public void testUnchangedAssetIsSkipped() throws IOException {
+    DocumentFingerprintStore store = new DocumentFingerprintStore(file, TIME_TO_LIVE, now::get);
+    IndexEntry entry = new IndexEntry("idx", "asset", "/content/dam/logo.png");
+    Document document = document("{\"documentId\":\"logo.png\",\"compressionType\":\"UNCOMPRESSED\"}");
+    Map<String, String> binary = new HashMap<>();
+    binary.put("path", "/content/dam/logo.png/jcr:content/renditions/original");
+    binary.put("digest", "5f4dcc3b");
+
+    long pushed = DocumentFingerprintStore.fingerprint(document, binary);
+    store.enqueue(entry.getId(), pushed);
+    store.put(entry, pushed);
+
+    // activated again with the same binary, whatever FileContainer it was uploaded to last time
+    assertTrue(store.isUnchanged(entry, DocumentFingerprintStore.fingerprint(document, new HashMap<>(binary))));
+
+    binary.put("digest", "e99a18c4");
+    assertFalse(store.isUnchanged(entry, DocumentFingerprintStore.fingerprint(document, binary)));
+  }
+
+  @Test
+  public void testUnchangedWithinTimeToLive() throws IOException {
+    DocumentFingerprintStore store = new DocumentFingerprintStore(file, TIME_TO_LIVE, now::get);
+    IndexEntry entry = new IndexEntry("idx", "page", "/content/site/en");
+    long fingerprint = 42;
+    assertFalse(store.isUnchanged(entry, fingerprint));
+
+    store.put(entry, fingerprint);
+    assertTrue(store.isUnchanged(entry, fingerprint));
+    assertFalse(store.isUnchanged(entry, fingerprint + 1));
+
+    now.addAndGet(TIME_TO_LIVE);
+    assertFalse(store.isUnchanged(entry, fingerprint));
+
+    // disabled store
+    DocumentFingerprintStore disabled = new DocumentFingerprintStore(file, 0, now::get);
+    disabled.put(entry, fingerprint);
+    assertFalse(disabled.isUnchanged(entry, fingerprint));
+  }
+
+  @Test
+  public void testOlderVersionIsPushedWhileANewerOneIsPending() {
+    DocumentFingerprintStore store = new DocumentFingerprintStore(file, TIME_TO_LIVE, now::get);
+    IndexEntry entry = new IndexEntry("idx", "page", "/content/site/en");
+
+    // v1 is pushed
+    store.enqueue(entry.getId(), 1);
+    store.put(entry, 1);
+    assertTrue(store.isUnchanged(entry, 1));
+
+    // v2 waits in a batch, v1 activated again must be pushed after it
+    store.enqueue(entry.getId(), 2);
+    assertFalse(store.isUnchanged(entry, 1));
+    assertFalse(store.isUnchanged(entry, 2));
+
+    // v1 is enqueued again, the batch of v2 is pushed first
+    store.enqueue(entry.getId(), 1);
+    store.put(entry, 2);
+    assertFalse(store.isUnchanged(entry, 2));
+
+    store.put(entry, 1);
+    assertTrue(store.isUnchanged(entry, 1));
+  }
+
+  @Test
+  public void testPendingFingerprintIsLoaded() {
+    DocumentFingerprintStore store = new DocumentFingerprintStore(file, TIME_TO_LIVE, now::get);
+    IndexEntry entry = new IndexEntry("idx", "page", "/content/site/en");
+    store.put(entry, 1);
+    store.enqueue(entry.getId(), 2);
+    store.close();
+
+    DocumentFingerprintStore loaded = new DocumentFingerprintStore(file, TIME_TO_LIVE, now::get);
+    loaded.load();
+    assertFalse(loaded.isUnchanged(entry, 1));
+
+    loaded.put(entry, 2);
+    assertTrue(loaded.isUnchanged(entry, 2));
+  }
+
+  @Test
+  public void testRemoveDeletesChildren() throws IOException {
+    DocumentFingerprintStore store = new DocumentFingerprintStore(file, TIME_TO_LIVE, now::get);
+    IndexEntry parent = new IndexEntry("idx", "page", "/content/site/en");
+    IndexEntry child = new IndexEntry("idx", "page", "/content/site/en/news");
+    IndexEntry sibling = new IndexEntry("idx", "page", "/content/site/english");
+    store.put(parent, 1);
+    store.put(child, 2);
+    store.put(sibling, 3);
+
+    store.remove("/content/site/en");
+
+    assertFalse(store.isUnchanged(parent, 1));
+    assertFalse(store.isUnchanged(child, 2));
+    assertTrue(store.isUnchanged(sibling, 3));
+  }
+
+  @Test
+  public void testRemoveFollowsTheLastPathOfTheDocument() {
+    DocumentFingerprintStore store = new DocumentFingerprintStore(file, TIME_TO_LIVE, now::get);
+    store.put("page1", "/content/site/en/old", 1);
+    store.put("page1", "/content/site/fr/new", 1);
+    store.put("page2", "/content/site/en-gb", 2);
+
+    store.remove("/content/site/en");
+    assertEquals(2, store.size());
+
+    store.remove("/content/site/fr");
+    assertEquals(1, store.size());
+  }
+
+  @Test
+  public void testLoad() throws IOException {
+    DocumentFingerprintStore store = new DocumentFingerprintStore(file, TIME_TO_LIVE, now::get);
+    IndexEntry kept = new IndexEntry("idx", "page", "/content/site/en");
+    IndexEntry deleted = new IndexEntry("idx", "page", "/content/site/fr");
+    IndexEntry expired = new IndexEntry("idx", "page", "/content/site/de");
+    store.put(expired, 1);
+    now.addAndGet(TIME_TO_LIVE / 2);
+    store.put(kept, 2);
+    store.put(deleted, 3);
+    store.remove("/content/site/fr");
+    store.close();
+
+    // a line left incomplete by a crash
+    try (FileOutputStream out = new FileOutputStream(file, true)) {
+      out.write(("-\t/content/site/e").getBytes(StandardCharsets.UTF_8));
+    }
+
+    now.addAndGet(TIME_TO_LIVE / 2);
+    DocumentFingerprintStore loaded = new DocumentFingerprintStore(file, TIME_TO_LIVE, now::get);
+    loaded.load();
+
+    assertEquals(1, loaded.size());
+    assertTrue(loaded.isUnchanged(kept, 2));
+    assertFalse(loaded.isUnchanged(deleted, 3));
+    assertFalse(loaded.isUnchanged(expired, 1));
+
+    // the log was rewritten with the remaining fingerprint only
+    assertEquals(1, Files.readAllLines(file.toPath()).size());
+  }
+
+  private static Document document(String json) {
+    Document document = mock(Document.class);
+    when(document.toJson()).thenReturn(json);
+    return document;
+  }
+}
@@ -0,0 +1,67 @@
+package com.mcplusa.coveo.connector.aem.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import com.mcplusa.coveo.sdk.pushapi.model.FileContainerResponse;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.After;
+import org.junit.Test;
+
+public class FileContainerPoolTest {
+
+  private final AtomicInteger requests = new AtomicInteger();
+
+  private final AtomicLong now = new AtomicLong(1000);
+
+  private FileContainerPool pool;
+
+  @After
+  public void tearDown() {
+    pool.close();
+  }
+
+  @Test
+  public void testTakeFromPool() throws Exception {
+    pool = new FileContainerPool(this::newContainer, 2, 60000, now::get);
+    assertEquals("file1", pool.take().getFileId());
+    waitForRefill(2);
+
+    assertEquals("file2", pool.take().getFileId());
+    assertEquals("file3", pool.take().getFileId());
+  }
+
+  @Test
+  public void testExpiredContainersAreDropped() throws Exception {
+    pool = new FileContainerPool(this::newContainer, 2, 60000, now::get);
+    pool.refill();
+    waitForRefill(2);
+
+    now.addAndGet(60000);
+    FileContainerResponse container = pool.take();
+    assertNotEquals("file1", container.getFileId());
+    assertNotEquals("file2", container.getFileId());
+  }
+
+  @Test
+  public void testDisabled() throws IOException {
+    pool = new FileContainerPool(this::newContainer, 0, 60000, now::get);
+    assertEquals("file1", pool.take().getFileId());
+    assertEquals("file2", pool.take().getFileId());
+    assertEquals(0, pool.getAvailable());
+  }
+
+  private FileContainerResponse newContainer() {
+    int id = requests.incrementAndGet();
+    return new FileContainerResponse("file" + id, "https://s3/upload/" + id);
+  }
+
+  private void waitForRefill(int expected) throws InterruptedException {
+    for (int i = 0; i < 500 && pool.getAvailable() < expected; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(expected, pool.getAvailable());
+  }
+}
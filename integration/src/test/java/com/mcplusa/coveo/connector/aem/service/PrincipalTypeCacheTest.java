@@ -0,0 +1,67 @@
+package com.mcplusa.coveo.connector.aem.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.sling.api.SlingConstants;
+import org.junit.Test;
+import org.osgi.service.event.Event;
+
+public class PrincipalTypeCacheTest {
+
+  private final AtomicLong now = new AtomicLong();
+
+  private final AtomicInteger lookups = new AtomicInteger();
+
+  private final PrincipalTypeCache cache = new PrincipalTypeCache(2, 1000, now::get);
+
+  @Test
+  public void testTypeIsLookedUpOnce() {
+    assertTrue(cache.isGroup("everyone", this::lookUp));
+    assertTrue(cache.isGroup("everyone", this::lookUp));
+    assertFalse(cache.isGroup("bob", this::lookUp));
+    assertFalse(cache.isGroup("bob", this::lookUp));
+
+    assertEquals(2, lookups.get());
+  }
+
+  @Test
+  public void testTypeExpires() {
+    cache.isGroup("everyone", this::lookUp);
+
+    now.set(1000);
+    cache.isGroup("everyone", this::lookUp);
+
+    assertEquals(2, lookups.get());
+  }
+
+  @Test
+  public void testWarmedGroupsAreKept() {
+    cache.putAll(Arrays.asList("bob", "alice"), Arrays.asList("everyone"));
+
+    assertTrue(cache.isGroup("everyone", this::lookUp));
+    assertFalse(cache.isGroup("alice", this::lookUp));
+    assertEquals(0, lookups.get());
+    assertEquals(2, cache.size());
+  }
+
+  @Test
+  public void testAuthorizableChangeClearsTheCache() {
+    cache.putAll(Collections.singletonList("bob"), Collections.emptyList());
+
+    cache.handleEvent(new Event(SlingConstants.TOPIC_RESOURCE_ADDED, new HashMap<String, Object>()));
+
+    assertEquals(0, cache.size());
+  }
+
+  private boolean lookUp(String principal) {
+    lookups.incrementAndGet();
+    return principal.equals("everyone");
+  }
+}
@@ -0,0 +1,114 @@
+package com.mcplusa.coveo.connector.aem.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.mcplusa.coveo.sdk.CoveoResponse;
+import com.mcplusa.coveo.sdk.CoveoResponseException;
+import com.mcplusa.coveo.sdk.pushapi.CoveoPushClient;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.http.HttpStatus;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PushApiThrottleTest {
+
+  private HttpServer server;
+
+  private CloseableHttpClient httpClient;
+
+  private CoveoPushClient client;
+
+  private final Deque<Integer> statuses = new ConcurrentLinkedDeque<>();
+
+  private final AtomicInteger requests = new AtomicInteger();
+
+  @Before
+  public void setUp() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/", exchange -> {
+      requests.incrementAndGet();
+      Integer status = statuses.poll();
+      int code = status != null ? status : HttpStatus.SC_ACCEPTED;
+      if (code == 429) {
+        exchange.getResponseHeaders().add("Retry-After", "0");
+      }
+      byte[] body = "{}".getBytes(StandardCharsets.UTF_8);
+      exchange.sendResponseHeaders(code, body.length);
+      exchange.getResponseBody().write(body);
+      exchange.close();
+    });
+    server.start();
+
+    httpClient = HttpClients.createDefault();
+    client = new CoveoPushClient(httpClient, "token", "org", "source",
+        "http://localhost:" + server.getAddress().getPort());
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    httpClient.close();
+    server.stop(0);
+  }
+
+  @Test
+  public void testRetryThrottledCall() throws IOException {
+    PushApiThrottle throttle = new PushApiThrottle(100, 5, 10, 1000);
+    statuses.add(429);
+    statuses.add(429);
+
+    CoveoResponse response = throttle.execute(() -> client.pushDocumentsBatch("fileId"));
+    assertEquals(HttpStatus.SC_ACCEPTED, response.getStatusLine().getStatusCode());
+    assertEquals(3, requests.get());
+    assertTrue(throttle.getRate() < 100);
+  }
+
+  @Test
+  public void testRetryServerError() throws IOException {
+    PushApiThrottle throttle = new PushApiThrottle(100, 2, 10, 1000);
+    statuses.add(503);
+    statuses.add(503);
+    statuses.add(503);
+
+    try {
+      throttle.execute(() -> client.pushDocumentsBatch("fileId"));
+      fail("The call should fail after the retries");
+    } catch (CoveoResponseException e) {
+      assertEquals(503, e.getResponse().getStatusLine().getStatusCode());
+    }
+    assertEquals(3, requests.get());
+    assertEquals(100, throttle.getRate(), 0);
+  }
+
+  @Test
+  public void testClientErrorIsNotRetried() throws IOException {
+    PushApiThrottle throttle = new PushApiThrottle(100, 5, 10, 1000);
+    statuses.add(400);
+
+    try {
+      throttle.execute(() -> client.pushDocumentsBatch("fileId"));
+      fail("The call should fail");
+    } catch (CoveoResponseException e) {
+      assertEquals(400, e.getResponse().getStatusLine().getStatusCode());
+    }
+    assertEquals(1, requests.get());
+  }
+
+  @Test
+  public void testParseRetryAfter() {
+    assertEquals(-1, PushApiThrottle.parseRetryAfter(null));
+    assertEquals(-1, PushApiThrottle.parseRetryAfter("soon"));
+    assertEquals(120000, PushApiThrottle.parseRetryAfter("120"));
+    assertEquals(0, PushApiThrottle.parseRetryAfter("Wed, 21 Oct 2015 07:28:00 GMT"));
+  }
+}
@@ -0,0 +1,72 @@
+package com.mcplusa.coveo.connector.aem.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.mcplusa.coveo.sdk.CoveoResponse;
+import com.mcplusa.coveo.sdk.pushapi.model.PushAPIStatus;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.apache.http.HttpStatus;
+import org.apache.http.StatusLine;
+import org.junit.After;
+import org.junit.Test;
+
+public class SourceStatusManagerTest {
+
+  private final List<PushAPIStatus> sent = new CopyOnWriteArrayList<>();
+
+  private SourceStatusManager manager;
+
+  @After
+  public void tearDown() {
+    manager.close();
+  }
+
+  @Test
+  public void testCoalesceWithinWindow() throws InterruptedException {
+    manager = new SourceStatusManager(this::update, 100);
+    manager.request(PushAPIStatus.REFRESH);
+    manager.request(PushAPIStatus.IDLE);
+    manager.request(PushAPIStatus.REFRESH);
+    waitForStatus(PushAPIStatus.REFRESH);
+    assertEquals(1, sent.size());
+
+    // same status as the source, nothing is sent
+    manager.request(PushAPIStatus.IDLE);
+    manager.request(PushAPIStatus.REFRESH);
+    Thread.sleep(300);
+    assertEquals(1, sent.size());
+
+    manager.request(PushAPIStatus.IDLE);
+    waitForStatus(PushAPIStatus.IDLE);
+    assertEquals(2, sent.size());
+    assertEquals(PushAPIStatus.IDLE, sent.get(1));
+  }
+
+  @Test
+  public void testCloseSendsPendingStatus() {
+    manager = new SourceStatusManager(this::update, 60000);
+    manager.request(PushAPIStatus.IDLE);
+    manager.close();
+    assertEquals(1, sent.size());
+    assertEquals(PushAPIStatus.IDLE, manager.getCurrent());
+  }
+
+  private CoveoResponse update(PushAPIStatus status) {
+    sent.add(status);
+    StatusLine statusLine = mock(StatusLine.class);
+    when(statusLine.getStatusCode()).thenReturn(HttpStatus.SC_CREATED);
+    CoveoResponse response = mock(CoveoResponse.class);
+    when(response.getStatusLine()).thenReturn(statusLine);
+    return response;
+  }
+
+  private void waitForStatus(PushAPIStatus expected) throws InterruptedException {
+    for (int i = 0; i < 500 && manager.getCurrent() != expected; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(expected, manager.getCurrent());
+  }
+}
@@ -0,0 +1,97 @@
+package com.mcplusa.coveo.connector.aem.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.day.cq.tagging.Tag;
+import com.day.cq.tagging.TagManager;
+import java.util.HashMap;
+import org.apache.sling.api.SlingConstants;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.event.Event;
+
+public class TagTitleCacheTest {
+
+  private final TagTitleCache cache = new TagTitleCache(2);
+
+  private final TagManager tagManager = mock(TagManager.class);
+
+  @Before
+  public void setUp() {
+    Tag namespace = tag("site", null);
+    when(tagManager.getNamespaces()).thenReturn(new Tag[] {namespace});
+
+    Tag news = tag("news", "News");
+    when(tagManager.resolve("site:news")).thenReturn(news);
+    when(tagManager.resolve("/content/cq:tags/site/news")).thenReturn(news);
+  }
+
+  @Test
+  public void testTitleIsLookedUpOnce() {
+    assertEquals("News", cache.getTitle("site:news", tagManager));
+    assertEquals("News", cache.getTitle("site:news", tagManager));
+    assertEquals("News", cache.getTitle("/content/cq:tags/site/news", tagManager));
+
+    verify(tagManager, times(1)).resolve("site:news");
+    verify(tagManager, times(1)).getNamespaces();
+  }
+
+  @Test
+  public void testValuesOutsideTheNamespacesAreNotLookedUp() {
+    assertNull(cache.getTitle("Note: not a tag", tagManager));
+    assertNull(cache.getTitle("plain text", tagManager));
+
+    verify(tagManager, never()).resolve("Note: not a tag");
+    verify(tagManager, never()).resolve("plain text");
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void testBareIdsAreLookedUpInTheDefaultNamespace() {
+    assertNull(cache.getTitle("news", tagManager));
+    verify(tagManager, never()).resolve("news");
+
+    Tag site = tag("site", null);
+    Tag standard = tag("default", null);
+    when(tagManager.getNamespaces()).thenReturn(new Tag[] {site, standard});
+    Tag news = tag("news", "News");
+    when(tagManager.resolve("news")).thenReturn(news);
+    cache.clear();
+
+    assertEquals("News", cache.getTitle("news", tagManager));
+    assertNull(cache.getTitle("plain text", tagManager));
+    verify(tagManager, never()).resolve("plain text");
+  }
+
+  @Test
+  public void testMissingTagIsCached() {
+    assertNull(cache.getTitle("site:missing", tagManager));
+    assertNull(cache.getTitle("site:missing", tagManager));
+
+    verify(tagManager, times(1)).resolve("site:missing");
+  }
+
+  @Test
+  public void testTagChangeClearsTheCache() {
+    cache.getTitle("site:news", tagManager);
+
+    cache.handleEvent(new Event(SlingConstants.TOPIC_RESOURCE_CHANGED, new HashMap<String, Object>()));
+    cache.getTitle("site:news", tagManager);
+
+    verify(tagManager, times(2)).resolve("site:news");
+    verify(tagManager, times(2)).getNamespaces();
+  }
+
+  private static Tag tag(String name, String title) {
+    Tag tag = mock(Tag.class);
+    when(tag.getName()).thenReturn(name);
+    when(tag.getTitle()).thenReturn(title);
+    return tag;
+  }
+}
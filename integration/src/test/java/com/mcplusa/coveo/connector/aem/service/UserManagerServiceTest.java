@@ -1,7 +1,9 @@
 package com.mcplusa.coveo.connector.aem.service;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.mock;
@@ -36,6 +38,7 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.mockito.Spy;
 import org.mockito.junit.MockitoJUnitRunner;
 
 import io.wcm.testing.mock.aem.junit.AemContext;
@@ -49,6 +52,9 @@ public class UserManagerServiceTest {
   @Mock
   private QueryBuilder builder;
 
+  @Spy
+  private PrincipalTypeCache principalTypeCache = new PrincipalTypeCache();
+
   @InjectMocks
   private UserManagerService service;
 
@@ -72,6 +78,8 @@ public class UserManagerServiceTest {
 
     // Contains both group-1 and user-1
     assertEquals(2, batch.getMembers().size());
+    assertTrue(principalTypeCache.isGroup("group-1", principal -> false));
+    assertFalse(principalTypeCache.isGroup("user-1", principal -> true));
   }
 
   @Test